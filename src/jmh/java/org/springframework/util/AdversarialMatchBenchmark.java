@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.PathMatcherTests.TestURITemplate;
+
+/**
+ * Worst case paths for templates with several <tt>**</tt>. The path repeats the literals
+ * of the template so every <tt>**</tt> finds many places to resume from, then ends with
+ * an element that fails the last literal. Without remembering where each <tt>**</tt> has
+ * already failed the time grows with the path length to the power of the number of
+ * <tt>**</tt>, with it the growth is quadratic.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AdversarialMatchBenchmark {
+
+	@Param({ "16", "64", "256" })
+	public int elements;
+
+	@Param({ "/**/a/**/b", "/**/a/**/b/**/c/**/d" })
+	public String template;
+
+	private PathMatcher matcher;
+
+	private String miss;
+
+	private String hit;
+
+	private int[] ids = new int[4];
+
+	@Setup
+	public void setup() {
+		matcher = new PathMatcher();
+		matcher.addURITemplate(TestURITemplate.createFor(template));
+		String[] literals = template.replace("/**/", " ").trim().split(" ");
+		StringBuilder path = new StringBuilder();
+		for (int i = 0; i < elements; i++) {
+			path.append('/').append(literals[i % literals.length]);
+		}
+		miss = path + "/x";
+		hit = path + "/" + literals[literals.length - 1];
+	}
+
+	@Benchmark
+	public boolean matchesMiss() {
+		return matcher.matches(miss);
+	}
+
+	@Benchmark
+	public boolean matchesHit() {
+		return matcher.matches(hit);
+	}
+
+	@Benchmark
+	public int findAllMatchIdsMiss() {
+		return matcher.findAllMatchIds(miss, ids);
+	}
+
+}
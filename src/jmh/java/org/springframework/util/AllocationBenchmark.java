@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.AllocationScenario.Operation;
+import org.springframework.util.AllocationScenario.TemplateKind;
+
+/**
+ * Every matcher operation against every kind of template. Run with <tt>-prof gc</tt> (the
+ * default for the jmh profile) and read the <tt>gc.alloc.rate.norm</tt> lines for the
+ * bytes allocated per call, {@link AllocationBudgetTests} enforces the budgets for the
+ * same scenarios.
+ * 
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AllocationBenchmark {
+
+	@Param({ "MATCHES", "MATCHES_MISS", "FIND_ALL_MATCHES", "FIND_FIRST_MATCH", "FIND_ALL_PREFIX_MATCHES_STARTING",
+			"VISIT_ALL_MATCHES", "FIND_ALL_MATCH_IDS", "FIND_LONGEST_PREFIX_MATCH" })
+	public String operationName;
+
+	@Param({ "LITERAL", "QUESTION_MARK", "CAPTURE", "CONSTRAINED_CAPTURE", "WILDCARD", "DOUBLE_STAR", "MULTI_CAPTURE", "MANY_DOUBLE_STARS" })
+	public String kindName;
+
+	private Operation operation;
+
+	private TemplateKind kind;
+
+	private PathMatcher matcher;
+
+	@Setup
+	public void setup() {
+		operation = Operation.valueOf(operationName);
+		kind = TemplateKind.valueOf(kindName);
+		matcher = kind.createMatcher();
+	}
+
+	@Benchmark
+	public Object run() {
+		return operation.run(matcher, kind);
+	}
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.util.AllocationScenario.Operation;
+import org.springframework.util.AllocationScenario.TemplateKind;
+
+/**
+ * Checks the bytes allocated per call for each {@link Operation} on each {@link TemplateKind}
+ * stay within an explicit budget. Run with <tt>./mvnw -Pjmh test</tt>. The figures come from
+ * the per thread allocation counter of HotSpot after a warm up, so they assume a 64-bit JVM
+ * with compressed oops. When a change to the hot path legitimately reduces allocation,
+ * lower the budget so the saving cannot silently regress.
+ * 
+ */
+public class AllocationBudgetTests {
+
+	private static final int WARMUP_CALLS = 200000;
+
+	private static final int MEASURED_CALLS = 100000;
+
+	private static final Map<Operation, Map<TemplateKind, Integer>> BUDGETS = new EnumMap<>(Operation.class);
+
+	static {
+		budget(Operation.MATCHES,
+				TemplateKind.LITERAL, 328, TemplateKind.QUESTION_MARK, 328, TemplateKind.CAPTURE, 312,
+				TemplateKind.CONSTRAINED_CAPTURE, 312, TemplateKind.WILDCARD, 328,
+				TemplateKind.DOUBLE_STAR, 368, TemplateKind.MULTI_CAPTURE, 368, TemplateKind.MANY_DOUBLE_STARS, 368);
+		budget(Operation.MATCHES_MISS,
+				TemplateKind.LITERAL, 352, TemplateKind.QUESTION_MARK, 352, TemplateKind.CAPTURE, 352,
+				TemplateKind.CONSTRAINED_CAPTURE, 352, TemplateKind.WILDCARD, 352,
+				TemplateKind.DOUBLE_STAR, 320, TemplateKind.MULTI_CAPTURE, 400, TemplateKind.MANY_DOUBLE_STARS, 560);
+		budget(Operation.FIND_ALL_MATCHES,
+				TemplateKind.LITERAL, 328, TemplateKind.QUESTION_MARK, 328, TemplateKind.CAPTURE, 536,
+				TemplateKind.CONSTRAINED_CAPTURE, 536, TemplateKind.WILDCARD, 328,
+				TemplateKind.DOUBLE_STAR, 400, TemplateKind.MULTI_CAPTURE, 640, TemplateKind.MANY_DOUBLE_STARS, 400);
+		budget(Operation.FIND_FIRST_MATCH,
+				TemplateKind.LITERAL, 328, TemplateKind.QUESTION_MARK, 328, TemplateKind.CAPTURE, 536,
+				TemplateKind.CONSTRAINED_CAPTURE, 536, TemplateKind.WILDCARD, 328,
+				TemplateKind.DOUBLE_STAR, 368, TemplateKind.MULTI_CAPTURE, 608, TemplateKind.MANY_DOUBLE_STARS, 368);
+		budget(Operation.FIND_ALL_PREFIX_MATCHES_STARTING,
+				TemplateKind.LITERAL, 296, TemplateKind.QUESTION_MARK, 296, TemplateKind.CAPTURE, 272,
+				TemplateKind.CONSTRAINED_CAPTURE, 272, TemplateKind.WILDCARD, 328,
+				TemplateKind.DOUBLE_STAR, 312, TemplateKind.MULTI_CAPTURE, 296, TemplateKind.MANY_DOUBLE_STARS, 216);
+		budget(Operation.VISIT_ALL_MATCHES,
+				TemplateKind.LITERAL, 0, TemplateKind.QUESTION_MARK, 0, TemplateKind.CAPTURE, 0,
+				TemplateKind.CONSTRAINED_CAPTURE, 0, TemplateKind.WILDCARD, 0,
+				TemplateKind.DOUBLE_STAR, 0, TemplateKind.MULTI_CAPTURE, 0, TemplateKind.MANY_DOUBLE_STARS, 0);
+		budget(Operation.FIND_ALL_MATCH_IDS,
+				TemplateKind.LITERAL, 0, TemplateKind.QUESTION_MARK, 0, TemplateKind.CAPTURE, 0,
+				TemplateKind.CONSTRAINED_CAPTURE, 0, TemplateKind.WILDCARD, 0,
+				TemplateKind.DOUBLE_STAR, 0, TemplateKind.MULTI_CAPTURE, 0, TemplateKind.MANY_DOUBLE_STARS, 0);
+		budget(Operation.FIND_LONGEST_PREFIX_MATCH,
+				TemplateKind.LITERAL, 0, TemplateKind.QUESTION_MARK, 0, TemplateKind.CAPTURE, 0,
+				TemplateKind.CONSTRAINED_CAPTURE, 0, TemplateKind.WILDCARD, 0,
+				TemplateKind.DOUBLE_STAR, 0, TemplateKind.MULTI_CAPTURE, 0, TemplateKind.MANY_DOUBLE_STARS, 0);
+	}
+
+	private static void budget(Operation operation, Object... kindsAndBytes) {
+		Map<TemplateKind, Integer> budgets = new EnumMap<>(TemplateKind.class);
+		for (int i = 0; i < kindsAndBytes.length; i += 2) {
+			budgets.put((TemplateKind) kindsAndBytes[i], (Integer) kindsAndBytes[i + 1]);
+		}
+		BUDGETS.put(operation, budgets);
+	}
+
+	@Test
+	public void allocationWithinBudget() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		StringBuilder report = new StringBuilder();
+		StringBuilder failures = new StringBuilder();
+		for (Operation operation : Operation.values()) {
+			for (TemplateKind kind : TemplateKind.values()) {
+				Integer budget = BUDGETS.get(operation).get(kind);
+				if (budget == null) {
+					fail("No allocation budget set for " + operation + "/" + kind);
+				}
+				PathMatcher matcher = kind.createMatcher();
+				Object sink = null;
+				for (int i = 0; i < WARMUP_CALLS; i++) {
+					sink = operation.run(matcher, kind);
+				}
+				long before = threads.getThreadAllocatedBytes(threadId);
+				for (int i = 0; i < MEASURED_CALLS; i++) {
+					sink = operation.run(matcher, kind);
+				}
+				long bytesPerCall = (threads.getThreadAllocatedBytes(threadId) - before) / MEASURED_CALLS;
+				String line = String.format("%-34s %-20s %6d B/call (budget %d)%n", operation, kind, bytesPerCall, budget);
+				report.append(line);
+				if (bytesPerCall > budget) {
+					failures.append(line);
+				}
+				if (sink == this) {
+					throw new IllegalStateException();
+				}
+			}
+		}
+		System.out.print(report);
+		if (failures.length() != 0) {
+			fail("Allocation budgets exceeded:\n" + failures);
+		}
+	}
+
+	@Test
+	public void publishAllocatesNothing() {
+		SubscriptionIndex index = new SubscriptionIndex();
+		for (int s = 0; s < 50; s++) {
+			index.subscribe("orders.*.created", s);
+			index.subscribe("orders.eu.**", s + 25);
+			index.subscribe("orders.eu.created", s * 2);
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		int[] into = new int[128];
+		int sink = 0;
+		for (int i = 0; i < WARMUP_CALLS; i++) {
+			sink += index.publish("orders.eu.created", into);
+		}
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < MEASURED_CALLS; i++) {
+			sink += index.publish("orders.eu.created", into);
+		}
+		long bytesPerCall = (threads.getThreadAllocatedBytes(threadId) - before) / MEASURED_CALLS;
+		System.out.printf("%-34s %-20s %6d B/call (budget 0)%n", "PUBLISH", "SUBSCRIPTIONS", bytesPerCall);
+		if (bytesPerCall > 0) {
+			fail("Publishing allocated " + bytesPerCall + " B/call");
+		}
+		if (sink == 0) {
+			throw new IllegalStateException();
+		}
+	}
+
+}
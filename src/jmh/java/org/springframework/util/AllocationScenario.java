@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import org.springframework.util.PathMatcherTests.TestURITemplate;
+
+/**
+ * The matcher operations and template kinds whose allocation per call is tracked by
+ * {@link AllocationBenchmark} and enforced by {@link AllocationBudgetTests}.
+ * 
+ */
+class AllocationScenario {
+
+	enum TemplateKind {
+
+		LITERAL("/customer/orders/list", "/customer/orders/list"),
+
+		QUESTION_MARK("/customer/ord?rs/list", "/customer/orders/list"),
+
+		CAPTURE("/customer/{id}/orders", "/customer/99/orders"),
+
+		CONSTRAINED_CAPTURE("/customer/{id:[0-9]+}/orders", "/customer/99/orders"),
+
+		WILDCARD("/customer/*.html", "/customer/orders.html"),
+
+		DOUBLE_STAR("/customer/**/list", "/customer/orders/recent/list"),
+
+		MULTI_CAPTURE("/customer/{*rest}", "/customer/orders/recent/list"),
+
+		// Registered after many other templates with repeated **, none of which the path reaches
+		MANY_DOUBLE_STARS("/customer/**/*/**/list", "/customer/orders/recent/list", 1000);
+
+		final String template;
+
+		final String path;
+
+		// The first two elements of the path, used for prefix matching
+		final String prefixPath;
+
+		final int otherTemplates;
+
+		TemplateKind(String template, String path) {
+			this(template, path, 0);
+		}
+
+		TemplateKind(String template, String path, int otherTemplates) {
+			this.template = template;
+			this.path = path;
+			int secondElementEnd = path.indexOf('/', path.indexOf('/', 1) + 1);
+			this.prefixPath = secondElementEnd == -1 ? path : path.substring(0, secondElementEnd);
+			this.otherTemplates = otherTemplates;
+		}
+
+		PathMatcher createMatcher() {
+			PathMatcher matcher = new PathMatcher();
+			for (int i = 0; i < otherTemplates; i++) {
+				matcher.addURITemplate(TestURITemplate.createFor("/other" + i + "/**/*/**/list"));
+			}
+			matcher.addURITemplate(TestURITemplate.createFor(template));
+			return matcher;
+		}
+
+		/**
+		 * @return a path sharing the first element of the template but otherwise not matching it
+		 */
+		String missPath() {
+			return "/customer/zzz/nothing/here/at/all";
+		}
+
+	}
+
+	enum Operation {
+
+		MATCHES {
+			@Override
+			Object run(PathMatcher matcher, TemplateKind kind) {
+				return matcher.matches(kind.path);
+			}
+		},
+
+		MATCHES_MISS {
+			@Override
+			Object run(PathMatcher matcher, TemplateKind kind) {
+				return matcher.matches(kind.missPath());
+			}
+		},
+
+		FIND_ALL_MATCHES {
+			@Override
+			Object run(PathMatcher matcher, TemplateKind kind) {
+				return matcher.findAllMatches(kind.path);
+			}
+		},
+
+		FIND_FIRST_MATCH {
+			@Override
+			Object run(PathMatcher matcher, TemplateKind kind) {
+				return matcher.findFirstMatch(kind.path);
+			}
+		},
+
+		FIND_ALL_PREFIX_MATCHES_STARTING {
+			@Override
+			Object run(PathMatcher matcher, TemplateKind kind) {
+				return matcher.findAllPrefixMatchesStarting(kind.prefixPath);
+			}
+		},
+
+		VISIT_ALL_MATCHES {
+			@Override
+			Object run(PathMatcher matcher, TemplateKind kind) {
+				return matcher.findAllMatches(kind.path, CAPTURE_READER);
+			}
+		},
+
+		FIND_ALL_MATCH_IDS {
+			@Override
+			Object run(PathMatcher matcher, TemplateKind kind) {
+				return matcher.findAllMatchIds(kind.path, IDS.get());
+			}
+		},
+
+		FIND_LONGEST_PREFIX_MATCH {
+			@Override
+			Object run(PathMatcher matcher, TemplateKind kind) {
+				return matcher.findLongestPrefixMatch(kind.path, PREFIX_MATCH.get());
+			}
+		};
+
+		private static final ThreadLocal<int[]> IDS = ThreadLocal.withInitial(() -> new int[8]);
+
+		private static final ThreadLocal<PrefixMatch> PREFIX_MATCH = ThreadLocal.withInitial(PrefixMatch::new);
+
+		// Reads the capture offsets the way a router would
+		private static final MatchVisitor CAPTURE_READER = (template, templateId, captures) -> {
+			int length = 0;
+			for (int i = 0; i < captures.getCaptureCount(); i++) {
+				length += captures.getEnd(i) - captures.getStart(i);
+			}
+			return length >= 0;
+		};
+
+		abstract Object run(PathMatcher matcher, TemplateKind kind);
+
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Head to head throughput on the corpus used by {@link DifferentialFuzzTests}. The
+ * <tt>matchPair</tt> benchmark asks whether one pattern matches one path, the way
+ * framework code uses an <tt>AntPathMatcher</tt>. The <tt>matchAll</tt> benchmark asks
+ * which of all the patterns match a path: the <tt>AntPathMatcher</tt> and the
+ * {@link AntStylePathMatcher} have to try each pattern in turn, whereas the
+ * <tt>pathMatcher</tt> engine holds every pattern in one tree. For a single pattern the
+ * <tt>pathMatcher</tt> engine is the {@link AntStylePathMatcher}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AntPathMatcherComparisonBenchmark {
+
+	private static final int GROUPS = 40;
+
+	@Param({ "pathMatcher", "antStyle", "antPathMatcher" })
+	public String engine;
+
+	private List<String> templates = new ArrayList<>();
+
+	private String[] paths;
+
+	private String[] pairTemplates;
+
+	private PathMatcher tree;
+
+	private AntStylePathMatcher antStyle;
+
+	private ReferenceAntPathMatcher ant;
+
+	private int[] ids;
+
+	private int next;
+
+	@Setup
+	public void setup() {
+		List<String> allPaths = new ArrayList<>();
+		for (long seed = 0; seed < GROUPS; seed++) {
+			FuzzCorpus corpus = new FuzzCorpus(seed, false);
+			List<String> group = corpus.templates(8);
+			group.removeIf(t -> t.contains("{*"));
+			templates.addAll(group);
+			allPaths.addAll(corpus.paths(group, 50));
+		}
+		paths = allPaths.toArray(new String[allPaths.size()]);
+		tree = new PathMatcher();
+		for (String template : templates) {
+			tree.addURITemplate(new DifferentialFuzzTests.FuzzTemplate(template));
+		}
+		ids = new int[tree.getTemplateCount()];
+		antStyle = new AntStylePathMatcher();
+		ant = new ReferenceAntPathMatcher(false, true);
+		// Pair each path with a pattern from the group it was generated for
+		pairTemplates = new String[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			pairTemplates[i] = templates.get((int) ((long) i * templates.size() / paths.length));
+		}
+	}
+
+	private int nextIndex() {
+		int index = next;
+		if (++next == paths.length) {
+			next = 0;
+		}
+		return index;
+	}
+
+	@Benchmark
+	public boolean matchPair() {
+		int i = nextIndex();
+		switch (engine) {
+		case "pathMatcher":
+		case "antStyle":
+			return antStyle.match(pairTemplates[i], paths[i]);
+		default:
+			return ant.match(pairTemplates[i], paths[i]);
+		}
+	}
+
+	@Benchmark
+	public int matchAll() {
+		String path = paths[nextIndex()];
+		switch (engine) {
+		case "pathMatcher":
+			return tree.findAllMatchIds(path, ids);
+		case "antStyle": {
+			int count = 0;
+			for (int t = 0, max = templates.size(); t < max; t++) {
+				if (antStyle.match(templates.get(t), path)) {
+					count++;
+				}
+			}
+			return count;
+		}
+		default: {
+			int count = 0;
+			for (int t = 0, max = templates.size(); t < max; t++) {
+				if (ant.match(templates.get(t), path)) {
+					count++;
+				}
+			}
+			return count;
+		}
+		}
+	}
+
+}
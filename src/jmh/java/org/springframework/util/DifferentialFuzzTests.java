@@ -0,0 +1,422 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Compares the different ways of matching with a {@link PathMatcher} against each other,
+ * and against Spring's <tt>AntPathMatcher</tt>, over a seeded {@link FuzzCorpus}. Run with
+ * <tt>./mvnw -Pjmh test</tt>. A failure reports the seed, template and path, and the
+ * corpus can be regenerated from the seed to reproduce it.
+ */
+public class DifferentialFuzzTests {
+
+	private static final int GROUPS = 300;
+
+	private static final int TEMPLATES_PER_GROUP = 8;
+
+	private static final int PATHS_PER_GROUP = 200;
+
+	private static final int MAX_REPORTED = 20;
+
+	// Templates are registered with one of this many tags, in turn
+	private static final int TAGS = 3;
+
+	// One path in this many is also matched with a listener registered
+	private static final int LISTENED_PATH_INTERVAL = 8;
+
+	private final List<String> problems = new ArrayList<>();
+
+	@Test
+	public void enginesAgree() {
+		for (long seed = 0; seed < GROUPS; seed++) {
+			compareEngines(seed, new PathMatcher(), false, false);
+			compareEngines(seed, new PathMatcher(PathMatcher.DEFAULT_PATH_SEPARATOR, false, false), false, false);
+			compareEngines(seed, new PathMatcher(PathMatcher.DEFAULT_PATH_SEPARATOR, true, true), true, false);
+			PathMatcher lenient = new PathMatcher();
+			lenient.setTrailingSeparatorMatch(true);
+			lenient.setSuffixMatch(true);
+			compareEngines(seed, lenient, false, false);
+			PathMatcher encoded = new PathMatcher();
+			encoded.setEncodedPaths(true);
+			compareEngines(seed, encoded, false, true);
+			PathMatcher normalizing = new PathMatcher();
+			normalizing.setNormalizations(PathMatcher.Normalization.values());
+			compareEngines(seed, normalizing, false, true);
+			PathMatcher everything = new PathMatcher(PathMatcher.DEFAULT_PATH_SEPARATOR, true, false);
+			everything.setEncodedPaths(true);
+			everything.setNormalizations(PathMatcher.Normalization.values());
+			everything.setTrailingSeparatorMatch(true);
+			everything.setSuffixMatch(true);
+			compareEngines(seed, everything, true, true);
+			PathMatcher limited = new PathMatcher();
+			limited.setMaxSeparators(4);
+			limited.setMaxNodeVisits(24);
+			limited.setMaxRegexSteps(32);
+			compareEngines(seed, limited, false, false);
+		}
+		report();
+	}
+
+	@Test
+	public void agreesWithAntPathMatcher() {
+		for (long seed = 0; seed < GROUPS; seed++) {
+			compareWithAnt(seed, false, true);
+			compareWithAnt(seed, false, false);
+			compareWithAnt(seed, true, true);
+		}
+		report();
+	}
+
+	/**
+	 * Every way of asking for all the matches must report the same templates in the same
+	 * order, and those that capture must capture the same values. The first match, the
+	 * matches for a tag, the events seen by a listener and running out of a limit must
+	 * also be the same whichever way is used.
+	 *
+	 * @param decorate whether to add percent encoding, dot segments and the like to the paths
+	 */
+	private void compareEngines(long seed, PathMatcher matcher, boolean whitespace, boolean decorate) {
+		FuzzCorpus corpus = new FuzzCorpus(seed, whitespace);
+		List<String> templates = corpus.templates(TEMPLATES_PER_GROUP);
+		for (int t = 0; t < templates.size(); t++) {
+			matcher.addURITemplate(new FuzzTemplate(templates.get(t)), tagOf(t));
+		}
+		int[] ids = new int[templates.size()];
+		PathMatcher.IncrementalMatcher incremental = matcher.newIncrementalMatcher();
+		List<String> paths = corpus.paths(templates, PATHS_PER_GROUP);
+		for (int p = 0; p < paths.size(); p++) {
+			String path = decorate ? decorate(paths.get(p), p) : paths.get(p);
+			String context = "seed " + seed + " path '" + path + "' templates " + templates;
+			List<MatchResult> all;
+			try {
+				all = matcher.findAllMatches(path);
+			} catch (MatchLimitExceededException mlee) {
+				compareLimitExceeded(matcher, path, ids, context);
+				continue;
+			}
+			List<String> expected = texts(all);
+
+			List<String> iterated = new ArrayList<>();
+			List<Map<String, String>> iteratedCaptures = new ArrayList<>();
+			for (Iterator<MatchResult> it = matcher.iterateMatches(path); it.hasNext();) {
+				MatchResult result = it.next();
+				iterated.add(result.getMatchingTemplate().getTemplateText());
+				iteratedCaptures.add(result.getCapturedVariables());
+			}
+			check(expected, iterated, "iterateMatches", context);
+			check(captures(all), iteratedCaptures, "findAllMatches captures", context);
+
+			List<String> visited = new ArrayList<>();
+			List<Map<String, String>> visitedCaptures = new ArrayList<>();
+			matcher.findAllMatches(path, (template, id, captures) -> {
+				visited.add(template.getTemplateText());
+				Map<String, String> values = new LinkedHashMap<>();
+				for (int i = 0; i < captures.getCaptureCount(); i++) {
+					values.put(captures.getName(i), captures.getPath().substring(captures.getStart(i), captures.getEnd(i)));
+				}
+				visitedCaptures.add(values);
+				return true;
+			});
+			check(expected, visited, "findAllMatches(visitor)", context);
+			check(iteratedCaptures, visitedCaptures, "visitor captures", context);
+
+			int count = matcher.findAllMatchIds(path, ids);
+			List<String> byId = new ArrayList<>();
+			for (int i = 0; i < count; i++) {
+				byId.add(matcher.getTemplate(ids[i]).getTemplateText());
+			}
+			check(expected, byId, "findAllMatchIds(int[])", context);
+
+			BitSet bits = new BitSet();
+			check(count, matcher.findAllMatchIds(path, bits), "findAllMatchIds(BitSet)", context);
+			check(!expected.isEmpty(), matcher.matches(path), "matches", context);
+			List<MatchResult> firstMatch = matcher.findFirstMatch(path);
+			check(first(expected), first(texts(firstMatch)), "findFirstMatch", context);
+			if (firstMatch != null && !iteratedCaptures.isEmpty()) {
+				check(iteratedCaptures.get(0), firstMatch.get(0).getCapturedVariables(), "findFirstMatch captures", context);
+			}
+			check(expected.isEmpty() ? -1 : matcher.getTemplateId(matcher.findAllMatches(path).get(0).getMatchingTemplate()),
+					matcher.findFirstMatchId(path), "findFirstMatchId", context);
+
+			for (int tag = 0; tag < TAGS; tag++) {
+				long requiredTags = 1L << tag;
+				List<String> tagged = new ArrayList<>();
+				for (String text : expected) {
+					if ((tagOf(templates.indexOf(text)) & requiredTags) != 0) {
+						tagged.add(text);
+					}
+				}
+				String taggedContext = context + " tag " + tag;
+				check(tagged, texts(matcher.findAllMatches(path, requiredTags)), "findAllMatches(tags)", taggedContext);
+				check(first(tagged), first(texts(matcher.findFirstMatch(path, requiredTags))), "findFirstMatch(tags)", taggedContext);
+				check(!tagged.isEmpty(), matcher.matches(path, requiredTags), "matches(tags)", taggedContext);
+			}
+
+			if (p % LISTENED_PATH_INTERVAL == 0) {
+				List<String> events = events(matcher, () -> matcher.findAllMatches(path));
+				check(events, events(matcher, () -> matcher.findAllMatches(path, (template, id, captures) -> true)),
+						"listener events of findAllMatches(visitor)", context);
+				check(events, events(matcher, () -> matcher.findAllMatchIds(path, ids)),
+						"listener events of findAllMatchIds", context);
+			}
+
+			if (path.startsWith("/") && !decorate) {
+				incremental.reset();
+				try {
+					for (String element : path.substring(1).split("/", -1)) {
+						incremental.feed(element);
+					}
+				} catch (MatchLimitExceededException mlee) {
+					// It tries each element against every template that is still possible rather
+					// than walking the tree, so uses up the limits differently
+					continue;
+				}
+				count = incremental.getMatchIds(ids);
+				Set<String> fed = new TreeSet<>();
+				for (int i = 0; i < count; i++) {
+					fed.add(matcher.getTemplate(ids[i]).getTemplateText());
+				}
+				check(new TreeSet<>(expected), fed, "IncrementalMatcher", context);
+			}
+		}
+	}
+
+	/**
+	 * When finding all the matches runs out of one of the limits, so must every other way
+	 * of finding them all.
+	 */
+	private void compareLimitExceeded(PathMatcher matcher, String path, int[] ids, String context) {
+		check(true, exceedsLimit(() -> matcher.iterateMatches(path).forEachRemaining(result -> {})),
+				"iterateMatches exceeding a limit", context);
+		check(true, exceedsLimit(() -> matcher.findAllMatches(path, (template, id, captures) -> true)),
+				"findAllMatches(visitor) exceeding a limit", context);
+		check(true, exceedsLimit(() -> matcher.findAllMatchIds(path, ids)), "findAllMatchIds(int[]) exceeding a limit", context);
+		check(true, exceedsLimit(() -> matcher.findAllMatchIds(path, new BitSet())),
+				"findAllMatchIds(BitSet) exceeding a limit", context);
+	}
+
+	private boolean exceedsLimit(Runnable match) {
+		try {
+			match.run();
+			return false;
+		} catch (MatchLimitExceededException mlee) {
+			return true;
+		}
+	}
+
+	/**
+	 * @return what a listener is told while the match runs
+	 */
+	private List<String> events(PathMatcher matcher, Runnable match) {
+		List<String> events = new ArrayList<>();
+		matcher.setMatchListener(new MatchListener() {
+
+			@Override
+			public void segmentVisited(String segment, int pathIndex) {
+				events.add("visited " + segment + " at " + pathIndex);
+			}
+
+			@Override
+			public void segmentRejected(String segment, int pathIndex, Rejection reason) {
+				events.add("rejected " + segment + " at " + pathIndex + " " + reason);
+			}
+
+			@Override
+			public void backtracked(String segment, int fromPathIndex, int toPathIndex) {
+				events.add("backtracked " + segment + " from " + fromPathIndex + " to " + toPathIndex);
+			}
+
+			@Override
+			public void matchFound(URITemplate template) {
+				events.add("matched " + template);
+			}
+
+		});
+		try {
+			match.run();
+		} finally {
+			matcher.setMatchListener(null);
+		}
+		return events;
+	}
+
+	/**
+	 * @return the tags the template at the specified index of the corpus is registered with
+	 */
+	private static long tagOf(int index) {
+		return 1L << (index % TAGS);
+	}
+
+	/**
+	 * @return the path with something added that encoding or normalization removes again,
+	 *         varying with the index
+	 */
+	private String decorate(String path, int index) {
+		int slash = path.indexOf('/', 1);
+		String head = slash == -1 ? path : path.substring(0, slash);
+		String tail = slash == -1 ? "" : path.substring(slash);
+		switch (index % 6) {
+		case 1:
+			return path.replace("a", "%61");
+		case 2:
+			return head + "/./x/.." + tail;
+		case 3:
+			return head + "/" + tail;
+		case 4:
+			return head + ";p=1" + tail;
+		case 5:
+			return path + "?q=a/b";
+		default:
+			return path;
+		}
+	}
+
+	/**
+	 * Each template on its own must match the same paths as the <tt>AntPathMatcher</tt> and
+	 * extract the same variables. Templates using <tt>{*x}</tt> are skipped, the
+	 * <tt>AntPathMatcher</tt> does not support them, as are paths on which it is known to
+	 * behave differently.
+	 */
+	private void compareWithAnt(long seed, boolean trimTokens, boolean caseSensitive) {
+		FuzzCorpus corpus = new FuzzCorpus(seed, trimTokens);
+		List<String> templates = corpus.templates(TEMPLATES_PER_GROUP);
+		List<String> paths = corpus.paths(templates, PATHS_PER_GROUP);
+		ReferenceAntPathMatcher ant = new ReferenceAntPathMatcher(trimTokens, caseSensitive);
+		AntStylePathMatcher facade = new AntStylePathMatcher();
+		facade.setTrimTokens(trimTokens);
+		facade.setCaseSensitive(caseSensitive);
+		for (String template : templates) {
+			if (template.contains("{*")) {
+				continue;
+			}
+			for (String path : paths) {
+				if (knownDifference(path, trimTokens, caseSensitive)) {
+					continue;
+				}
+				String context = "seed " + seed + " trimTokens=" + trimTokens + " caseSensitive=" + caseSensitive
+						+ " template '" + template + "' path '" + path + "'";
+				boolean expected = ant.match(template, path);
+				if (!check(expected, facade.match(template, path), "match", context)) {
+					continue;
+				}
+				if (expected) {
+					check(ant.extractUriTemplateVariables(template, path),
+							facade.extractUriTemplateVariables(template, path), "extractUriTemplateVariables", context);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true for paths where the <tt>AntPathMatcher</tt> is known to behave differently
+	 */
+	private boolean knownDifference(String path, boolean trimTokens, boolean caseSensitive) {
+		if (path.length() == 0) {
+			// It rejects a path that does not start with a separator when the pattern does,
+			// before considering whether ** could match nothing
+			return true;
+		}
+		String[] elements = path.split("/", -1);
+		for (int i = 1; i < elements.length; i++) {
+			if ((trimTokens ? elements[i].trim() : elements[i]).length() == 0) {
+				// It drops empty elements rather than letting * or {x} match them, except
+				// for a trailing separator which it treats differently when the pattern has **
+				return true;
+			}
+		}
+		if (!caseSensitive) {
+			// Its regular expressions only fold the case of ASCII letters
+			for (int i = 0; i < path.length(); i++) {
+				if (path.charAt(i) > 0x7F) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private List<String> texts(List<MatchResult> results) {
+		if (results == null) {
+			return new ArrayList<>();
+		}
+		List<String> texts = new ArrayList<>(results.size());
+		for (MatchResult result : results) {
+			texts.add(result.getMatchingTemplate().getTemplateText());
+		}
+		return texts;
+	}
+
+	private List<Map<String, String>> captures(List<MatchResult> results) {
+		List<Map<String, String>> captures = new ArrayList<>(results.size());
+		for (MatchResult result : results) {
+			captures.add(result.getCapturedVariables());
+		}
+		return captures;
+	}
+
+	private String first(List<String> texts) {
+		return texts.isEmpty() ? "no match" : texts.get(0);
+	}
+
+	private boolean check(Object expected, Object actual, String what, String context) {
+		if (expected.equals(actual)) {
+			return true;
+		}
+		if (problems.size() < MAX_REPORTED) {
+			problems.add(what + ": expected " + expected + " but was " + actual + " for " + context);
+		}
+		return false;
+	}
+
+	private void report() {
+		if (!problems.isEmpty()) {
+			fail(problems.size() + " differences (at most " + MAX_REPORTED + " shown):\n" + String.join("\n", problems));
+		}
+	}
+
+	static class FuzzTemplate implements URITemplate {
+
+		private final String templateText;
+
+		FuzzTemplate(String templateText) {
+			this.templateText = templateText;
+		}
+
+		@Override
+		public String getTemplateText() {
+			return templateText;
+		}
+
+		public String toString() {
+			return templateText;
+		}
+
+	}
+
+}
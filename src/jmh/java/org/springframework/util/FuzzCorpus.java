@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates small groups of templates that use every kind of segment (<tt>?</tt>,
+ * <tt>*</tt>, <tt>{x}</tt>, <tt>{x:regex}</tt>, <tt>**</tt> and <tt>{*x}</tt>, with up
+ * to two <tt>**</tt> in a template) together
+ * with paths to try against them. The vocabulary is kept small, so templates in a group
+ * overlap and a path is often matched by several of them. Most paths are derived from a
+ * template and then perturbed: their case is changed, unicode or whitespace is added,
+ * or an element is dropped, duplicated or altered. The same seed always produces the
+ * same corpus.
+ */
+class FuzzCorpus {
+
+	private static final String[] WORDS = { "a", "b", "ab", "foo", "bar", "Foo", "café", "日本", "x.y", "a-b", "v1" };
+
+	private static final String[] VALUES = { "1", "42", "abc", "ABC", "x.y", "ünï", "日本語", "a-b", "foo", "Bar" };
+
+	private static final String[] CONSTRAINTS = { "[0-9]+", "[a-z]+", "\\w+", "[\\p{L}]+", "f.*" };
+
+	private final Random random;
+
+	private final boolean whitespace;
+
+	/**
+	 * @param whitespace whether paths may have spaces around their elements, only useful
+	 *        for matchers that trim tokens
+	 */
+	FuzzCorpus(long seed, boolean whitespace) {
+		this.random = new Random(seed);
+		this.whitespace = whitespace;
+	}
+
+	/**
+	 * @return distinct templates, all starting with a separator
+	 */
+	List<String> templates(int count) {
+		Set<String> templates = new LinkedHashSet<>();
+		int attempts = 0;
+		while (templates.size() < count && attempts++ < count * 20) {
+			templates.add(template());
+		}
+		return new ArrayList<>(templates);
+	}
+
+	private String template() {
+		int depth = 1 + random.nextInt(4);
+		StringBuilder template = new StringBuilder();
+		int captures = 0;
+		int doubleStars = 0;
+		for (int level = 0; level < depth; level++) {
+			template.append('/');
+			boolean last = level == depth - 1;
+			int kind = random.nextInt(last ? 9 : 8);
+			switch (kind) {
+			case 0:
+			case 1:
+			case 2:
+				template.append(word());
+				break;
+			case 3: {
+				String word = word();
+				int at = random.nextInt(word.length());
+				template.append(word, 0, at).append('?').append(word, at + 1, word.length());
+				break;
+			}
+			case 4:
+				switch (random.nextInt(3)) {
+				case 0:
+					template.append('*');
+					break;
+				case 1:
+					template.append(word()).append('*');
+					break;
+				default:
+					template.append('*').append(word());
+				}
+				break;
+			case 5:
+				template.append("{v").append(captures++).append('}');
+				if (random.nextInt(4) == 0) {
+					// A capture sharing an element with literal text
+					template.append('.').append(word());
+				}
+				break;
+			case 6:
+				template.append("{v").append(captures++).append(':')
+						.append(CONSTRAINTS[random.nextInt(CONSTRAINTS.length)]).append('}');
+				break;
+			case 7:
+				if (doubleStars++ < 2) {
+					template.append("**");
+				} else {
+					template.append(word());
+				}
+				break;
+			default:
+				template.append("{*rest}");
+			}
+		}
+		return template.toString();
+	}
+
+	/**
+	 * @return paths to match, mostly derived from the templates
+	 */
+	List<String> paths(List<String> templates, int count) {
+		List<String> paths = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			if (random.nextInt(10) == 0) {
+				paths.add(randomPath());
+			} else {
+				paths.add(perturb(pathFor(templates.get(random.nextInt(templates.size())))));
+			}
+		}
+		return paths;
+	}
+
+	private String randomPath() {
+		StringBuilder path = new StringBuilder();
+		for (int i = 0, max = random.nextInt(5); i < max; i++) {
+			path.append('/').append(random.nextBoolean() ? word() : value());
+		}
+		return path.length() == 0 ? "/" : path.toString();
+	}
+
+	private String pathFor(String template) {
+		StringBuilder path = new StringBuilder();
+		for (String element : template.substring(1).split("/", -1)) {
+			path.append('/');
+			if (element.equals("**") || element.equals("{*rest}")) {
+				int extra = random.nextInt(3);
+				if (extra == 0 && element.equals("**")) {
+					path.setLength(path.length() - 1);
+				}
+				for (int e = 0; e < extra; e++) {
+					path.append(e == 0 ? "" : "/").append(random.nextBoolean() ? word() : value());
+				}
+				if (extra == 0 && element.equals("{*rest}")) {
+					path.append(value());
+				}
+			} else if (element.startsWith("{")) {
+				path.append(value());
+				int dot = element.indexOf("}.");
+				if (dot != -1) {
+					path.append(element.substring(dot + 1));
+				}
+			} else {
+				for (int c = 0; c < element.length(); c++) {
+					char ch = element.charAt(c);
+					if (ch == '*') {
+						if (random.nextBoolean()) {
+							path.append(value());
+						}
+					} else if (ch == '?') {
+						path.append(WORDS[random.nextInt(WORDS.length)].charAt(0));
+					} else {
+						path.append(ch);
+					}
+				}
+			}
+		}
+		return path.toString();
+	}
+
+	private String perturb(String path) {
+		switch (random.nextInt(8)) {
+		case 0:
+			return flipCase(path);
+		case 1:
+			if (whitespace && path.length() != 0) {
+				// Never before the leading separator, the AntPathMatcher checks for that before trimming
+				return "/" + path.substring(1).replace("/", random.nextBoolean() ? " / " : "/ ") + (random.nextBoolean() ? " " : "");
+			}
+			return path;
+		case 2: {
+			// Drop the last element
+			int slash = path.lastIndexOf('/');
+			return slash <= 0 ? path : path.substring(0, slash);
+		}
+		case 3:
+			return path + "/" + word();
+		case 4: {
+			// Alter one character
+			if (path.length() < 2) {
+				return path;
+			}
+			int at = 1 + random.nextInt(path.length() - 1);
+			return path.charAt(at) == '/' ? path : path.substring(0, at) + 'z' + path.substring(at + 1);
+		}
+		case 5:
+			// For trailing separator matching
+			return path + "/";
+		case 6:
+			// For suffix matching
+			return path + "." + word();
+		default:
+			return path;
+		}
+	}
+
+	private String flipCase(String path) {
+		StringBuilder flipped = new StringBuilder(path.length());
+		for (int i = 0; i < path.length(); i++) {
+			char ch = path.charAt(i);
+			flipped.append(random.nextBoolean() ? Character.toUpperCase(ch) : ch);
+		}
+		return flipped.toString();
+	}
+
+	private String word() {
+		return WORDS[random.nextInt(WORDS.length)];
+	}
+
+	private String value() {
+		return VALUES[random.nextInt(VALUES.length)];
+	}
+
+}
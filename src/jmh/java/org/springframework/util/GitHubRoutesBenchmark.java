@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The matcher operations run against a realistic table of about 650 routes modelled on
+ * the GitHub REST API. Each invocation matches the next path from a pool covering every
+ * route, so branch prediction and caches see a spread of inputs rather than one hot path.
+ * 
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GitHubRoutesBenchmark {
+
+	@Param({ "hit", "miss" })
+	public String paths;
+
+	private PathMatcher matcher;
+
+	private String[] pool;
+
+	private String[] prefixPool;
+
+	private int next;
+
+	private int nextPrefix;
+
+	@Setup
+	public void setup() {
+		RouteTable table = RouteTable.load("github-api-routes.txt");
+		matcher = table.buildMatcher();
+		pool = "hit".equals(paths) ? table.matchingPaths() : table.nonMatchingPaths(matcher);
+		prefixPool = table.prefixPaths(2);
+	}
+
+	private String nextPath() {
+		String path = pool[next];
+		if (++next == pool.length) {
+			next = 0;
+		}
+		return path;
+	}
+
+	@Benchmark
+	public boolean matches() {
+		return matcher.matches(nextPath());
+	}
+
+	@Benchmark
+	public Object findAllMatches() {
+		return matcher.findAllMatches(nextPath());
+	}
+
+	@Benchmark
+	public Object findFirstMatch() {
+		return matcher.findFirstMatch(nextPath());
+	}
+
+	@Benchmark
+	public Object findAllPrefixMatchesStarting() {
+		String path = prefixPool[nextPrefix];
+		if (++nextPrefix == prefixPool.length) {
+			nextPrefix = 0;
+		}
+		return matcher.findAllPrefixMatchesStarting(path);
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.util.PathMatcherTests.TestURITemplate;
+
+/**
+ * The small fixed scenarios that used to be hand timed in NewPerformanceTests. Each
+ * benchmark method performs the same calls as the original measure loop body and
+ * sinks every result into the {@link Blackhole} so nothing is eliminated as dead code.
+ * 
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PathMatcherBenchmark {
+
+	private PathMatcher literal;
+
+	private PathMatcher captures;
+
+	private PathMatcher mixed;
+
+	private PathMatcher[] separate;
+
+	@Setup
+	public void setup() {
+		literal = create("/customer/foo");
+		captures = create("/customer/{id}", "/customer/book/{isbn}");
+		mixed = create("/customer/{id}", "/customer/book/{isbn}", "/customer", "/foo/{one}/*/{two}", "/{one}/**/{two}");
+		separate = new PathMatcher[] { create("/customer/{id}"), create("/customer/book/{isbn}"), create("/customer"),
+				create("/foo/{one}/*/{two}"), create("/{one}/**/{two}") };
+		verify();
+	}
+
+	/**
+	 * One literal template, a hit and two misses.
+	 */
+	@Benchmark
+	public void measure1(Blackhole bh) {
+		bh.consume(literal.matches("/customer/foo"));
+		bh.consume(literal.matches("/foo/bar"));
+		bh.consume(literal.matches("/foo"));
+	}
+
+	/**
+	 * Two capturing templates sharing a prefix.
+	 */
+	@Benchmark
+	public void measure2(Blackhole bh) {
+		bh.consume(captures.findAllMatches("/customer/99").get(0).getValue("id"));
+		bh.consume(captures.findAllMatches("/customer/book/376").get(0).getValue("isbn"));
+	}
+
+	/**
+	 * Literal, capturing, wildcard and ** templates in one matcher.
+	 */
+	@Benchmark
+	public void measure5(Blackhole bh) {
+		matchMixed(bh, mixed, mixed, mixed, mixed, mixed);
+	}
+
+	/**
+	 * The measure5 templates, each in its own matcher.
+	 */
+	@Benchmark
+	public void measure5a(Blackhole bh) {
+		matchMixed(bh, separate[0], separate[1], separate[2], separate[3], separate[4]);
+	}
+
+	private void matchMixed(Blackhole bh, PathMatcher pm1, PathMatcher pm2, PathMatcher pm3, PathMatcher pm4, PathMatcher pm5) {
+		bh.consume(pm1.findAllMatches("/customer/99").get(0).getValue("id"));
+		bh.consume(pm2.findAllMatches("/customer/book/376").get(0).getValue("isbn"));
+		bh.consume(pm3.findAllMatches("/customer"));
+		List<MatchResult> results = pm4.findAllMatches("/foo/aaa/something/bbb");
+		bh.consume(results.get(0).getValue("one"));
+		bh.consume(results.get(0).getValue("two"));
+		results = pm5.findAllMatches("/aaa/foo/bar/bbb");
+		bh.consume(results.get(0).getValue("one"));
+		bh.consume(results.get(0).getValue("two"));
+	}
+
+	private void verify() {
+		check(literal.matches("/customer/foo") && !literal.matches("/foo/bar") && !literal.matches("/foo"));
+		check("99".equals(captures.findAllMatches("/customer/99").get(0).getValue("id")));
+		check("376".equals(captures.findAllMatches("/customer/book/376").get(0).getValue("isbn")));
+		check("aaa".equals(separate[3].findAllMatches("/foo/aaa/something/bbb").get(0).getValue("one")));
+		check("bbb".equals(separate[4].findAllMatches("/aaa/foo/bar/bbb").get(0).getValue("two")));
+	}
+
+	private static void check(boolean condition) {
+		if (!condition) {
+			throw new IllegalStateException("Benchmark scenario does not produce the expected results");
+		}
+	}
+
+	private static PathMatcher create(String... templates) {
+		PathMatcher matcher = new PathMatcher();
+		for (String template : templates) {
+			matcher.addURITemplate(TestURITemplate.createFor(template));
+		}
+		return matcher;
+	}
+
+}
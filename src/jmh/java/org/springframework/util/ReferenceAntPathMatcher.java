@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Map;
+
+/**
+ * Spring's own <tt>AntPathMatcher</tt>, used as the reference the {@link PathMatcher} is
+ * compared against. It cannot be used directly: it implements spring-core's
+ * <tt>org.springframework.util.PathMatcher</tt> interface, which our class of the same
+ * name hides on the test classpath. So it is loaded from the spring-core jar by a class
+ * loader that does not delegate to the application class path.
+ */
+class ReferenceAntPathMatcher {
+
+	private static final Class<?> ANT_PATH_MATCHER = loadAntPathMatcher();
+
+	// The loader is never closed: AntPathMatcher loads further classes from it lazily, for as long as it is used
+	@SuppressWarnings("resource")
+	private static Class<?> loadAntPathMatcher() {
+		try {
+			URL springCore = StringUtils.class.getProtectionDomain().getCodeSource().getLocation();
+			ClassLoader isolated = new URLClassLoader(new URL[] { springCore }, ClassLoader.getSystemClassLoader().getParent());
+			return isolated.loadClass("org.springframework.util.AntPathMatcher");
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Unable to load AntPathMatcher from spring-core", e);
+		}
+	}
+
+	private final MethodHandle match;
+
+	private final MethodHandle extractUriTemplateVariables;
+
+	ReferenceAntPathMatcher(boolean trimTokens, boolean caseSensitive) {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Object matcher = ANT_PATH_MATCHER.getDeclaredConstructor().newInstance();
+			lookup.findVirtual(ANT_PATH_MATCHER, "setTrimTokens", MethodType.methodType(void.class, boolean.class))
+					.invoke(matcher, trimTokens);
+			lookup.findVirtual(ANT_PATH_MATCHER, "setCaseSensitive", MethodType.methodType(void.class, boolean.class))
+					.invoke(matcher, caseSensitive);
+			this.match = lookup.findVirtual(ANT_PATH_MATCHER, "match",
+					MethodType.methodType(boolean.class, String.class, String.class)).bindTo(matcher);
+			this.extractUriTemplateVariables = lookup.findVirtual(ANT_PATH_MATCHER, "extractUriTemplateVariables",
+					MethodType.methodType(Map.class, String.class, String.class)).bindTo(matcher);
+		} catch (Throwable t) {
+			throw new IllegalStateException("Unable to create AntPathMatcher", t);
+		}
+	}
+
+	boolean match(String pattern, String path) {
+		try {
+			return (boolean) match.invokeExact(pattern, path);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	Map<String, String> extractUriTemplateVariables(String pattern, String path) {
+		try {
+			return (Map<String, String>) extractUriTemplateVariables.invokeExact(pattern, path);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+}
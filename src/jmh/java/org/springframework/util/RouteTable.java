@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.util.PathMatcherTests.TestURITemplate;
+
+/**
+ * A table of route templates loaded from a classpath resource (one template per line,
+ * lines starting with # are comments) plus concrete paths derived from those templates
+ * for the benchmarks to match.
+ * 
+ */
+class RouteTable {
+
+	private final List<String> templates;
+
+	RouteTable(List<String> templates) {
+		this.templates = templates;
+	}
+
+	static RouteTable load(String resourceName) {
+		List<String> templates = new ArrayList<>();
+		try (InputStream is = RouteTable.class.getClassLoader().getResourceAsStream(resourceName)) {
+			if (is == null) {
+				throw new IllegalStateException("Unable to find route table resource " + resourceName);
+			}
+			BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() != 0 && line.charAt(0) != '#') {
+					templates.add(line);
+				}
+			}
+		} catch (IOException ioe) {
+			throw new IllegalStateException("Unable to read route table resource " + resourceName, ioe);
+		}
+		return new RouteTable(templates);
+	}
+
+	List<String> getTemplates() {
+		return templates;
+	}
+
+	PathMatcher buildMatcher() {
+		PathMatcher matcher = new PathMatcher();
+		for (String template : templates) {
+			matcher.addURITemplate(TestURITemplate.createFor(template));
+		}
+		return matcher;
+	}
+
+	/**
+	 * @return one concrete path per template, every {variable} replaced with a plausible value
+	 */
+	String[] matchingPaths() {
+		String[] paths = new String[templates.size()];
+		for (int i = 0; i < paths.length; i++) {
+			paths[i] = expand(templates.get(i), i);
+		}
+		return paths;
+	}
+
+	/**
+	 * @return paths that look like the matching ones but that no template in the table matches
+	 */
+	String[] nonMatchingPaths(PathMatcher matcher) {
+		List<String> paths = new ArrayList<>();
+		for (int i = 0; i < templates.size(); i++) {
+			String path = expand(templates.get(i), i);
+			int lastSeparator = path.lastIndexOf('/');
+			String candidate = path.substring(0, lastSeparator + 1) + "no-such-resource/" + path.substring(lastSeparator + 1);
+			if (matcher.findAllMatches(candidate).isEmpty()) {
+				paths.add(candidate);
+			}
+		}
+		return paths.toArray(new String[paths.size()]);
+	}
+
+	/**
+	 * @return the first few elements of each matching path, for prefix matching
+	 */
+	String[] prefixPaths(int elements) {
+		String[] paths = matchingPaths();
+		for (int i = 0; i < paths.length; i++) {
+			String path = paths[i];
+			int pos = 0;
+			for (int e = 0; e <= elements && pos != -1; e++) {
+				pos = path.indexOf('/', pos + 1);
+			}
+			if (pos != -1) {
+				paths[i] = path.substring(0, pos);
+			}
+		}
+		return paths;
+	}
+
+	static String expand(String template, int seed) {
+		StringBuilder path = new StringBuilder(template.length() + 16);
+		int i = 0;
+		while (i < template.length()) {
+			char ch = template.charAt(i);
+			if (ch == '{') {
+				int close = template.indexOf('}', i);
+				path.append(template, i + 1, Math.min(close, i + 4)).append(seed % 97);
+				i = close + 1;
+			} else {
+				path.append(ch);
+				i++;
+			}
+		}
+		return path.toString();
+	}
+
+}
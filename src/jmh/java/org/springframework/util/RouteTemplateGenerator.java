@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates synthetic but realistically shaped route tables. Templates are built level by
+ * level and the literal chosen at each level is drawn from a small vocabulary derived from
+ * the parent prefix, so templates share prefixes the way real route tables do and no node
+ * has more than <tt>fanOut</tt> literal children. The same seed always produces the same
+ * table, the same matching paths and the same non-matching paths.
+ * 
+ */
+class RouteTemplateGenerator {
+
+	private static final String[] WORDS = { "api", "users", "orders", "items", "accounts", "repos", "teams", "events",
+			"hooks", "settings", "billing", "reports", "admin", "search", "files", "assets", "comments", "labels",
+			"projects", "members", "keys", "tokens", "jobs", "runs", "logs", "builds", "releases", "tags", "branches",
+			"commits", "issues", "pulls", "reviews", "stats", "health", "metrics", "status", "config", "export", "import" };
+
+	private final long seed;
+
+	private double literalWeight = 0.65;
+
+	private double captureWeight = 0.25;
+
+	private double wildcardWeight = 0.08;
+
+	private double doubleStarWeight = 0.02;
+
+	private int minDepth = 1;
+
+	private int maxDepth = 6;
+
+	private int fanOut = 12;
+
+	RouteTemplateGenerator(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Relative weights of each kind of path element, a {@code **} is at most used once per template.
+	 */
+	void setMix(double literalWeight, double captureWeight, double wildcardWeight, double doubleStarWeight) {
+		double total = literalWeight + captureWeight + wildcardWeight + doubleStarWeight;
+		this.literalWeight = literalWeight / total;
+		this.captureWeight = captureWeight / total;
+		this.wildcardWeight = wildcardWeight / total;
+		this.doubleStarWeight = doubleStarWeight / total;
+	}
+
+	void setDepth(int minDepth, int maxDepth) {
+		this.minDepth = minDepth;
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * @param fanOut the maximum number of distinct literals that follow any given prefix
+	 */
+	void setFanOut(int fanOut) {
+		this.fanOut = fanOut;
+	}
+
+	/**
+	 * Generate distinct templates. If the shape settings cannot produce that many distinct
+	 * templates (for example a small depth and fan out) fewer are returned.
+	 */
+	List<String> generateTemplates(int count) {
+		Random random = new Random(seed);
+		Set<String> templates = new LinkedHashSet<>(count * 2);
+		int attempts = 0;
+		while (templates.size() < count && attempts++ < count * 20) {
+			templates.add(generateTemplate(random));
+		}
+		return new ArrayList<>(templates);
+	}
+
+	private String generateTemplate(Random random) {
+		int depth = minDepth + random.nextInt(maxDepth - minDepth + 1);
+		StringBuilder template = new StringBuilder();
+		boolean usedDoubleStar = false;
+		int captures = 0;
+		for (int level = 0; level < depth; level++) {
+			template.append('/');
+			double kind = random.nextDouble();
+			if (kind < literalWeight || level == 0) {
+				template.append(literal(template, random.nextInt(fanOut)));
+			} else if (kind < literalWeight + captureWeight) {
+				template.append("{v").append(captures++).append('}');
+			} else if (kind < literalWeight + captureWeight + wildcardWeight) {
+				String word = literal(template, random.nextInt(fanOut));
+				switch (random.nextInt(3)) {
+				case 0:
+					template.append('*');
+					break;
+				case 1:
+					template.append(word, 0, Math.min(3, word.length())).append('*');
+					break;
+				default:
+					template.append(word.charAt(0)).append('?').append(word, 2, word.length());
+				}
+			} else if (!usedDoubleStar && level < depth - 1) {
+				template.append("**");
+				usedDoubleStar = true;
+			} else {
+				template.append(literal(template, random.nextInt(fanOut)));
+			}
+		}
+		return template.toString();
+	}
+
+	/**
+	 * The choice'th literal allowed after the specified prefix.
+	 */
+	private String literal(CharSequence prefix, int choice) {
+		int h = prefix.toString().hashCode() * 31 + choice;
+		h ^= (h >>> 16);
+		String word = WORDS[(h & 0x7fffffff) % WORDS.length];
+		return choice < WORDS.length / 2 ? word : word + choice;
+	}
+
+	/**
+	 * @return for each template a concrete path that it matches
+	 */
+	String[] matchingPaths(List<String> templates) {
+		Random random = new Random(seed + 1);
+		String[] paths = new String[templates.size()];
+		for (int i = 0; i < paths.length; i++) {
+			paths[i] = toPath(templates.get(i), random);
+		}
+		return paths;
+	}
+
+	/**
+	 * @return paths shaped like the matching ones, each with one literal element replaced by
+	 * text that never appears in a generated template. A path can still be matched by some
+	 * other template (one with a capture or wildcard in that position), callers that need a
+	 * guaranteed miss should filter the result.
+	 */
+	String[] nonMatchingPaths(List<String> templates) {
+		Random random = new Random(seed + 2);
+		String[] paths = new String[templates.size()];
+		for (int i = 0; i < paths.length; i++) {
+			String[] elements = toPath(templates.get(i), random).split("/", -1);
+			int index = 1 + random.nextInt(elements.length - 1);
+			elements[index] = "zz" + elements[index];
+			paths[i] = String.join("/", elements);
+		}
+		return paths;
+	}
+
+	private String toPath(String template, Random random) {
+		StringBuilder path = new StringBuilder(template.length() + 16);
+		for (String element : template.substring(1).split("/", -1)) {
+			path.append('/');
+			if (element.equals("**")) {
+				// Drop the preceding separator when ** matches nothing
+				int extra = random.nextInt(3);
+				if (extra == 0) {
+					path.setLength(path.length() - 1);
+				}
+				for (int e = 0; e < extra; e++) {
+					path.append(e == 0 ? "" : "/").append("x").append(random.nextInt(100));
+				}
+			} else if (element.startsWith("{")) {
+				path.append(random.nextInt(100000));
+			} else {
+				for (int c = 0; c < element.length(); c++) {
+					char ch = element.charAt(c);
+					if (ch == '*') {
+						path.append("w").append(random.nextInt(10));
+					} else if (ch == '?') {
+						path.append((char) ('a' + random.nextInt(26)));
+					} else {
+						path.append(ch);
+					}
+				}
+			}
+		}
+		return path.toString();
+	}
+
+}
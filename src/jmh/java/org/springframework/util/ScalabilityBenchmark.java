@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.PathMatcherTests.TestURITemplate;
+
+/**
+ * How lookup latency, build time and heap usage grow with the number of registered
+ * templates. Tables are produced by {@link RouteTemplateGenerator} with a fixed seed so
+ * every run (and every JVM) sees exactly the same templates and paths.
+ * 
+ * <p>The retained heap of the built matcher is printed once per trial, it is measured as
+ * the difference in used heap after forced collections with and without the matcher.
+ * 
+ */
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+@State(Scope.Benchmark)
+public class ScalabilityBenchmark {
+
+	private static final long SEED = 42;
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int templateCount;
+
+	private URITemplate[] templates;
+
+	private PathMatcher matcher;
+
+	private String[] hits;
+
+	private String[] misses;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		RouteTemplateGenerator generator = new RouteTemplateGenerator(SEED);
+		List<String> texts = generator.generateTemplates(templateCount);
+		templates = new URITemplate[texts.size()];
+		for (int i = 0; i < templates.length; i++) {
+			templates[i] = TestURITemplate.createFor(texts.get(i));
+		}
+		hits = sample(generator.matchingPaths(texts));
+		String[] nearMisses = generator.nonMatchingPaths(texts);
+		long before = usedHeap();
+		matcher = build();
+		long after = usedHeap();
+		misses = sample(withoutMatches(nearMisses));
+		System.out.println();
+		System.out.println("Templates: " + templates.length + ", retained heap: " + ((after - before) / 1024) + "KB ("
+				+ ((after - before) / templates.length) + " bytes per template)");
+	}
+
+	// Another template may capture or wildcard the element that was changed to miss
+	private String[] withoutMatches(String[] paths) {
+		List<String> misses = new ArrayList<>(paths.length);
+		for (String path : paths) {
+			if (!matcher.matches(path)) {
+				misses.add(path);
+			}
+		}
+		if (misses.isEmpty()) {
+			throw new IllegalStateException("Every generated miss is matched by some template");
+		}
+		return misses.toArray(new String[misses.size()]);
+	}
+
+	// A few thousand paths is enough to defeat caching of a single hot route
+	private static String[] sample(String[] paths) {
+		int count = Math.min(paths.length, 4096);
+		String[] sample = new String[count];
+		for (int i = 0; i < count; i++) {
+			sample[i] = paths[(int) ((long) i * paths.length / count)];
+		}
+		return sample;
+	}
+
+	private PathMatcher build() {
+		PathMatcher pm = new PathMatcher();
+		for (URITemplate template : templates) {
+			pm.addURITemplate(template);
+		}
+		return pm;
+	}
+
+	private static long usedHeap() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		int next;
+
+		String next(String[] paths) {
+			String path = paths[next];
+			if (++next == paths.length) {
+				next = 0;
+			}
+			return path;
+		}
+
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 2)
+	@Measurement(iterations = 3)
+	public PathMatcher buildTime() {
+		return build();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Warmup(iterations = 3, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public Object findFirstMatchHit(Cursor cursor) {
+		return matcher.findFirstMatch(cursor.next(hits));
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Warmup(iterations = 3, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public Object findAllMatchesHit(Cursor cursor) {
+		return matcher.findAllMatches(cursor.next(hits));
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Warmup(iterations = 3, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public Object findAllMatchesMiss(Cursor cursor) {
+		return matcher.findAllMatches(cursor.next(misses));
+	}
+
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Counts the hits for each URI template across a set of access logs. Each log is memory
+ * mapped and split into chunks on line boundaries, the chunks are matched in parallel
+ * with each task keeping its own counters, and the counters are summed at the end. The
+ * request path is located in each line and copied straight from the mapped bytes into
+ * a reusable char buffer, so no string is created for a line unless its path matches
+ * no template.
+ *
+ * <p>The request path is taken from the quoted request line used by the common and
+ * combined log formats (<tt>"GET /path?query HTTP/1.1"</tt>), or failing that the first
+ * field that starts with the separator. Any query string is ignored.
+ *
+ * <p>Run from the command line with:
+ * <pre>
+ * java org.springframework.util.AccessLogAnalyzer [-threads n] [-unmatched n] templateFile logFile...
+ * </pre>
+ * where the template file holds one template per line. The output lists
+ * <tt>count&lt;TAB&gt;templateText</tt> for each template that was hit, most hit first,
+ * followed by the paths that matched nothing.
+ */
+public class AccessLogAnalyzer {
+
+	// Chunks are mapped individually so this also bounds the size of a mapping
+	private static final int DEFAULT_CHUNK_SIZE = 32 * 1024 * 1024;
+
+	private static final int DEFAULT_MAX_UNMATCHED = 1000;
+
+	private final PathMatcher matcher;
+
+	private final int threads;
+
+	private final int chunkSize;
+
+	private final int maxUnmatched;
+
+	public AccessLogAnalyzer(PathMatcher matcher) {
+		this(matcher, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE, DEFAULT_MAX_UNMATCHED);
+	}
+
+	/**
+	 * @param matcher the matcher holding the templates to count hits for
+	 * @param threads the number of chunks to match at once
+	 * @param chunkSize the approximate number of bytes of log given to each task
+	 * @param maxUnmatched the number of distinct unmatched paths to record, both by each task and in the
+	 *        report, beyond that they are only counted
+	 */
+	public AccessLogAnalyzer(PathMatcher matcher, int threads, int chunkSize, int maxUnmatched) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Thread count must be positive but was " + threads);
+		}
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be positive but was " + chunkSize);
+		}
+		this.matcher = matcher;
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+		this.maxUnmatched = maxUnmatched;
+	}
+
+	/**
+	 * Match every line of the specified logs.
+	 */
+	public Report analyze(List<Path> logs) throws IOException {
+		Report report = new Report(matcher, maxUnmatched);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<FileChannel> channels = new ArrayList<>();
+		try {
+			List<Future<Counts>> results = new ArrayList<>();
+			for (Path log : logs) {
+				FileChannel channel = FileChannel.open(log, StandardOpenOption.READ);
+				channels.add(channel);
+				long size = channel.size();
+				long start = 0;
+				while (start < size) {
+					long end = lineBoundary(channel, Math.min(size, start + chunkSize));
+					long chunkStart = start;
+					results.add(executor.submit(() -> new Chunk(channel, chunkStart, end).match()));
+					start = end;
+				}
+			}
+			for (Future<Counts> result : results) {
+				report.add(result.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted whilst analyzing logs", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException("Failed to analyze logs", e.getCause());
+		} finally {
+			executor.shutdownNow();
+			for (FileChannel channel : channels) {
+				channel.close();
+			}
+		}
+		return report;
+	}
+
+	/**
+	 * @return the position just after the first newline at or after the specified position, or the end of the file
+	 */
+	private static long lineBoundary(FileChannel channel, long position) throws IOException {
+		long size = channel.size();
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return size;
+	}
+
+	/**
+	 * The counts gathered by a single task.
+	 */
+	static class Counts {
+
+		final long[] hits;
+
+		final Map<String, Long> unmatched = new HashMap<>();
+
+		long lines;
+
+		long unmatchedLines;
+
+		Counts(int templateCount) {
+			this.hits = new long[templateCount];
+		}
+
+	}
+
+	/**
+	 * A range of a log, starting at the beginning of a line and ending just after a newline (or at the end of the file).
+	 */
+	class Chunk {
+
+		private final FileChannel channel;
+
+		private final long start;
+
+		private final long end;
+
+		private char[] path = new char[256];
+
+		private int[] ids = new int[16];
+
+		Chunk(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		Counts match() throws IOException {
+			Counts counts = new Counts(matcher.getTemplateCount());
+			MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			int limit = bytes.limit();
+			int lineStart = 0;
+			while (lineStart < limit) {
+				int lineEnd = lineStart;
+				while (lineEnd < limit && bytes.get(lineEnd) != '\n') {
+					lineEnd++;
+				}
+				matchLine(bytes, lineStart, lineEnd, counts);
+				lineStart = lineEnd + 1;
+			}
+			return counts;
+		}
+
+		private void matchLine(ByteBuffer bytes, int lineStart, int lineEnd, Counts counts) {
+			int pathStart = findPath(bytes, lineStart, lineEnd);
+			if (pathStart == -1) {
+				return;
+			}
+			counts.lines++;
+			int length = 0;
+			for (int i = pathStart; i < lineEnd; i++) {
+				byte b = bytes.get(i);
+				if (b == ' ' || b == '"' || b == '?' || b == '\r' || b == '\t') {
+					break;
+				}
+				if (length == path.length) {
+					path = Arrays.copyOf(path, length * 2);
+				}
+				// Paths in logs are percent encoded, anything else is taken as ISO-8859-1
+				path[length++] = (char) (b & 0xFF);
+			}
+			int matches = matcher.findAllMatchIds(path, 0, length, ids);
+			if (matches > ids.length) {
+				ids = new int[Integer.highestOneBit(matches) << 1];
+				matcher.findAllMatchIds(path, 0, length, ids);
+			}
+			if (matches == 0) {
+				counts.unmatchedLines++;
+				String unmatchedPath = new String(path, 0, length);
+				Long count = counts.unmatched.get(unmatchedPath);
+				if (count != null) {
+					counts.unmatched.put(unmatchedPath, count + 1);
+				} else if (counts.unmatched.size() < maxUnmatched) {
+					counts.unmatched.put(unmatchedPath, 1L);
+				}
+			}
+			for (int i = 0; i < matches; i++) {
+				counts.hits[ids[i]]++;
+			}
+		}
+
+		/**
+		 * @return the position of the request path in the line, or -1 if the line does not contain one
+		 */
+		private int findPath(ByteBuffer bytes, int lineStart, int lineEnd) {
+			char separator = matcher.getSeparator();
+			for (int i = lineStart; i < lineEnd; i++) {
+				if (bytes.get(i) == '"') {
+					// The request line: skip the method to reach the path
+					int p = i + 1;
+					while (p < lineEnd && bytes.get(p) != ' ' && bytes.get(p) != '"') {
+						p++;
+					}
+					if (p + 1 < lineEnd && bytes.get(p) == ' ' && bytes.get(p + 1) == separator) {
+						return p + 1;
+					}
+					break;
+				}
+			}
+			for (int i = lineStart; i < lineEnd; i++) {
+				if (bytes.get(i) == separator && (i == lineStart || bytes.get(i - 1) == ' ')) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+	}
+
+	/**
+	 * The totals across all the logs analyzed.
+	 */
+	public static class Report {
+
+		private final PathMatcher matcher;
+
+		private final long[] hits;
+
+		private final Map<String, Long> unmatched = new HashMap<>();
+
+		private final int maxUnmatched;
+
+		private long lines;
+
+		private long unmatchedLines;
+
+		Report(PathMatcher matcher, int maxUnmatched) {
+			this.matcher = matcher;
+			this.hits = new long[matcher.getTemplateCount()];
+			this.maxUnmatched = maxUnmatched;
+		}
+
+		void add(Counts counts) {
+			for (int i = 0; i < hits.length; i++) {
+				hits[i] += counts.hits[i];
+			}
+			// Each task keeps its own paths, without the same limit here there could be that many per chunk
+			for (Map.Entry<String, Long> entry : counts.unmatched.entrySet()) {
+				Long count = unmatched.get(entry.getKey());
+				if (count != null) {
+					unmatched.put(entry.getKey(), count + entry.getValue());
+				} else if (unmatched.size() < maxUnmatched) {
+					unmatched.put(entry.getKey(), entry.getValue());
+				}
+			}
+			lines += counts.lines;
+			unmatchedLines += counts.unmatchedLines;
+		}
+
+		/**
+		 * @return the number of lines in which a request path was found
+		 */
+		public long getLineCount() {
+			return lines;
+		}
+
+		/**
+		 * @return the number of lines whose path matched no template
+		 */
+		public long getUnmatchedLineCount() {
+			return unmatchedLines;
+		}
+
+		public long getHits(URITemplate template) {
+			int id = matcher.getTemplateId(template);
+			return id == -1 ? 0 : hits[id];
+		}
+
+		/**
+		 * @return the hit counts keyed by template text
+		 */
+		public Map<String, Long> getHits() {
+			Map<String, Long> result = new HashMap<>();
+			for (int id = 0; id < hits.length; id++) {
+				if (hits[id] != 0) {
+					result.merge(matcher.getTemplate(id).getTemplateText(), hits[id], Long::sum);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * @return at most the configured number of distinct paths that matched nothing with
+		 *         how often each was seen, a path first seen after a task or the report had
+		 *         reached the limit is only included in the unmatched line count
+		 */
+		public Map<String, Long> getUnmatched() {
+			return unmatched;
+		}
+
+		public void print(PrintStream out) {
+			out.println("# " + lines + " requests, " + unmatchedLines + " unmatched");
+			getHits().entrySet().stream()
+					.sorted(Map.Entry.<String, Long> comparingByValue().reversed())
+					.forEach(e -> out.println(e.getValue() + "\t" + e.getKey()));
+			out.println("# unmatched");
+			unmatched.entrySet().stream()
+					.sorted(Map.Entry.<String, Long> comparingByValue().reversed())
+					.forEach(e -> out.println(e.getValue() + "\t" + e.getKey()));
+		}
+
+	}
+
+	static class LogTemplate implements URITemplate {
+
+		private final String templateText;
+
+		LogTemplate(String templateText) {
+			this.templateText = templateText;
+		}
+
+		@Override
+		public String getTemplateText() {
+			return templateText;
+		}
+
+		public String toString() {
+			return templateText;
+		}
+
+	}
+
+	public static void main(String[] args) throws IOException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int maxUnmatched = DEFAULT_MAX_UNMATCHED;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i += 2) {
+			if (i + 1 == args.length) {
+				usage();
+				return;
+			}
+			if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-unmatched")) {
+				maxUnmatched = Integer.parseInt(args[i + 1]);
+			} else {
+				usage();
+				return;
+			}
+		}
+		if (args.length - i < 2) {
+			usage();
+			return;
+		}
+		PathMatcher matcher = new PathMatcher();
+		for (String line : Files.readAllLines(Paths.get(args[i]), StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (line.length() != 0 && line.charAt(0) != '#') {
+				matcher.addURITemplate(new LogTemplate(line));
+			}
+		}
+		List<Path> logs = new ArrayList<>();
+		for (i++; i < args.length; i++) {
+			logs.add(Paths.get(args[i]));
+		}
+		long start = System.nanoTime();
+		Report report = new AccessLogAnalyzer(matcher, threads, DEFAULT_CHUNK_SIZE, maxUnmatched).analyze(logs);
+		report.print(System.out);
+		System.err.println("Analyzed " + report.getLineCount() + " requests in " + (System.nanoTime() - start) / 1000000 + "ms");
+	}
+
+	private static void usage() {
+		System.err.println("Usage: AccessLogAnalyzer [-threads n] [-unmatched n] templateFile logFile...");
+		System.err.println("  -unmatched n  the number of distinct unmatched paths to list, default " + DEFAULT_MAX_UNMATCHED);
+	}
+
+}
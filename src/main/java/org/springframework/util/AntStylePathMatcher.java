@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Offers the ad-hoc <tt>match(pattern, path)</tt> style of API found on Spring's
+ * <tt>AntPathMatcher</tt>, so that code written against that can use the faster
+ * segment chain matching. Each pattern is compiled once into a chain of segments of
+ * its own and the compiled forms are held in a concurrent cache keyed by pattern text.
+ * They are all matched using the per-thread state of one {@link PathMatcher}, so a
+ * cached pattern costs little more than its segments.
+ *
+ * <p>As with <tt>AntPathMatcher</tt>, unless caching has been explicitly requested the
+ * cache is switched off and emptied once it holds more than
+ * {@value #CACHE_TURNOFF_THRESHOLD} patterns, since that suggests patterns are being
+ * built dynamically (for example from request data) and caching them would just
+ * consume memory.
+ */
+public class AntStylePathMatcher {
+
+	static final int CACHE_TURNOFF_THRESHOLD = 65536;
+
+	private char separator = PathMatcher.DEFAULT_PATH_SEPARATOR;
+
+	private boolean trimTokens = false;
+
+	private boolean caseSensitive = true;
+
+	// Null means cache until the threshold is reached
+	private volatile Boolean cachePatterns;
+
+	// Compiles the patterns and lends them its per-thread state, replaced when the configuration changes
+	private volatile PathMatcher matcher = new PathMatcher();
+
+	final Map<String, PathMatcher.CompiledTemplate> patternCache = new ConcurrentHashMap<>(256);
+
+	public void setPathSeparator(String pathSeparator) {
+		if (pathSeparator == null || pathSeparator.length() != 1) {
+			throw new IllegalArgumentException("Path separator must be a single character but was '" + pathSeparator + "'");
+		}
+		this.separator = pathSeparator.charAt(0);
+		reconfigure();
+	}
+
+	public void setTrimTokens(boolean trimTokens) {
+		this.trimTokens = trimTokens;
+		reconfigure();
+	}
+
+	public void setCaseSensitive(boolean caseSensitive) {
+		this.caseSensitive = caseSensitive;
+		reconfigure();
+	}
+
+	private void reconfigure() {
+		matcher = new PathMatcher(separator, trimTokens, caseSensitive);
+		patternCache.clear();
+	}
+
+	/**
+	 * Specify whether compiled patterns are cached: <tt>true</tt> always caches them,
+	 * <tt>false</tt> never does. By default they are cached until there are more than
+	 * {@value #CACHE_TURNOFF_THRESHOLD} of them.
+	 */
+	public void setCachePatterns(boolean cachePatterns) {
+		this.cachePatterns = cachePatterns;
+		if (!cachePatterns) {
+			patternCache.clear();
+		}
+	}
+
+	/**
+	 * @return true if the text contains any wildcards or variables, rather than being a literal path
+	 */
+	public boolean isPattern(String path) {
+		return (path.indexOf('*') != -1 || path.indexOf('?') != -1 || path.indexOf('{') != -1);
+	}
+
+	public boolean match(String pattern, String path) {
+		return getCompiledPattern(pattern).matches(path);
+	}
+
+	/**
+	 * @return true if the path matches the start of the pattern, so that more path could produce a match
+	 */
+	public boolean matchStart(String pattern, String path) {
+		return getCompiledPattern(pattern).matchesStart(path);
+	}
+
+	/**
+	 * Extract the variables from the path, for example the pattern <tt>/hotels/{hotel}</tt>
+	 * and path <tt>/hotels/1</tt> give a map of <tt>hotel=1</tt>.
+	 * @throws IllegalStateException if the path does not match the pattern
+	 */
+	public Map<String, String> extractUriTemplateVariables(String pattern, String path) {
+		MatchResult match = getCompiledPattern(pattern).match(path);
+		if (match == null) {
+			throw new IllegalStateException("Pattern \"" + pattern + "\" is not a match for \"" + path + "\"");
+		}
+		return new LinkedHashMap<>(match.getCapturedVariables());
+	}
+
+	private PathMatcher.CompiledTemplate getCompiledPattern(String pattern) {
+		PathMatcher.CompiledTemplate compiled = patternCache.get(pattern);
+		if (compiled == null) {
+			compiled = matcher.compile(new PatternTemplate(pattern));
+			Boolean cache = this.cachePatterns;
+			if (cache == null && patternCache.size() >= CACHE_TURNOFF_THRESHOLD) {
+				// Looks like patterns are not a fixed set, stop caching them
+				this.cachePatterns = cache = Boolean.FALSE;
+				patternCache.clear();
+			}
+			if (cache == null || cache) {
+				patternCache.put(pattern, compiled);
+			}
+		}
+		return compiled;
+	}
+
+	static class PatternTemplate implements URITemplate {
+
+		private final String pattern;
+
+		PatternTemplate(String pattern) {
+			this.pattern = pattern;
+		}
+
+		@Override
+		public String getTemplateText() {
+			return pattern;
+		}
+
+		public String toString() {
+			return pattern;
+		}
+
+	}
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.springframework.util.PathMatcher.IncrementalMatcher;
+import org.springframework.util.PathMatcher.Progress;
+
+/**
+ * Finds the files below a directory that match the templates of a {@link PathMatcher}.
+ * Each file is matched by its path relative to the directory, so <tt>/src/main/**&#47;*.java</tt>
+ * selects the Java sources below <tt>src/main</tt>. The elements of the path are given to
+ * the matcher as they are, so its separator does not need to be the one the file system
+ * uses.
+ *
+ * <p>Directories are walked with {@link Files#walkFileTree} and one that no template can
+ * match anything below is skipped rather than walked, using an
+ * {@link IncrementalMatcher} that is given one more element for each directory entered.
+ * Each subdirectory that is not skipped is walked by a task of its own on a fork-join
+ * pool, so sibling directories are walked in parallel.
+ */
+public class FileTreeScanner {
+
+	private static final Object END = new Object();
+
+	private final PathMatcher matcher;
+
+	private final ForkJoinPool pool;
+
+	public FileTreeScanner(PathMatcher matcher) {
+		this(matcher, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param matcher the matcher holding the templates files must match
+	 * @param pool the pool to walk directories on
+	 */
+	public FileTreeScanner(PathMatcher matcher, ForkJoinPool pool) {
+		this.matcher = matcher;
+		this.pool = pool;
+	}
+
+	/**
+	 * @return the matching files below the directory, sorted
+	 * @throws UncheckedIOException if a directory or file cannot be read
+	 */
+	public List<Path> scan(Path root) {
+		List<Path> files = Collections.synchronizedList(new ArrayList<>());
+		pool.invoke(new DirectoryTask(root, matcher.newIncrementalMatcher(), files::add, new Scan()));
+		List<Path> sorted = new ArrayList<>(files);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Walk the directory in the background, the stream returning the matching files as
+	 * they are found and in no particular order. Closing the stream stops the walk.
+	 *
+	 * @return the matching files below the directory
+	 * @throws UncheckedIOException from the stream if a directory or file cannot be read
+	 */
+	public Stream<Path> stream(Path root) {
+		BlockingQueue<Object> found = new LinkedBlockingQueue<>();
+		Scan scan = new Scan();
+		DirectoryTask task = new DirectoryTask(root, matcher.newIncrementalMatcher(), found::add, scan);
+		pool.execute(() -> {
+			try {
+				task.invoke();
+				found.add(END);
+			} catch (RuntimeException e) {
+				found.add(e);
+			}
+		});
+		Spliterator<Path> files = new Spliterators.AbstractSpliterator<Path>(Long.MAX_VALUE, Spliterator.NONNULL) {
+			private boolean ended;
+
+			@Override
+			public boolean tryAdvance(Consumer<? super Path> action) {
+				if (ended) {
+					return false;
+				}
+				Object next;
+				try {
+					next = found.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					scan.cancelled = true;
+					throw new IllegalStateException("Interrupted whilst waiting for files", e);
+				}
+				if (next instanceof RuntimeException) {
+					ended = true;
+					throw (RuntimeException) next;
+				} else if (next == END) {
+					ended = true;
+					return false;
+				}
+				action.accept((Path) next);
+				return true;
+			}
+		};
+		return StreamSupport.stream(files, false).onClose(() -> scan.cancelled = true);
+	}
+
+	/**
+	 * State shared by the tasks of one scan.
+	 */
+	static class Scan {
+
+		volatile boolean cancelled;
+
+	}
+
+	/**
+	 * Walks one directory, checking each file and handing each subdirectory that could
+	 * hold matches to a task of its own.
+	 */
+	static class DirectoryTask extends RecursiveAction implements FileVisitor<Path> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path directory;
+
+		// Has been given the elements of the path to the directory
+		private final IncrementalMatcher matcher;
+
+		private final Consumer<Path> found;
+
+		private final Scan scan;
+
+		private final List<DirectoryTask> subdirectories = new ArrayList<>();
+
+		DirectoryTask(Path directory, IncrementalMatcher matcher, Consumer<Path> found, Scan scan) {
+			this.directory = directory;
+			this.matcher = matcher;
+			this.found = found;
+			this.scan = scan;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				Files.walkFileTree(directory, this);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			for (DirectoryTask subdirectory : subdirectories) {
+				subdirectory.join();
+			}
+		}
+
+		@Override
+		public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+			if (scan.cancelled) {
+				return FileVisitResult.TERMINATE;
+			}
+			if (dir.equals(directory)) {
+				return FileVisitResult.CONTINUE;
+			}
+			IncrementalMatcher below = matcher.copy();
+			if (below.feed(dir.getFileName().toString()) != Progress.NO_MATCH) {
+				DirectoryTask subdirectory = new DirectoryTask(dir, below, found, scan);
+				subdirectory.fork();
+				subdirectories.add(subdirectory);
+			}
+			// Either nothing below can match or another task is walking it
+			return FileVisitResult.SKIP_SUBTREE;
+		}
+
+		@Override
+		public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+			if (scan.cancelled) {
+				return FileVisitResult.TERMINATE;
+			}
+			if (matcher.peek(file.getFileName().toString()) == Progress.COMPLETE_MATCH) {
+				found.accept(file);
+			}
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+			throw exc;
+		}
+
+		@Override
+		public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+			if (exc != null) {
+				throw exc;
+			}
+			return FileVisitResult.CONTINUE;
+		}
+
+	}
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate hit counts for URI templates, kept in a count-min sketch so the memory
+ * used does not depend on how many templates are registered. The {@link PathMatcher}
+ * samples successful matches into a profile and uses the estimates to order the
+ * children in its tree so the most frequently hit routes are tried first.
+ *
+ * <p>A profile can be written out with {@link #store(Writer, String[])} and read back
+ * at startup with {@link #load(Reader)}, the persisted form is one
+ * <tt>count&lt;TAB&gt;templateText</tt> entry per line.
+ */
+public class HitFrequencyProfile {
+
+	private static final int DEFAULT_DEPTH = 4;
+
+	private static final int DEFAULT_WIDTH = 1024;
+
+	private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F, 0x165667B1, 0xD3A2646C, 0xFD7046C5, 0xB55A4F09 };
+
+	private final int depth;
+
+	private final int widthMask;
+
+	private final AtomicLongArray counters;
+
+	public HitFrequencyProfile() {
+		this(DEFAULT_DEPTH, DEFAULT_WIDTH);
+	}
+
+	/**
+	 * @param depth the number of hash rows in the sketch (1-8), more rows means less overestimation
+	 * @param width the number of counters per row, rounded up to a power of two
+	 */
+	public HitFrequencyProfile(int depth, int width) {
+		if (depth < 1 || depth > SEEDS.length) {
+			throw new IllegalArgumentException("Depth must be between 1 and " + SEEDS.length + " but was " + depth);
+		}
+		if (width < 1) {
+			throw new IllegalArgumentException("Width must be positive but was " + width);
+		}
+		this.depth = depth;
+		int w = Integer.highestOneBit(width);
+		if (w < width) {
+			w <<= 1;
+		}
+		this.widthMask = w - 1;
+		this.counters = new AtomicLongArray(depth * w);
+	}
+
+	/**
+	 * Record a single hit for the template with the specified text.
+	 */
+	public void record(String templateText) {
+		add(templateText, 1);
+	}
+
+	/**
+	 * Record a number of hits for the template with the specified text.
+	 */
+	public void add(String templateText, long count) {
+		for (int row = 0; row < depth; row++) {
+			counters.addAndGet(index(row, templateText), count);
+		}
+	}
+
+	/**
+	 * @return the estimated number of hits for the template, may overestimate but never underestimates
+	 */
+	public long estimate(String templateText) {
+		long min = Long.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			long value = counters.get(index(row, templateText));
+			if (value < min) {
+				min = value;
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * Halve every counter so that old traffic gradually carries less weight than recent traffic.
+	 */
+	public void age() {
+		for (int i = 0, max = counters.length(); i < max; i++) {
+			counters.set(i, counters.get(i) >>> 1);
+		}
+	}
+
+	public void clear() {
+		for (int i = 0, max = counters.length(); i < max; i++) {
+			counters.set(i, 0);
+		}
+	}
+
+	/**
+	 * Write the estimates for the specified templates, templates with no recorded hits are skipped.
+	 */
+	public void store(Writer writer, String[] templateTexts) throws IOException {
+		for (String templateText : templateTexts) {
+			long count = estimate(templateText);
+			if (count != 0) {
+				writer.write(Long.toString(count));
+				writer.write('\t');
+				writer.write(templateText);
+				writer.write('\n');
+			}
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Read a profile previously written by {@link #store(Writer, String[])}.
+	 */
+	public static HitFrequencyProfile load(Reader reader) throws IOException {
+		HitFrequencyProfile profile = new HitFrequencyProfile();
+		profile.merge(reader);
+		return profile;
+	}
+
+	/**
+	 * Add the counts from a profile previously written by {@link #store(Writer, String[])}
+	 * to those held in this profile.
+	 */
+	public void merge(Reader reader) throws IOException {
+		BufferedReader in = (reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader));
+		String line;
+		int lineNumber = 0;
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+			if (line.length() == 0 || line.charAt(0) == '#') {
+				continue;
+			}
+			int tab = line.indexOf('\t');
+			if (tab == -1) {
+				throw new IllegalArgumentException("Malformed profile entry at line " + lineNumber + ": '" + line + "'");
+			}
+			try {
+				add(line.substring(tab + 1), Long.parseLong(line.substring(0, tab)));
+			} catch (NumberFormatException nfe) {
+				throw new IllegalArgumentException("Malformed count at line " + lineNumber + ": '" + line + "'", nfe);
+			}
+		}
+	}
+
+	private int index(int row, String templateText) {
+		return row * (widthMask + 1) + (hash(templateText, SEEDS[row]) & widthMask);
+	}
+
+	/**
+	 * Each row hashes the text itself with its own seed, rather than deriving its hash from
+	 * {@link String#hashCode()}, so that texts colliding in one row do not collide in all
+	 * of them and the rows give independent estimates.
+	 */
+	private static int hash(String text, int seed) {
+		int h = seed;
+		for (int i = 0, max = text.length(); i < max; i++) {
+			h ^= Integer.rotateLeft(text.charAt(i) * 0xCC9E2D51, 15) * 0x1B873593;
+			h = Integer.rotateLeft(h, 13) * 5 + 0xE6546B64;
+		}
+		h ^= text.length();
+		h ^= (h >>> 16);
+		h *= 0x85EBCA6B;
+		h ^= (h >>> 13);
+		h *= 0xC2B2AE35;
+		return h ^ (h >>> 16);
+	}
+
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the classes in a set of jars whose names match the templates of a
+ * {@link PathMatcher}, typically one created with <tt>.</tt> as the separator so that
+ * templates such as <tt>com.acme.**.*Controller</tt> select classes for component
+ * scanning.
+ *
+ * <p>Only the central directory at the end of each jar is read, it is memory mapped and
+ * walked record by record rather than going through <tt>JarFile</tt> and creating a
+ * <tt>ZipEntry</tt> for each entry. The name of each <tt>.class</tt> entry is copied from
+ * the mapped bytes into a reusable char buffer, with <tt>/</tt> replaced by the
+ * separator, and matched from there, so a string is only created for the names that
+ * match. The jars are shared out between a number of threads.
+ */
+public class JarEntryScanner {
+
+	private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+
+	private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+	private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+	private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+	private static final int ZIP64_LOCATOR = 0x07064b50;
+
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+
+	private static final byte[] CLASS_SUFFIX = ".class".getBytes(StandardCharsets.US_ASCII);
+
+	private final PathMatcher matcher;
+
+	private final int threads;
+
+	public JarEntryScanner(PathMatcher matcher) {
+		this(matcher, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param matcher the matcher holding the templates class names must match
+	 * @param threads the number of jars to read at once
+	 */
+	public JarEntryScanner(PathMatcher matcher, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Thread count must be positive but was " + threads);
+		}
+		this.matcher = matcher;
+		this.threads = threads;
+	}
+
+	/**
+	 * Told about each class matching a template, from the thread reading its jar.
+	 */
+	public interface ClassHandler {
+
+		/**
+		 * Called once for each template the class matches.
+		 */
+		void matched(Path jar, String className, int templateId);
+
+	}
+
+	/**
+	 * @return the distinct names of the matching classes in the jars, sorted
+	 */
+	public List<String> scan(List<Path> jars) throws IOException {
+		Set<String> classNames = ConcurrentHashMap.newKeySet();
+		scan(jars, (jar, className, templateId) -> classNames.add(className));
+		List<String> sorted = new ArrayList<>(classNames);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Pass each matching class in the jars to the handler, which must cope with being
+	 * called from several threads at once.
+	 */
+	public void scan(List<Path> jars, ClassHandler handler) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> results = new ArrayList<>();
+			for (Path jar : jars) {
+				results.add(executor.submit(() -> {
+					new Jar(jar, handler).scan();
+					return null;
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted whilst scanning jars", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException("Failed to scan jars", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * The central directory of one jar, read by a single thread.
+	 */
+	class Jar {
+
+		private final Path jar;
+
+		private final ClassHandler handler;
+
+		private char[] name = new char[256];
+
+		private int[] ids = new int[16];
+
+		Jar(Path jar, ClassHandler handler) {
+			this.jar = jar;
+			this.handler = handler;
+		}
+
+		void scan() throws IOException {
+			try (FileChannel channel = FileChannel.open(jar, StandardOpenOption.READ)) {
+				long size = channel.size();
+				long tailStart = Math.max(0, size - END_OF_CENTRAL_DIRECTORY_SIZE - MAX_COMMENT_SIZE);
+				ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, tailStart, size - tailStart)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				int end = findEndOfCentralDirectory(tail);
+				if (end == -1) {
+					throw new IOException("No central directory found in " + jar);
+				}
+				long entries = tail.getShort(end + 10) & 0xFFFF;
+				long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+				long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+				if ((entries == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL)
+						&& end >= ZIP64_LOCATOR_SIZE && tail.getInt(end - ZIP64_LOCATOR_SIZE) == ZIP64_LOCATOR) {
+					// Too big for the original format, the real figures are in the zip64 record
+					ByteBuffer record = ByteBuffer.allocate(ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+					channel.read(record, tail.getLong(end - ZIP64_LOCATOR_SIZE + 8));
+					if (record.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY) {
+						throw new IOException("Corrupt zip64 central directory in " + jar);
+					}
+					entries = record.getLong(32);
+					directorySize = record.getLong(40);
+					directoryOffset = record.getLong(48);
+				}
+				if (directoryOffset + directorySize > size) {
+					throw new IOException("Central directory lies outside " + jar);
+				}
+				ByteBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, directorySize)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				int position = 0;
+				for (long e = 0; e < entries; e++) {
+					if (position + CENTRAL_DIRECTORY_HEADER_SIZE > directory.limit()
+							|| directory.getInt(position) != CENTRAL_DIRECTORY_HEADER) {
+						throw new IOException("Corrupt central directory in " + jar);
+					}
+					int nameLength = directory.getShort(position + 28) & 0xFFFF;
+					int extraLength = directory.getShort(position + 30) & 0xFFFF;
+					int commentLength = directory.getShort(position + 32) & 0xFFFF;
+					int nameStart = position + CENTRAL_DIRECTORY_HEADER_SIZE;
+					if (nameStart + nameLength > directory.limit()) {
+						throw new IOException("Corrupt central directory in " + jar);
+					}
+					matchEntry(directory, nameStart, nameLength);
+					position = nameStart + nameLength + extraLength + commentLength;
+				}
+			}
+		}
+
+		/**
+		 * @return the position of the end of central directory record, searching back from
+		 *         the end past any comment, or -1 if there is not one
+		 */
+		private int findEndOfCentralDirectory(ByteBuffer tail) {
+			for (int i = tail.limit() - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+				if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY
+						&& i + END_OF_CENTRAL_DIRECTORY_SIZE + (tail.getShort(i + 20) & 0xFFFF) == tail.limit()) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private void matchEntry(ByteBuffer directory, int nameStart, int nameLength) {
+			int length = nameLength - CLASS_SUFFIX.length;
+			if (length <= 0) {
+				return;
+			}
+			for (int i = 0; i < CLASS_SUFFIX.length; i++) {
+				if (directory.get(nameStart + length + i) != CLASS_SUFFIX[i]) {
+					return;
+				}
+			}
+			if (name.length < length) {
+				name = new char[Math.max(length, name.length * 2)];
+			}
+			char separator = matcher.getSeparator();
+			for (int i = 0; i < length; i++) {
+				byte b = directory.get(nameStart + i);
+				if (b < 0) {
+					length = decode(directory, nameStart, length);
+					break;
+				}
+				name[i] = b == '/' ? separator : (char) b;
+			}
+			int matches = matcher.findAllMatchIds(name, 0, length, ids);
+			if (matches > ids.length) {
+				ids = new int[Integer.highestOneBit(matches) << 1];
+				matcher.findAllMatchIds(name, 0, length, ids);
+			}
+			if (matches != 0) {
+				String className = new String(name, 0, length);
+				for (int i = 0; i < matches; i++) {
+					handler.matched(jar, className, ids[i]);
+				}
+			}
+		}
+
+		/**
+		 * Decode a name that is not plain ASCII, entry names in jars are UTF-8.
+		 * @return the length of the decoded name
+		 */
+		private int decode(ByteBuffer directory, int nameStart, int length) {
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = directory.get(nameStart + i);
+			}
+			char[] decoded = new String(bytes, StandardCharsets.UTF_8).replace('/', matcher.getSeparator()).toCharArray();
+			if (name.length < decoded.length) {
+				name = Arrays.copyOf(name, decoded.length);
+			}
+			System.arraycopy(decoded, 0, name, 0, decoded.length);
+			return decoded.length;
+		}
+
+	}
+
+}
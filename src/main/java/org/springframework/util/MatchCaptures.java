@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+/**
+ * The variables captured for a match, passed to a {@link MatchVisitor}. Captures are
+ * described by offsets into the matched path so that reading them does not allocate,
+ * the instance is reused by the matcher and is only valid during the callback it was
+ * passed to.
+ */
+public interface MatchCaptures {
+
+	/**
+	 * @return the path being matched
+	 */
+	String getPath();
+
+	/**
+	 * @return the number of captured variables
+	 */
+	int getCaptureCount();
+
+	/**
+	 * @return the name of the capture at the specified index, as given in the template
+	 */
+	String getName(int index);
+
+	/**
+	 * @return the offset in the path at which the value of the capture at the specified index starts
+	 */
+	int getStart(int index);
+
+	/**
+	 * @return the offset in the path just after the end of the value of the capture at the specified index
+	 */
+	int getEnd(int index);
+
+	/**
+	 * When the matcher normalizes paths (see {@link PathMatcher#setNormalizations}) or
+	 * canonicalizes encoded ones (see {@link PathMatcher#setEncodedPaths}) the offsets
+	 * above are into the path matched, this gives the offset of the start of the capture
+	 * in the path as it was passed to the matcher.
+	 */
+	default int getOriginalStart(int index) {
+		return getStart(index);
+	}
+
+	/**
+	 * As {@link #getOriginalStart(int)} for the offset just after the end of the capture.
+	 */
+	default int getOriginalEnd(int index) {
+		return getEnd(index);
+	}
+
+	/**
+	 * Convenience method to extract a value, this creates a new string each time it is called.
+	 * @return the value captured for the named variable or null if it was not captured
+	 */
+	default String getValue(String name) {
+		for (int i = getCaptureCount() - 1; i >= 0; i--) {
+			if (getName(i).equals(name)) {
+				return getPath().substring(getStart(i), getEnd(i));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * As {@link #getValue(String)} but with percent-encoded characters decoded, for
+	 * matchers configured with {@link PathMatcher#setEncodedPaths(boolean)}.
+	 * @return the decoded value captured for the named variable or null if it was not captured
+	 */
+	default String getDecodedValue(String name) {
+		for (int i = getCaptureCount() - 1; i >= 0; i--) {
+			if (getName(i).equals(name)) {
+				return PercentEncoding.decode(getPath(), getStart(i), getEnd(i));
+			}
+		}
+		return null;
+	}
+
+}
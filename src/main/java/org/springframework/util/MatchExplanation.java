@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The record of a single match attempt, produced by {@link PathMatcher#explain(String)}.
+ * It holds every event in the order the matcher produced it, counts of the node visits,
+ * rejections and backtracking steps, and the results of the match.
+ */
+public class MatchExplanation implements MatchListener {
+
+	public enum EventType {
+		VISIT, REJECT, BACKTRACK, MATCH
+	}
+
+	/**
+	 * A single step taken by the matcher.
+	 */
+	public static class Event {
+
+		private final EventType type;
+
+		private final String segment;
+
+		private final int pathIndex;
+
+		private final Object detail;
+
+		Event(EventType type, String segment, int pathIndex, Object detail) {
+			this.type = type;
+			this.segment = segment;
+			this.pathIndex = pathIndex;
+			this.detail = detail;
+		}
+
+		public EventType getType() {
+			return type;
+		}
+
+		/**
+		 * @return the description of the segment involved, null for {@link EventType#MATCH} events
+		 */
+		public String getSegment() {
+			return segment;
+		}
+
+		/**
+		 * @return the path index the event occurred at, for a backtrack the index being retried from
+		 */
+		public int getPathIndex() {
+			return pathIndex;
+		}
+
+		/**
+		 * @return the {@link MatchListener.Rejection} for a REJECT, the {@link URITemplate} for a MATCH,
+		 * the index being backtracked from for a BACKTRACK, otherwise null
+		 */
+		public Object getDetail() {
+			return detail;
+		}
+
+		public String toString() {
+			switch (type) {
+			case VISIT:
+				return "visit " + segment + " @" + pathIndex;
+			case REJECT:
+				return "reject " + segment + " @" + pathIndex + " (" + detail + ")";
+			case BACKTRACK:
+				return "backtrack " + segment + " @" + detail + " -> @" + pathIndex;
+			default:
+				return "match " + ((URITemplate) detail).getTemplateText();
+			}
+		}
+
+	}
+
+	private final String path;
+
+	private final List<Event> events = new ArrayList<>();
+
+	private int nodeVisits;
+
+	private int rejections;
+
+	private int backtracks;
+
+	private List<MatchResult> matchResults = Collections.emptyList();
+
+	MatchExplanation(String path) {
+		this.path = path;
+	}
+
+	@Override
+	public void segmentVisited(String segment, int pathIndex) {
+		nodeVisits++;
+		events.add(new Event(EventType.VISIT, segment, pathIndex, null));
+	}
+
+	@Override
+	public void segmentRejected(String segment, int pathIndex, Rejection reason) {
+		rejections++;
+		events.add(new Event(EventType.REJECT, segment, pathIndex, reason));
+	}
+
+	@Override
+	public void backtracked(String segment, int fromPathIndex, int toPathIndex) {
+		backtracks++;
+		events.add(new Event(EventType.BACKTRACK, segment, toPathIndex, fromPathIndex));
+	}
+
+	@Override
+	public void matchFound(URITemplate template) {
+		events.add(new Event(EventType.MATCH, null, -1, template));
+	}
+
+	void setMatchResults(List<MatchResult> matchResults) {
+		this.matchResults = matchResults;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public List<Event> getEvents() {
+		return Collections.unmodifiableList(events);
+	}
+
+	public int getNodeVisits() {
+		return nodeVisits;
+	}
+
+	public int getRejections() {
+		return rejections;
+	}
+
+	public int getBacktracks() {
+		return backtracks;
+	}
+
+	/**
+	 * @return the results of the match, as {@link PathMatcher#findAllMatches(String)} would return them
+	 */
+	public List<MatchResult> getMatchResults() {
+		return matchResults;
+	}
+
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append("Explanation for '").append(path).append("': ").append(matchResults.size()).append(" match(es), ");
+		s.append(nodeVisits).append(" node visits, ").append(rejections).append(" rejections, ");
+		s.append(backtracks).append(" backtracks\n");
+		for (Event event : events) {
+			s.append("  ").append(event).append('\n');
+		}
+		return s.toString();
+	}
+
+}
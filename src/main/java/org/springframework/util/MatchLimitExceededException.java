@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+/**
+ * Thrown when matching a path is abandoned because one of the limits configured on the
+ * {@link PathMatcher} was exceeded, for example by an oversized or adversarial path sent
+ * by a client. It says nothing about whether the path would have matched, callers would
+ * typically reject the request.
+ *
+ * <p>These are expected under attack so no stack trace is captured, keeping the cost
+ * of failing low.
+ */
+public class MatchLimitExceededException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The limits that can be configured on a {@link PathMatcher}.
+	 */
+	public enum Limit {
+
+		/** See {@link PathMatcher#setMaxPathLength(int)} */
+		PATH_LENGTH,
+
+		/** See {@link PathMatcher#setMaxSeparators(int)} */
+		SEPARATORS,
+
+		/** See {@link PathMatcher#setMaxNodeVisits(int)} */
+		NODE_VISITS,
+
+		/** See {@link PathMatcher#setMaxRegexSteps(int)} */
+		REGEX_STEPS
+
+	}
+
+	private final Limit limit;
+
+	private final int maximum;
+
+	public MatchLimitExceededException(Limit limit, int maximum) {
+		super("Matching abandoned, the " + limit + " limit of " + maximum + " was exceeded", null, false, false);
+		this.limit = limit;
+		this.maximum = maximum;
+	}
+
+	public Limit getLimit() {
+		return limit;
+	}
+
+	public int getMaximum() {
+		return maximum;
+	}
+
+}
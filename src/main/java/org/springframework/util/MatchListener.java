@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+/**
+ * Receives structured events describing how the {@link PathMatcher} walks its tree for a
+ * path. Install one with {@link PathMatcher#setMatchListener(MatchListener)} or use
+ * {@link PathMatcher#explain(String)} to capture the events for a single path. When no
+ * listener is installed the matcher does not construct any of the event data.
+ * 
+ * <p>Segments are identified by their description, for example <tt>Literal(foo)</tt> or
+ * <tt>CapturingText({id})</tt>, and path positions are indexes into the (possibly trimmed
+ * or lower cased) path being matched.
+ */
+public interface MatchListener {
+
+	/**
+	 * Why a segment did not match at a particular point in the path.
+	 */
+	enum Rejection {
+
+		/** The path ended before the segment could be matched */
+		END_OF_PATH,
+
+		/** The path text differs from the literal (or ?) text of the segment */
+		TEXT_MISMATCH,
+
+		/** A separator was expected */
+		NOT_A_SEPARATOR,
+
+		/** A capture needs at least one character */
+		EMPTY_CAPTURE,
+
+		/** The captured text does not satisfy the {name:regex} constraint */
+		CONSTRAINT_MISMATCH,
+
+		/** The path element does not match the wildcard pattern */
+		PATTERN_MISMATCH,
+
+		/** The template is complete but there is more path left */
+		UNMATCHED_PATH_REMAINING,
+
+		/** No template below the segment carries all the required tags */
+		TAG_MISMATCH,
+
+		/** The rest of the template has already failed to match from this separator */
+		ALREADY_FAILED
+
+	}
+
+	/**
+	 * A segment is being tried at the specified path index.
+	 */
+	default void segmentVisited(String segment, int pathIndex) {
+	}
+
+	/**
+	 * The segment tried at the specified path index does not match.
+	 */
+	default void segmentRejected(String segment, int pathIndex, Rejection reason) {
+	}
+
+	/**
+	 * A segment that can match a variable number of path elements (<tt>**</tt> or
+	 * <tt>{*name}</tt>) is retrying the rest of the template from a later separator.
+	 */
+	default void backtracked(String segment, int fromPathIndex, int toPathIndex) {
+	}
+
+	/**
+	 * The path matches the template.
+	 */
+	default void matchFound(URITemplate template) {
+	}
+
+}
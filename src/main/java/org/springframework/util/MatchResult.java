@@ -70,6 +70,7 @@ public class MatchResult {
 		if (capturedVariables == null) {
 			return NO_VARIABLES;
 		}
+		decodeCaptures();
 		return capturedVariables;
 	}
 
@@ -81,6 +82,7 @@ public class MatchResult {
 		if (capturedVariables == null) {
 			return null;
 		}
+		decodeCaptures();
 		return capturedVariables.get(key);
 	}
 
@@ -98,4 +100,32 @@ public class MatchResult {
 		}
 		capturedVariables.put(key,value);
 	}
+
+	// Called before captured values are read, they only need decoding for an encoded path
+	void decodeCaptures() {
+	}
+
+	/**
+	 * A result for a percent-encoded path, the captured values are decoded when they are
+	 * first read.
+	 */
+	static class Encoded extends MatchResult {
+
+		private boolean decoded;
+
+		Encoded(URITemplate matchingTemplate, String matchingPath) {
+			super(matchingTemplate, matchingPath);
+		}
+
+		@Override
+		void decodeCaptures() {
+			if (!decoded) {
+				for (Map.Entry<String, String> entry : super.capturedVariables.entrySet()) {
+					entry.setValue(PercentEncoding.decode(entry.getValue()));
+				}
+				decoded = true;
+			}
+		}
+
+	}
 }
\ No newline at end of file
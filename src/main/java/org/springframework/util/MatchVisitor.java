@@ -0,0 +1,33 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+/**
+ * Called by {@link PathMatcher#findAllMatches(String, MatchVisitor)} for each template that
+ * matches a path, as it is found. No {@link MatchResult} or result list is created.
+ */
+@FunctionalInterface
+public interface MatchVisitor {
+
+	/**
+	 * @param template the template that matched
+	 * @param templateId the id the matcher assigned to the template when it was registered
+	 * @param captures the variables captured for this match, only valid until this method returns
+	 * @return true to carry on looking for more matches, false to stop the search
+	 */
+	boolean visit(URITemplate template, int templateId, MatchCaptures captures);
+
+}
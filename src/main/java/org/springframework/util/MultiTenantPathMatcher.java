@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.util.PathMatcher.MatchingContext;
+
+/**
+ * Matches paths for many tenants that share a common set of URI templates but may each
+ * register a few of their own. The shared templates are held in a single base tree that
+ * is built once, at construction time, and never modified afterwards. Each tenant that
+ * registers its own templates gets a small overlay tree holding just those. A lookup
+ * scans the path once and then searches the tenant overlay (if there is one) followed
+ * by the base tree, so overlay matches are reported first.
+ *
+ * <p>Memory therefore grows with the number of tenant specific templates rather than
+ * with the number of tenants, a tenant without its own templates costs nothing.
+ * Tenants are identified by an arbitrary key, typically a tenant id or a host name
+ * (see {@link #tenantForHost(String)}).
+ *
+ * <p>Overlays are configured the same way as the base matcher, so settings such as
+ * encoded paths, normalizations and limits are made on a {@link PathMatcher} passed to
+ * {@link #MultiTenantPathMatcher(Collection, PathMatcher)}. Overlays are copied on write:
+ * registering a tenant template builds a new overlay and swaps it in, so it may happen
+ * while other threads are matching paths for that tenant. This makes registering the
+ * templates of a tenant quadratic in their number, which suits the few each tenant has.
+ */
+public class MultiTenantPathMatcher {
+
+	private final PathMatcher base;
+
+	private final Map<String, Overlay> overlays = new ConcurrentHashMap<>();
+
+	public MultiTenantPathMatcher(Collection<? extends URITemplate> baseTemplates) {
+		this(baseTemplates, new PathMatcher());
+	}
+
+	public MultiTenantPathMatcher(Collection<? extends URITemplate> baseTemplates, char separator, boolean trimTokens, boolean caseSensitive) {
+		this(baseTemplates, new PathMatcher(separator, trimTokens, caseSensitive));
+	}
+
+	/**
+	 * Use a matcher configured by the caller as the base, it may already hold templates.
+	 * Neither it nor its configuration may be changed afterwards.
+	 */
+	public MultiTenantPathMatcher(Collection<? extends URITemplate> baseTemplates, PathMatcher base) {
+		for (URITemplate template : baseTemplates) {
+			base.addURITemplate(template);
+		}
+		this.base = base;
+	}
+
+	/**
+	 * Register a template that only applies to the specified tenant.
+	 */
+	public void addURITemplate(String tenant, URITemplate template) {
+		overlays.compute(tenant, (t, overlay) -> new Overlay(overlay, template));
+	}
+
+	/**
+	 * Discard all the templates registered for the specified tenant, it will then only match the base templates.
+	 */
+	public void removeTenant(String tenant) {
+		overlays.remove(tenant);
+	}
+
+	/**
+	 * @return the tenants that have registered their own templates
+	 */
+	public Set<String> getTenants() {
+		return Collections.unmodifiableSet(overlays.keySet());
+	}
+
+	/**
+	 * @return the templates shared by all tenants
+	 */
+	public String[] getBasePatterns() {
+		return base.getPatterns();
+	}
+
+	/**
+	 * @return the templates registered just for the specified tenant
+	 */
+	public String[] getTenantPatterns(String tenant) {
+		Overlay overlay = overlays.get(tenant);
+		return overlay == null ? new String[0] : overlay.matcher.getPatterns();
+	}
+
+	public boolean matches(String tenant, String pathToMatch) {
+		return !search(tenant, pathToMatch, false).isEmpty();
+	}
+
+	/**
+	 * Return all the matches for the tenant, those from its own templates first.
+	 */
+	public List<MatchResult> findAllMatches(String tenant, String pathToMatch) {
+		return search(tenant, pathToMatch, true);
+	}
+
+	/**
+	 * Return the first match for the tenant, a tenant template is preferred over a base one.
+	 */
+	public List<MatchResult> findFirstMatch(String tenant, String pathToMatch) {
+		return search(tenant, pathToMatch, false);
+	}
+
+	private List<MatchResult> search(String tenant, String pathToMatch, boolean findAllMatches) {
+		MatchingContext matchingContext = base.new MatchingContext(pathToMatch, findAllMatches);
+		Overlay overlay = overlays.get(tenant);
+		if (overlay == null || !overlay.matcher.collectMatches(matchingContext)) {
+			base.collectMatches(matchingContext);
+		}
+		return matchingContext.getMatchResults();
+	}
+
+	/**
+	 * Derive a tenant key from the value of a Host header: the port is removed and the
+	 * name is lower cased, since host names are case insensitive.
+	 */
+	public static String tenantForHost(String host) {
+		int end = host.length();
+		if (host.startsWith("[")) {
+			// IPv6 literal, the port (if any) follows the closing bracket
+			int close = host.indexOf(']');
+			if (close != -1) {
+				end = close + 1;
+			}
+		} else {
+			int colon = host.lastIndexOf(':');
+			if (colon != -1) {
+				end = colon;
+			}
+		}
+		return host.substring(0, end).toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * The templates of one tenant and the matcher holding them, never changed once built.
+	 */
+	private class Overlay {
+
+		private final List<URITemplate> templates;
+
+		private final PathMatcher matcher;
+
+		/**
+		 * @param previous the overlay being replaced, or null for the first template of the tenant
+		 */
+		Overlay(Overlay previous, URITemplate template) {
+			templates = new ArrayList<>(previous == null ? Collections.emptyList() : previous.templates);
+			templates.add(template);
+			matcher = base.newCompatibleMatcher();
+			for (URITemplate t : templates) {
+				matcher.addURITemplate(t);
+			}
+		}
+
+	}
+
+}
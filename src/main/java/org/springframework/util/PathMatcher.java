@@ -15,16 +15,40 @@
  */
 package org.springframework.util;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.springframework.util.MatchLimitExceededException.Limit;
+import org.springframework.util.MatchListener.Rejection;
 
 // TODO capture in match start?
 // TODO [question] Is there any need/benefit to sorting the tree if they always ask for all of them?
@@ -88,28 +112,48 @@ import java.util.regex.Pattern;
  */
 public class PathMatcher {
 
-	protected final static boolean DEBUG = false;
-	
 	private static final List<MatchResult> NO_MATCHES = Collections.emptyList();
 	
+	/**
+	 * The name the extension is captured under when suffix matching, see {@link #setSuffixMatch(boolean)}.
+	 */
+	public static final String EXTENSION_VARIABLE = "extension";
+
 	public static final char DEFAULT_PATH_SEPARATOR = '/';
+
+	/**
+	 * The tags of a template registered without any, it is selected whatever tags are required.
+	 */
+	public static final long ALL_TAGS = -1L;
 	
 	/**
 	 * patterns is keyed by a number of separators and returns all tree roots that
-	 * contain patterns with that number of separators in.
+	 * contain patterns with that number of separators in. Replaced rather than
+	 * updated when the tree is reordered, see {@link #reorderByHitFrequency()}.
 	 */
-	private Map<Integer, Segment[]> patternsMap = new TreeMap<>();
+	private volatile Map<Integer, Segment[]> patternsMap = new TreeMap<>();
 
 	/**
-	 * The highest key value set in the patterns map, it is a sparse structure so
-	 * not all from 0 to maxKey may have been set.
+	 * The roots of the patterns that may match a variable number of segments, those with
+	 * <tt>**</tt> or <tt>{*x}</tt>. They are merged and reference counted like the fixed
+	 * ones up to their first <tt>**</tt>, which belongs to a single template, see
+	 * {@link SeparatorStarStarSegment#templateId}. Replaced rather than updated.
 	 */
-	private int maxKey = 0;
-	
+	volatile Segment[] variableRoots = NO_SEGMENTS;
+
+	// When there are many variable roots, each of them by itself, see INDEXED_FANOUT
+	private Map<Segment, Segment> variableRootIndex;
+
+	private static final Segment[] NO_SEGMENTS = new Segment[0];
+
 	/**
-	 * Holds patterns that may match a variable number of segments.
+	 * For separator counts with many roots, the roots by themselves so that adding and
+	 * removing templates can find them directly, see {@link #INDEXED_FANOUT}.
 	 */
-	private List<VariableSegmentRoot> patternsVariableSeparators = new LinkedList<>();
+	private final Map<Integer, Map<Segment, Segment>> rootIndexes = new HashMap<>();
+
+	// Above this many roots or next segments they are also kept in a map
+	private static final int INDEXED_FANOUT = 8;
 
 	private char separator = DEFAULT_PATH_SEPARATOR;
 	
@@ -117,6 +161,80 @@ public class PathMatcher {
 	
 	private boolean caseSensitive = true;
 
+	// Paths are percent-encoded, see setEncodedPaths()
+	private boolean encodedPaths = false;
+
+	private final EnumSet<Normalization> normalizations = EnumSet.noneOf(Normalization.class);
+
+	// See setTrailingSeparatorMatch() and setSuffixMatch()
+	private boolean trailingSeparatorMatch = false;
+
+	private boolean suffixMatch = false;
+
+	/**
+	 * When adaptive ordering is enabled, successful matches are sampled into this
+	 * profile and the tree is periodically reordered so that the most frequently
+	 * hit templates are tried first.
+	 */
+	private volatile HitFrequencyProfile hitProfile;
+
+	private MatchListener matchListener;
+
+	private final Map<URITemplate, URITemplateExpander> expanders = new ConcurrentHashMap<>();
+
+	/**
+	 * Every template registered, indexed by the id it was given, null for a free id.
+	 */
+	private final List<URITemplate> templatesById = new ArrayList<>();
+
+	private final Map<URITemplate, Integer> templateIds = new HashMap<>();
+
+	// How many times the template with each id has been added and not removed
+	private int[] registrationCounts = new int[16];
+
+	// The ids of templates whose last registration was removed, handed out again lowest first
+	private final BitSet freeIds = new BitSet();
+
+	/**
+	 * Walks reused by {@link #findAllMatches(String, MatchVisitor)} so that it does not allocate.
+	 */
+	private final ThreadLocal<Traversal> traversals = new ThreadLocal<>();
+
+	// Regex segments share this many reusable matchers per thread, see MatchingContext.regexMatcher()
+	private static final int MATCHER_SLOTS = 64;
+
+	private final ThreadLocal<ReusableMatcher[]> reusableMatchers = ThreadLocal.withInitial(() -> new ReusableMatcher[MATCHER_SLOTS]);
+
+	// Racy increments are harmless, this only spreads the regex segments over the slots
+	private int regexSegmentCount;
+
+	/**
+	 * Built on demand for {@link #findAllPrefixMatchesStarting(String)}, discarded when templates are added.
+	 */
+	private volatile PrefixIndex prefixIndex;
+
+	private volatile int sampleInterval;
+
+	private volatile int reorderInterval;
+
+	// Runs the reorders triggered by sampling, null to run them on the matching thread
+	private volatile Executor reorderExecutor;
+
+	// Striped so that threads recording samples do not contend on one counter
+	private final LongAdder samplesSinceReorder = new LongAdder();
+
+	// Set while a reorder triggered by sampling is queued or running, so only one happens at a time
+	private final AtomicBoolean reorderPending = new AtomicBoolean();
+
+	// Limits applied to each match, see setMaxPathLength() and friends
+	private int maxPathLength = Integer.MAX_VALUE;
+
+	private int maxSeparators = Integer.MAX_VALUE;
+
+	private int maxNodeVisits = Integer.MAX_VALUE;
+
+	private int maxRegexSteps = Integer.MAX_VALUE;
+
 	public PathMatcher() {
 	}
 	
@@ -136,7 +254,106 @@ public class PathMatcher {
 	}
 
 	public void addURITemplate(URITemplate template) {
-		new URITemplateProcessor().process(template);
+		addURITemplate(template, ALL_TAGS);
+	}
+
+	/**
+	 * Register a template carrying a set of tags, for example the HTTP method it handles,
+	 * the API version it belongs to or a feature flag. Each tag is a bit in the mask and
+	 * it is up to the caller to assign the bits. The matching methods that take a
+	 * <tt>requiredTags</tt> mask only report templates carrying all the required tags
+	 * and do not descend into parts of the tree where no template carries them.
+	 */
+	public synchronized void addURITemplate(URITemplate template, long tags) {
+		new URITemplateProcessor().process(template, tags);
+		int id = templateIds.get(template);
+		if (id >= registrationCounts.length) {
+			registrationCounts = Arrays.copyOf(registrationCounts, Math.max(id + 1, registrationCounts.length * 2));
+		}
+		registrationCounts[id]++;
+		prefixIndex = null;
+	}
+
+	/**
+	 * Remove a template added earlier. Segments of the tree shared with other templates
+	 * are reference counted, so only those no other template passes through are removed,
+	 * and the work is proportional to the length of the template. A template added more
+	 * than once stays until it has been removed as many times, then its id is freed and
+	 * given to the next new template. This removes the most recent registration, see
+	 * {@link #removeURITemplate(URITemplate, long)} to remove one carrying particular tags.
+	 * Like adding, this must not happen while paths are being matched.
+	 *
+	 * @return true if the template was found and removed
+	 */
+	public synchronized boolean removeURITemplate(URITemplate template) {
+		return removeRegistration(template, ALL_TAGS, true);
+	}
+
+	/**
+	 * Remove the most recent registration of a template that carried exactly the specified
+	 * tags, as {@link #removeURITemplate(URITemplate)}. Its tags no longer match and the
+	 * segments on its route only carry the tags of the registrations that remain.
+	 *
+	 * @return true if the template had been registered with the tags and was removed
+	 */
+	public synchronized boolean removeURITemplate(URITemplate template, long tags) {
+		return removeRegistration(template, tags, false);
+	}
+
+	private boolean removeRegistration(URITemplate template, long tags, boolean anyTags) {
+		boolean removed = new URITemplateProcessor().remove(template, tags, anyTags);
+		if (removed) {
+			int id = templateIds.get(template);
+			if (--registrationCounts[id] == 0) {
+				releaseTemplate(template, id);
+			}
+			prefixIndex = null;
+		}
+		return removed;
+	}
+
+	/**
+	 * @return the slot in each thread's reusable matchers for a new regex segment
+	 */
+	private int nextMatcherSlot() {
+		return regexSegmentCount++ & (MATCHER_SLOTS - 1);
+	}
+
+	/**
+	 * Templates are numbered from zero in the order they are first registered, reusing
+	 * the ids of removed templates, and registering an equal template again gives it the
+	 * same id. So ids stay dense, however many templates come and go.
+	 */
+	private int registerTemplate(URITemplate template) {
+		Integer id = templateIds.get(template);
+		if (id == null) {
+			int free = freeIds.nextSetBit(0);
+			if (free != -1) {
+				freeIds.clear(free);
+				id = free;
+				templatesById.set(id, template);
+			} else {
+				id = templatesById.size();
+				templatesById.add(template);
+			}
+			templateIds.put(template, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Forget a template once its last registration has been removed, freeing its id.
+	 * Free ids at the end are dropped so that the template count shrinks back.
+	 */
+	private void releaseTemplate(URITemplate template, int id) {
+		templateIds.remove(template);
+		expanders.remove(template);
+		templatesById.set(id, null);
+		freeIds.set(id);
+		for (int last = templatesById.size() - 1; last >= 0 && templatesById.get(last) == null; last--) {
+			templatesById.remove(last);
+			freeIds.clear(last);
+		}
 	}
 
 	/**
@@ -153,16 +370,92 @@ public class PathMatcher {
 		private boolean qmark, wildcard, capturing, multiSegmentMatching;
 		private List<Segment> segments = new ArrayList<Segment>();
 		private int separatorCount;
+		private long tags;
+		// When building the prefix index, the roots to merge into instead of the patterns map
+		private List<Segment> prefixRoots;
 
 		// TODO verify nothing after {*foo}
 		// TODO [1] tidy up this mess
-		private void process(URITemplate template) {
+		private void process(URITemplate template, long tags) {
+			this.tags = tags;
+			prepare(template);
+			parseToSegmentChain();
+		}
+
+		/**
+		 * Undo one earlier {@link #process(URITemplate, long)} of an equal template. Each
+		 * segment on its route through the tree loses a reference and those no other
+		 * template passes through are unlinked. The tags of those that stay are recomputed
+		 * from the registrations left below them.
+		 *
+		 * @return false if the template is not in the tree, or not registered with the tags
+		 */
+		private boolean remove(URITemplate template, long tags, boolean anyTags) {
+			Integer id = templateIds.get(template);
+			if (id == null) {
+				return false;
+			}
+			prepare(template);
+			parseSegments();
+			identify(id);
+			Segment root = multiSegmentMatching ? findVariableRoot(segments.get(0)) : findRoot(separatorCount, segments.get(0));
+			Segment[] route = root == null ? null : route(root);
+			if (route == null) {
+				return false;
+			}
+			MatchSuccessSegment leaf = (MatchSuccessSegment) route[route.length - 1];
+			int registration = leaf.findRegistration(tags, anyTags);
+			if (registration == -1) {
+				return false;
+			}
+			for (int s = route.length - 1; s >= 0; s--) {
+				if (--route[s].references == 0) {
+					if (s == 0 && multiSegmentMatching) {
+						removeVariableRoot(root);
+					} else if (s == 0) {
+						removeRoot(separatorCount, root);
+					} else {
+						removeNext(route[s - 1], route[s]);
+					}
+				}
+			}
+			if (leaf.references != 0) {
+				leaf.removeRegistration(registration);
+			}
+			for (int s = route.length - 2; s >= 0; s--) {
+				if (route[s].references != 0) {
+					route[s].tagMask = unionOfTags(route[s].nextSegments);
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return the segments of the tree the parsed template passes through from the root, or null if it is not there
+		 */
+		private Segment[] route(Segment root) {
+			if (!root.equals(segments.get(0))) {
+				return null;
+			}
+			Segment[] route = new Segment[segments.size()];
+			route[0] = root;
+			for (int s = 1; s < route.length; s++) {
+				route[s] = findNext(route[s - 1], segments.get(s));
+				if (route[s] == null) {
+					return null;
+				}
+			}
+			return route;
+		}
+
+		/**
+		 * Take the text of the template, trimmed, encoded and lower cased as the matcher is configured to.
+		 */
+		private void prepare(URITemplate template) {
 			this.templatex = template;
 			this.templateText = template.getTemplateText().toCharArray();
 			len = this.templateText.length;
 			if (trimTokens) {
-				if (DEBUG) 
-					System.out.println("Pre  trim: '"+new String(templateText)+"' length="+templateText.length);
 				int c = 0; // the position in the new data
 				int i = 0; // the position in the original data
 				// Skip over leading whitespace
@@ -178,21 +471,143 @@ public class PathMatcher {
 						// Scan over whitespace after the separator
 						while (i<len && templateText[i]==' ') i++;
 					} else {
-						templateText[c++] = caseSensitive?Character.toLowerCase(ch):ch;
+						templateText[c++] = ch;
 						i++;
 					}
 				}
 				// Scan backwards over whitespace
 				while (c>0 && templateText[c-1]==' ') c--;
-				if (DEBUG) 
-					System.out.println("Post trim: '"+new String(templateText,0,c)+"' length: "+c);
 				len = c;
-			} else if (!caseSensitive) {
-				// Convert the whole path to lower case (patterns will have already been converted)
+			}
+			if (encodedPaths) {
+				// Literals are compared with the path in its canonical encoding
+				char[] encoded = PercentEncoding.encodeTemplate(templateText, len, separator);
+				if (encoded != templateText) {
+					templateText = encoded;
+					len = encoded.length;
+				}
+			}
+			if (!caseSensitive) {
+				// Convert to lower case as the path will be, but leave variable names and
+				// their constraints alone (the constraints are compiled case insensitive)
+				int depth = 0;
 				for (int i=0;i<len;i++) {
-					templateText[i] = Character.toLowerCase(templateText[i]);
+					char ch = templateText[i];
+					if (ch == '{') {
+						depth++;
+					} else if (ch == '}') {
+						depth--;
+					} else if (depth == 0) {
+						templateText[i] = Character.toLowerCase(ch);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Parse the template text exactly as written (no trimming or case conversion) into
+		 * a chain of segments without recording it in the tree.
+		 */
+		List<Segment> parse(URITemplate template) {
+			this.templatex = template;
+			this.templateText = template.getTemplateText().toCharArray();
+			len = this.templateText.length;
+			parseSegments();
+			return segments;
+		}
+
+		/**
+		 * Parse the template into a chain of its own, neither registered nor recorded in the tree.
+		 */
+		private CompiledTemplate compile(URITemplate template) {
+			this.tags = ALL_TAGS;
+			prepare(template);
+			parseSegments();
+			identify(-1);
+			link();
+			Segment first = segments.get(0);
+			first.minimumSeparators = separatorCount;
+			return new CompiledTemplate(first, multiSegmentMatching);
+		}
+
+		private void parseToSegmentChain() {
+			parseSegments();
+			identify(registerTemplate(templatex));
+			link();
+			Segment segmentToInsert = segments.get(0);
+			if (prefixRoots != null) {
+				for (Segment root : prefixRoots) {
+					if (root.equals(segmentToInsert)) {
+						merge(root, segmentToInsert);
+						return;
+					}
+				}
+				prefixRoots.add(segmentToInsert);
+			} else if (!multiSegmentMatching) {
+				recordPattern(segmentToInsert, separatorCount, true);
+			} else {
+				segmentToInsert.minimumSeparators = separatorCount;
+				recordVariablePattern(segmentToInsert);
+			}
+		}
+
+		/**
+		 * Tag the parsed segments and join them in a chain.
+		 */
+		private void link() {
+			for (Segment segment : segments) {
+				segment.tagMask = tags;
+			}
+			for (int s = segments.size() - 2; s >= 0; s--) {
+				Segment segment = segments.get(s);
+				segment.nextSegments = new Segment[] { segments.get(s + 1) };
+			}
+			// Some of these backpointers will be modified when the new chain is
+			// inserted into the tree
+			for (int s = segments.size() - 1; s > 0; s--) {
+				Segment segment = segments.get(s);
+				segment.previousSegment = segments.get(s - 1);
+			}
+		}
+
+		/**
+		 * Give the parsed segments the id of their template: the leaf, and the first <tt>**</tt>
+		 * so that only the segments before it are shared with other templates.
+		 */
+		private void identify(int id) {
+			((MatchSuccessSegment) segments.get(segments.size() - 1)).id = id;
+			for (Segment segment : segments) {
+				if (segment instanceof SeparatorStarStarSegment) {
+					((SeparatorStarStarSegment) segment).templateId = id;
+					break;
 				}
 			}
+		}
+
+		/**
+		 * Merge a variable length chain into the variable roots. Unlike the fixed roots they
+		 * are not kept by separator count, a template with <tt>**</tt> matches paths with any
+		 * number of separators above the number it has itself, and new roots go last so that
+		 * templates sharing nothing are tried in the order they were registered.
+		 */
+		private void recordVariablePattern(Segment segment) {
+			Segment root = findVariableRoot(segment);
+			if (root != null) {
+				root.minimumSeparators = Math.min(root.minimumSeparators, segment.minimumSeparators);
+				merge(root, segment);
+				return;
+			}
+			Segment[] roots = Arrays.copyOf(variableRoots, variableRoots.length + 1);
+			roots[roots.length - 1] = segment;
+			variableRoots = roots;
+			if (variableRootIndex != null) {
+				variableRootIndex.put(segment, segment);
+			} else if (roots.length > INDEXED_FANOUT) {
+				variableRootIndex = index(roots);
+			}
+		}
+
+		private void parseSegments() {
 			start = -1; // Tracks the beginning of the current element being
 						// processed within the template
 			qmark = false; // Is there a ? in the element being processed
@@ -200,11 +615,6 @@ public class PathMatcher {
 			capturing = false; // Is there a {...} in the element being
 								// processed
 			multiSegmentMatching = false; // Does this template use elements that match multiple segments: /** or /{*foo}
-			pos = 0;
-			parseToSegmentChain();
-		}
-
-		private void parseToSegmentChain() {
 			for (pos = 0; pos < len; pos++) {
 				char ch = templateText[pos];
 				if (ch == separator) {
@@ -212,7 +622,12 @@ public class PathMatcher {
 						pushSegment();
 					}
 					if (peekSlashStarStar()) {
-						segments.add(new SeparatorStarStarSegment(pos));
+						SeparatorStarStarSegment starStar = new SeparatorStarStarSegment(pos);
+						if (multiSegmentMatching) {
+							// An earlier ** or {*foo} can reach this one from many separators
+							starStar.memoized = true;
+						}
+						segments.add(starStar);
 						multiSegmentMatching = true;
 						pos += 2;
 					} else {
@@ -237,26 +652,6 @@ public class PathMatcher {
 				pushSegment();
 			}
 			segments.add(new MatchSuccessSegment(templateText.length, templatex));
-
-			// Join them in a chain
-			for (int s = segments.size() - 2; s >= 0; s--) {
-				Segment segment = segments.get(s);
-				segment.nextSegments = new Segment[] { segments.get(s + 1) };
-			}
-			// Some of these backpointers will be modified when the new chain is
-			// inserted into the tree
-			for (int s = segments.size() - 1; s > 0; s--) {
-				Segment segment = segments.get(s);
-				segment.previousSegment = segments.get(s - 1);
-			}
-			printChainHelper(System.out, segments.get(0), 0);
-			Segment segmentToInsert = segments.get(0);
-			if (!multiSegmentMatching) {
-				recordPattern(segmentToInsert, separatorCount, true);
-			} else {
-				// TODO [1] should attempt merge into existing before adding new, it may be possible
-				patternsVariableSeparators.add(new VariableSegmentRoot(segmentToInsert, separatorCount));
-			}
 		}
 
 		private boolean recordPattern(Segment segment, int separatorCount, boolean insertIfNewRoot) {
@@ -267,20 +662,15 @@ public class PathMatcher {
 				} else {
 					roots = new Segment[] { segment };
 					patternsMap.put(separatorCount, roots);
-					if (separatorCount>maxKey) {
-						maxKey = separatorCount;
-					}
 					return true;
 				}
 			}
 			// There are existing roots, let's see if this merges with any of
 			// them
-			for (Segment root : roots) {
-				if (root.equals(segment)) {
-					// Candidate
-					merge(root, segment);
-					return true;
-				}
+			Segment root = findRoot(separatorCount, segment);
+			if (root != null) {
+				merge(root, segment);
+				return true;
 			}
 			if (insertIfNewRoot) {
 				// It is a new root
@@ -288,6 +678,12 @@ public class PathMatcher {
 				System.arraycopy(roots, 0, newRoots, 1, roots.length);
 				newRoots[0] = segment;
 				patternsMap.put(separatorCount, newRoots);
+				Map<Segment, Segment> index = rootIndexes.get(separatorCount);
+				if (index != null) {
+					index.put(segment, segment);
+				} else if (newRoots.length > INDEXED_FANOUT) {
+					rootIndexes.put(separatorCount, index(newRoots));
+				}
 				return true;
 			}
 			return false;
@@ -296,7 +692,7 @@ public class PathMatcher {
 		private void pushSegment() {
 			String segmentText = new String(templateText,start,pos-start);
 			if (wildcard || capturing) {
-				if (capturing && (start==0 || templateText[start-1]==separator) && templateText[pos-1]=='}' && (pos==len || templateText[pos]==separator)) {
+				if (capturing && (start==0 || templateText[start-1]==separator) && closingBrace(start)==pos-1 && (pos==len || templateText[pos]==separator)) {
 					// It is a full capture /{...}/
 					// Is it a {*foobar} or just a {foobar}
 					if (templateText[start+1]=='*') {
@@ -323,6 +719,24 @@ public class PathMatcher {
 			capturing = false;
 		}
 
+		/**
+		 * @return the index of the brace closing the one at the specified index, or -1 if it does not start with one
+		 */
+		private int closingBrace(int openIndex) {
+			if (templateText[openIndex] != '{') {
+				return -1;
+			}
+			int depth = 0;
+			for (int i = openIndex; i < pos; i++) {
+				if (templateText[i] == '{') {
+					depth++;
+				} else if (templateText[i] == '}' && --depth == 0) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
 		private boolean peekSlashStarStar() {
 			// We know template[pos] == separator
 			return ((pos + 2) < len && templateText[pos + 1] == '*' && templateText[pos + 2] == '*');
@@ -330,14 +744,132 @@ public class PathMatcher {
 
 	}
 
+	/**
+	 * @return the root equal to the specified segment amongst those for the separator count, or null
+	 */
+	private Segment findRoot(int separatorCount, Segment like) {
+		Map<Segment, Segment> index = rootIndexes.get(separatorCount);
+		if (index != null) {
+			return index.get(like);
+		}
+		Segment[] roots = patternsMap.get(separatorCount);
+		if (roots != null) {
+			for (Segment root : roots) {
+				if (root.equals(like)) {
+					return root;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the variable root equal to the specified segment, or null
+	 */
+	private Segment findVariableRoot(Segment like) {
+		if (variableRootIndex != null) {
+			return variableRootIndex.get(like);
+		}
+		for (Segment root : variableRoots) {
+			if (root.equals(like)) {
+				return root;
+			}
+		}
+		return null;
+	}
+
+	private void removeVariableRoot(Segment root) {
+		variableRoots = without(variableRoots, root);
+		if (variableRootIndex != null) {
+			variableRootIndex.remove(root);
+		}
+	}
+
+	private void removeRoot(int separatorCount, Segment root) {
+		Segment[] roots = without(patternsMap.get(separatorCount), root);
+		if (roots.length == 0) {
+			patternsMap.remove(separatorCount);
+			rootIndexes.remove(separatorCount);
+		} else {
+			patternsMap.put(separatorCount, roots);
+			Map<Segment, Segment> index = rootIndexes.get(separatorCount);
+			if (index != null) {
+				index.remove(root);
+			}
+		}
+	}
+
+	/**
+	 * @return the next segment of the parent equal to the specified segment, or null
+	 */
+	private static Segment findNext(Segment parent, Segment like) {
+		if (parent.nextSegmentIndex != null) {
+			return parent.nextSegmentIndex.get(like);
+		}
+		if (parent.nextSegments != null) {
+			for (Segment next : parent.nextSegments) {
+				if (next.equals(like)) {
+					return next;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static void removeNext(Segment parent, Segment next) {
+		parent.nextSegments = without(parent.nextSegments, next);
+		if (parent.nextSegmentIndex != null) {
+			parent.nextSegmentIndex.remove(next);
+		}
+	}
+
+	private static Segment[] without(Segment[] segments, Segment segment) {
+		Segment[] remaining = new Segment[segments.length - 1];
+		for (int i = 0, r = 0; i < segments.length; i++) {
+			if (segments[i] != segment) {
+				remaining[r++] = segments[i];
+			}
+		}
+		return remaining;
+	}
+
+	private static long unionOfTags(Segment[] segments) {
+		long tags = 0;
+		for (Segment segment : segments) {
+			tags |= segment.tagMask;
+		}
+		return tags;
+	}
+
+	private static long unionOfTags(long[] registrations) {
+		long tags = 0;
+		for (long registration : registrations) {
+			tags |= registration;
+		}
+		return tags;
+	}
+
+	private static Map<Segment, Segment> index(Segment[] segments) {
+		Map<Segment, Segment> index = new HashMap<>();
+		for (Segment segment : segments) {
+			index.put(segment, segment);
+		}
+		return index;
+	}
+
 	public void dumpMatcherState(PrintStream stream) {
-		if (!DEBUG) return;
 		for (Map.Entry<Integer, Segment[]> entry : patternsMap.entrySet()) {
 			stream.println("Separators: #" + entry.getKey());
 			for (Segment root : entry.getValue()) {
 				printChainHelper(stream, root, 0);
 			}
 		}
+		if (variableRoots.length != 0) {
+			stream.println("Variable length");
+			for (Segment root : variableRoots) {
+				printChainHelper(stream, root, 0);
+			}
+		}
 		stream.println("Patterns length = #" + patternsMap.size());
 	}
 
@@ -363,9 +895,18 @@ public class PathMatcher {
 		if (!target.equals(toMerge)) {
 			throw new IllegalStateException("?? " + target + " != " + toMerge);
 		}
+		if (target instanceof MatchSuccessSegment) {
+			((MatchSuccessSegment) target).addRegistration(toMerge.tagMask);
+		}
+		target.tagMask |= toMerge.tagMask;
+		target.references++;
 		// We know that target matches toMerge, so now we need to see what else
 		// matches down this route
-		if (toMerge.nextSegments != null && toMerge.nextSegments.length > 1) {
+		if (toMerge.nextSegments == null) {
+			// Both are the end of the same template, it has been added before
+			return;
+		}
+		if (toMerge.nextSegments.length > 1) {
 			throw new IllegalStateException("Inconceivable!");
 		}
 		Segment nextMergeableSegment = toMerge.nextSegments[0];
@@ -375,22 +916,22 @@ public class PathMatcher {
 			nextTargetSegments = new Segment[] { nextMergeableSegment };
 			nextMergeableSegment.previousSegment = target;
 		} else {
-			boolean insert = true;
-			for (Segment nextTargetSegment : nextTargetSegments) {
-				if (nextTargetSegment.equals(nextMergeableSegment)) {
-					// Match, pass it on
-					merge(nextTargetSegment, nextMergeableSegment);
-					insert = false;
-					break;
-				}
-			}
-			if (insert) {
+			Segment nextTargetSegment = findNext(target, nextMergeableSegment);
+			if (nextTargetSegment != null) {
+				// Match, pass it on
+				merge(nextTargetSegment, nextMergeableSegment);
+			} else {
 				// Not found amongst existing next links, insert
 				Segment[] newNext = new Segment[nextTargetSegments.length + 1];
 				System.arraycopy(nextTargetSegments, 0, newNext, 1, nextTargetSegments.length);
 				newNext[0] = nextMergeableSegment;
 				nextMergeableSegment.previousSegment = target;
 				target.nextSegments = newNext;
+				if (target.nextSegmentIndex != null) {
+					target.nextSegmentIndex.put(nextMergeableSegment, nextMergeableSegment);
+				} else if (newNext.length > INDEXED_FANOUT) {
+					target.nextSegmentIndex = index(newNext);
+				}
 			}
 		}
 
@@ -439,6 +980,9 @@ public class PathMatcher {
 				}
 			}
 		}
+		for (Segment root : variableRoots) {
+			collect(root, patternList);
+		}
 		return patternList.toArray(new String[patternList.size()]);
 	}
 
@@ -457,24 +1001,35 @@ public class PathMatcher {
 
 	// TODO delete this or keep it? Change name of incoming
 	public boolean matches(String incoming) {
+		return matches(incoming, 0);
+	}
+
+	/**
+	 * @return true if the path matches a template carrying all the required tags
+	 */
+	public boolean matches(String incoming, long requiredTags) {
 		MatchingContext matchingContext = new MatchingContext(incoming,false);
-		dumpMatcherState(System.out);
+		matchingContext.requiredTags = requiredTags;
+		matchingContext.skipCaptures = true;
 		// Try exact ones
-		Segment[] candidates = patternsMap.get(matchingContext.separatorCount);
-		if (candidates != null) {
-			for (Segment candidate : candidates) {
-				candidate.matches(0, 0, matchingContext);
-				if (matchingContext.hasResults()) {
-					return true;
+		for (int t = 0, max = matchingContext.optionalTrailingSeparators(); t <= max; t++) {
+			Segment[] candidates = patternsMap.get(matchingContext.separatorCount - t);
+			if (candidates != null) {
+				for (Segment candidate : candidates) {
+					candidate.matches(0, 0, matchingContext);
+					if (matchingContext.hasResults()) {
+						sample(matchingContext);
+						return true;
+					}
 				}
 			}
 		}
 		// Try variable length ones
-		for (VariableSegmentRoot vsr : patternsVariableSeparators) {
-			if (vsr.getMinimumSegmentCount()<=matchingContext.separatorCount) {
-				// TODO verify we only test the right number of candidates when there are multiple
-				vsr.getRoot().matches(0, 0, matchingContext);
+		for (Segment root : variableRoots) {
+			if (root.minimumSeparators <= matchingContext.separatorCount) {
+				root.matches(0, 0, matchingContext);
 				if (matchingContext.hasResults()) {
+					sample(matchingContext);
 					return true;
 				}
 			}
@@ -485,26 +1040,19 @@ public class PathMatcher {
 	// TODO [1] name
 	public List<MatchResult> findAllPrefixMatchesStarting(String pathToMatch) {
 		MatchingContext matchingContext = new MatchingContext(pathToMatch, true, true);
-		dumpMatcherState(System.out);
-
-		for (int i = matchingContext.separatorCount; i<=maxKey; i++) {
-			Segment[] candidates = patternsMap.get(i);
-			if (candidates != null) {
-				for (Segment candidate : candidates) {
-					// TODO push sepnum/candidateindex into mc?
-					candidate.matches(0, 0, matchingContext); 
-					if (matchingContext.hasResults() && !matchingContext.findAllMatches) {
-						return matchingContext.getMatchResults();
-					}
-				}
+		PrefixIndex index = getPrefixIndex();
+		matchingContext.prefixTemplates = index.templates;
+		for (Segment candidate : index.roots) {
+			candidate.matches(0, 0, matchingContext);
+			if (matchingContext.hasResults() && !matchingContext.findAllMatches) {
+				return matchingContext.getMatchResults();
 			}
 		}
 		// Now must try the variable ones (/** /{*foobar})
 		// Try variable length ones
-		for (VariableSegmentRoot vsr : patternsVariableSeparators) {
-			if (vsr.getMinimumSegmentCount()<=matchingContext.separatorCount) {
-				// TODO verify we only test the right number of candidates when there are multiple
-				vsr.getRoot().matches(0, 0, matchingContext);
+		for (Segment root : variableRoots) {
+			if (root.minimumSeparators <= matchingContext.separatorCount) {
+				root.matches(0, 0, matchingContext);
 				if (matchingContext.hasResults() && !matchingContext.findAllMatches) {
 					return matchingContext.getMatchResults();
 				}
@@ -521,113 +1069,1946 @@ public class PathMatcher {
 		return matchingContext.getMatchResults();
 	}
 
+	/**
+	 * Find the template matching the longest leading part of the path, as when choosing
+	 * which servlet mount (<tt>/admin</tt>, <tt>/admin/reports</tt>, <tt>/api</tt>)
+	 * handles a request. A template matches a leading part of the path if it matches
+	 * whole elements of it, so <tt>/admin</tt> is a prefix of <tt>/admin/reports/1</tt>
+	 * but not of <tt>/administrator</tt>. Only templates without <tt>**</tt> or
+	 * <tt>{*x}</tt> are considered. When two templates match equally long parts, the
+	 * one {@link #findAllMatches(String)} would report first is chosen.
+	 *
+	 * <p>The tree of templates is walked once along the elements of the path and
+	 * nothing is allocated, the result is written into the supplied holder.
+	 *
+	 * @return true if a template matched, the holder is cleared if not
+	 */
+	public boolean findLongestPrefixMatch(String pathToMatch, PrefixMatch match) {
+		PrefixIndex index = getPrefixIndex();
+		Traversal traversal = acquireTraversal(pathToMatch, false);
+		try {
+			traversal.restartForMounts(index.roots);
+			MatchSuccessSegment longest = null;
+			int longestEnd = -1;
+			while (traversal.advance()) {
+				int end = traversal.matchEnd();
+				if (end > longestEnd) {
+					longest = traversal.current;
+					longestEnd = end;
+				}
+			}
+			if (longest == null) {
+				match.clear();
+				return false;
+			}
+			match.set(longest.template, longest.id, traversal.matchingContext.originalIndex(longestEnd));
+			return true;
+		} finally {
+			traversal.release();
+		}
+	}
+
+	/**
+	 * The fixed length templates merged into one tree regardless of how many separators
+	 * they contain, so a prefix search walks at most the depth of the path once. Each
+	 * node knows the range of {@link #templates} below it, which is everything that
+	 * matches when the path runs out at that node.
+	 */
+	static class PrefixIndex {
+
+		final Segment[] roots;
+
+		// All the templates in depth first order, so those below any node are contiguous
+		final URITemplate[] templates;
+
+		PrefixIndex(Segment[] roots, URITemplate[] templates) {
+			this.roots = roots;
+			this.templates = templates;
+		}
+
+	}
+
+	/**
+	 * @return the prefix index, built on first use after templates have been added
+	 */
+	private PrefixIndex getPrefixIndex() {
+		PrefixIndex index = prefixIndex;
+		if (index == null) {
+			synchronized (this) {
+				index = prefixIndex;
+				if (index == null) {
+					index = buildPrefixIndex();
+					prefixIndex = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	private PrefixIndex buildPrefixIndex() {
+		List<MatchSuccessSegment> leaves = new ArrayList<>();
+		for (Segment[] roots : patternsMap.values()) {
+			for (Segment root : roots) {
+				collectLeaves(root, leaves);
+			}
+		}
+		List<Segment> roots = new ArrayList<>();
+		for (MatchSuccessSegment leaf : leaves) {
+			for (long tags : leaf.registrationTags()) {
+				URITemplateProcessor processor = new URITemplateProcessor();
+				processor.prefixRoots = roots;
+				processor.process(leaf.template, tags);
+			}
+		}
+		List<URITemplate> templates = new ArrayList<>(leaves.size());
+		for (Segment root : roots) {
+			numberTemplates(root, templates);
+		}
+		return new PrefixIndex(roots.toArray(new Segment[roots.size()]), templates.toArray(new URITemplate[templates.size()]));
+	}
+
+	private void collectLeaves(Segment segment, List<MatchSuccessSegment> leaves) {
+		if (segment instanceof MatchSuccessSegment) {
+			leaves.add((MatchSuccessSegment) segment);
+		} else {
+			for (Segment nextSegment : segment.nextSegments) {
+				collectLeaves(nextSegment, leaves);
+			}
+		}
+	}
+
+	private void numberTemplates(Segment segment, List<URITemplate> templates) {
+		segment.firstTemplate = templates.size();
+		if (segment instanceof MatchSuccessSegment) {
+			templates.add(((MatchSuccessSegment) segment).template);
+		} else {
+			for (Segment nextSegment : segment.nextSegments) {
+				numberTemplates(nextSegment, templates);
+			}
+		}
+		segment.lastTemplate = templates.size();
+	}
+
 	/**
 	 * Return all the matches, not just the first one.
 	 */
 	public List<MatchResult> findAllMatches(String pathToMatch) {
+		return findAllMatches(pathToMatch, 0);
+	}
+
+	/**
+	 * Return all the matches against templates carrying all the required tags.
+	 */
+	public List<MatchResult> findAllMatches(String pathToMatch, long requiredTags) {
 		MatchingContext matchingContext = new MatchingContext(pathToMatch,true);
-		dumpMatcherState(System.out);
-		Segment[] candidates = patternsMap.get(matchingContext.separatorCount);
-		if (candidates != null) {
-			for (Segment candidate : candidates) {
-				// TODO push sepnum/candidateindex into mc?
-				candidate.matches(0, 0, matchingContext); 
-				if (matchingContext.hasResults() && !matchingContext.findAllMatches) {
-					return matchingContext.getMatchResults();
+		matchingContext.requiredTags = requiredTags;
+		collectMatches(matchingContext);
+		sample(matchingContext);
+		return matchingContext.getMatchResults();
+	}
+
+	/**
+	 * Walk both the fixed length and variable length trees for the path held in the context,
+	 * adding results to it. The context may have been prepared by another matcher configured
+	 * with the same separator, trimming and case sensitivity, which allows several trees to
+	 * be searched for a path that was only scanned once.
+	 *
+	 * @return true if a match was found and the context only wants the first one
+	 */
+	boolean collectMatches(MatchingContext matchingContext) {
+		for (int t = 0, max = matchingContext.optionalTrailingSeparators(); t <= max; t++) {
+			Segment[] candidates = patternsMap.get(matchingContext.separatorCount - t);
+			if (candidates != null) {
+				for (Segment candidate : candidates) {
+					// TODO push sepnum/candidateindex into mc?
+					candidate.matches(0, 0, matchingContext); 
+					if (matchingContext.hasResults() && !matchingContext.findAllMatches) {
+						return true;
+					}
 				}
 			}
 		}
-		for (VariableSegmentRoot vsr : patternsVariableSeparators) {
-			if (vsr.getMinimumSegmentCount()<=matchingContext.separatorCount) {
-				vsr.getRoot().matches(0, 0, matchingContext);
+		for (Segment root : variableRoots) {
+			if (root.minimumSeparators <= matchingContext.separatorCount) {
+				root.matches(0, 0, matchingContext);
 				if (matchingContext.hasResults() && !matchingContext.findAllMatches) {
-					return matchingContext.getMatchResults();
+					return true;
 				}
 			}
 		}
-		return matchingContext.getMatchResults();
+		return false;
+	}
+
+	public char getSeparator() {
+		return separator;
 	}
 
 	/**
-	 * Return all the matches, not just the first one.
+	 * @return a new empty matcher configured the same way as this one, other than adaptive
+	 *         ordering, so that its tree can be searched with a context this one prepared
+	 */
+	PathMatcher newCompatibleMatcher() {
+		PathMatcher matcher = new PathMatcher(separator, trimTokens, caseSensitive);
+		matcher.encodedPaths = encodedPaths;
+		matcher.normalizations.addAll(normalizations);
+		matcher.trailingSeparatorMatch = trailingSeparatorMatch;
+		matcher.suffixMatch = suffixMatch;
+		matcher.maxPathLength = maxPathLength;
+		matcher.maxSeparators = maxSeparators;
+		matcher.maxNodeVisits = maxNodeVisits;
+		matcher.maxRegexSteps = maxRegexSteps;
+		matcher.matchListener = matchListener;
+		return matcher;
+	}
+
+	/**
+	 * Return the first match, the first of those {@link #findAllMatches(String)} would return.
 	 */
 	public List<MatchResult> findFirstMatch(String pathToMatch) {
+		return findFirstMatch(pathToMatch, 0);
+	}
+
+	/**
+	 * Return the first match against a template carrying all the required tags.
+	 */
+	public List<MatchResult> findFirstMatch(String pathToMatch, long requiredTags) {
 		MatchingContext matchingContext = new MatchingContext(pathToMatch,false);
-		dumpMatcherState(System.out);
-		Segment[] candidates = patternsMap.get(matchingContext.separatorCount);
-		if (candidates != null) {
-			for (Segment candidate : candidates) {
-				candidate.matches(0, 0, matchingContext);
-				if (matchingContext.hasResults()) {
-					return matchingContext.getMatchResults();
+		matchingContext.requiredTags = requiredTags;
+		if (collectMatches(matchingContext)) {
+			sample(matchingContext);
+			return matchingContext.getMatchResults();
+		}
+		return null;
+	}
+
+	// Lazy matching
+
+	/**
+	 * Return the matches one at a time. The tree is only walked as far as needed to find
+	 * the next match, so a caller that stops early (or a {@link #streamMatches(String)}
+	 * pipeline using <tt>findFirst()</tt>, <tt>limit(n)</tt> or <tt>anyMatch</tt>) does not
+	 * pay for the rest of the search. The matches are those {@link #findAllMatches(String)}
+	 * would return, in the same order.
+	 */
+	public Iterator<MatchResult> iterateMatches(String pathToMatch) {
+		Traversal traversal = new Traversal(new MatchingContext(pathToMatch, true));
+		return new Iterator<MatchResult>() {
+
+			private boolean ready;
+
+			private boolean finished;
+
+			@Override
+			public boolean hasNext() {
+				if (!ready && !finished) {
+					ready = traversal.advance();
+					finished = !ready;
+				}
+				return ready;
+			}
+
+			@Override
+			public MatchResult next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				ready = false;
+				return traversal.toMatchResult();
+			}
+
+		};
+	}
+
+	/**
+	 * @return a lazily evaluated stream of the matches, see {@link #iterateMatches(String)}
+	 */
+	public Stream<MatchResult> streamMatches(String pathToMatch) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterateMatches(pathToMatch),
+				Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	/**
+	 * Report each match to the visitor as it is found, without creating any {@link MatchResult}
+	 * objects or result list. The matches are those {@link #findAllMatches(String)} would
+	 * return, in the same order. Once a thread has matched a few paths this does not allocate.
+	 *
+	 * @return the number of matches passed to the visitor
+	 */
+	public int findAllMatches(String pathToMatch, MatchVisitor visitor) {
+		Traversal traversal = acquireTraversal(pathToMatch, true);
+		try {
+			int count = 0;
+			while (traversal.advance()) {
+				count++;
+				if (!visitor.visit(traversal.current.template, traversal.current.id, traversal)) {
+					break;
 				}
 			}
+			return count;
+		} finally {
+			traversal.release();
 		}
-		return null;
 	}
 
-	class MatchingContext {
+	/**
+	 * @return the id of the first template matching the path (the first of those
+	 *         {@link #findAllMatches(String)} would return), or -1 if none match
+	 */
+	public int findFirstMatchId(String pathToMatch) {
+		Traversal traversal = acquireTraversal(pathToMatch, false);
+		try {
+			return traversal.advance() ? traversal.current.id : -1;
+		} finally {
+			traversal.release();
+		}
+	}
 
-		int[] separatorPositions;
-		int separatorCount = 0;
-		char[] candidate;
-		String candidateText;
-		int candidateLength;
-		int currentTagIndex = 0;
-		
-		// Configuration of the behaviour for matching during a specific walk of
-		// candidates
+	/**
+	 * Write the ids of all the templates matching the path into the array, in the order
+	 * {@link #findAllMatches(String)} would return them. Writing stops when the array is
+	 * full but the search carries on counting.
+	 *
+	 * @return the number of matching templates, if this is more than the array length then not all of them were written
+	 */
+	public int findAllMatchIds(String pathToMatch, int[] ids) {
+		Traversal traversal = acquireTraversal(pathToMatch, false);
+		try {
+			int count = 0;
+			while (traversal.advance()) {
+				if (count < ids.length) {
+					ids[count] = traversal.current.id;
+				}
+				count++;
+			}
+			return count;
+		} finally {
+			traversal.release();
+		}
+	}
 
-		// Find either the first or all matches  TODO change to findFirstMatch?
-		private boolean findAllMatches = true;
-		
-		// Find templates that at least match as much path as has been supplied
-		private boolean matchStart = false;
+	/**
+	 * Set the bits for the ids of all the templates matching the path, existing bits are
+	 * not cleared. To avoid the set growing size it with {@link #getTemplateCount()}.
+	 *
+	 * @return the number of matching templates
+	 */
+	public int findAllMatchIds(String pathToMatch, BitSet ids) {
+		Traversal traversal = acquireTraversal(pathToMatch, false);
+		try {
+			int count = 0;
+			while (traversal.advance()) {
+				ids.set(traversal.current.id);
+				count++;
+			}
+			return count;
+		} finally {
+			traversal.release();
+		}
+	}
 
-		private List<MatchResult> matchResults;
+	/**
+	 * As {@link #findAllMatchIds(String, int[])} for a path held in part of a char array,
+	 * for callers that read paths from a buffer and want to avoid creating a string for each one.
+	 *
+	 * @return the number of matching templates, if this is more than the array length then not all of them were written
+	 */
+	public int findAllMatchIds(char[] path, int offset, int length, int[] ids) {
+		Traversal traversal = acquireTraversal("", false);
+		try {
+			traversal.reset(path, offset, length);
+			int count = 0;
+			while (traversal.advance()) {
+				if (count < ids.length) {
+					ids[count] = traversal.current.id;
+				}
+				count++;
+			}
+			return count;
+		} finally {
+			traversal.release();
+		}
+	}
 
-		public MatchingContext(String pathToMatch, boolean findAllMatches) {
-			this.findAllMatches = findAllMatches;
-			prepare(pathToMatch);
+	/**
+	 * @return a traversal ready to walk the path, the caller must release it when done
+	 */
+	private Traversal acquireTraversal(String pathToMatch, boolean recordCaptures) {
+		Traversal traversal = traversals.get();
+		if (traversal == null || traversal.inUse) {
+			// First use on this thread, or a visitor is itself matching a path
+			Traversal fresh = new Traversal(new MatchingContext(pathToMatch, true));
+			if (traversal == null) {
+				traversals.set(fresh);
+			}
+			traversal = fresh;
+		} else {
+			traversal.reset(pathToMatch);
 		}
+		traversal.recordCaptures = recordCaptures;
+		traversal.inUse = true;
+		return traversal;
+	}
 
-		public MatchingContext(String pathToMatch, boolean findAllMatches, boolean matchStart) {
-			this.findAllMatches = findAllMatches;
-			this.matchStart = matchStart;
-			prepare(pathToMatch);
+	// Templates compiled on their own
+
+	/**
+	 * Parse a template into a chain of segments of its own, without adding it to this
+	 * matcher, so that many templates can be matched one at a time using the per-thread
+	 * state of a single matcher. Unlike adding templates this may happen while paths are
+	 * being matched.
+	 */
+	CompiledTemplate compile(URITemplate template) {
+		return new URITemplateProcessor().compile(template);
+	}
+
+	/**
+	 * A template compiled by {@link #compile(URITemplate)}. It holds nothing but its
+	 * segments, matching borrows the traversal the matcher keeps for each thread.
+	 */
+	final class CompiledTemplate {
+
+		// The first segment, as an array since that is how the traversal takes its roots
+		private final Segment[] roots;
+
+		private final boolean variableLength;
+
+		private CompiledTemplate(Segment first, boolean variableLength) {
+			this.roots = new Segment[] { first };
+			this.variableLength = variableLength;
 		}
 
-		public void addMatchResult(URITemplate template, String matchingCandidate) {
-			if (matchResults == null) {
-				matchResults = new LinkedList<>();
+		public boolean matches(String path) {
+			Traversal traversal = acquireTraversal(path, false);
+			try {
+				traversal.restartFor(this);
+				return traversal.advance();
+			} finally {
+				traversal.release();
 			}
-			matchResults.add(new MatchResult(template, matchingCandidate));
 		}
 
-		// TODO [1] name of this is hopeless
-		public boolean isOnlyMatchStartCheck() {
-			return matchStart;
+		/**
+		 * @return the match with its captured variables, or null if the path does not match
+		 */
+		public MatchResult match(String path) {
+			Traversal traversal = acquireTraversal(path, true);
+			try {
+				traversal.restartFor(this);
+				return traversal.advance() ? traversal.toMatchResult() : null;
+			} finally {
+				traversal.release();
+			}
 		}
 
-		public boolean hasResults() {
-			// TODO reduce cost of check? Or could eliminate with custom match method that always new to look for all results.
-			return this.matchResults != null && this.matchResults.size() != 0;
+		/**
+		 * @return true if the path matches the start of the template, see {@link #findAllPrefixMatchesStarting(String)}
+		 */
+		public boolean matchesStart(String path) {
+			MatchingContext matchingContext = new MatchingContext(path, false, true);
+			if (variableLength && roots[0].minimumSeparators > matchingContext.separatorCount) {
+				return false;
+			}
+			roots[0].matches(0, 0, matchingContext);
+			return matchingContext.hasResults();
+		}
+
+		/**
+		 * @return true if the template could match a path with as many separators as the context found
+		 */
+		private boolean fits(MatchingContext matchingContext) {
+			int extra = matchingContext.separatorCount - roots[0].minimumSeparators;
+			return variableLength ? extra >= 0 : extra >= 0 && extra <= matchingContext.optionalTrailingSeparators();
+		}
+
+	}
+
+	// Incremental matching
+
+	/**
+	 * What an {@link IncrementalMatcher} knows after each element of a path.
+	 */
+	public enum Progress {
+
+		/** No template can match, whatever elements follow */
+		NO_MATCH,
+
+		/** No template matches the path so far, but some may if more elements follow */
+		PARTIAL_MATCH,
+
+		/** At least one template matches the path so far, more elements may change that */
+		COMPLETE_MATCH
+
+	}
+
+	/**
+	 * @return a matcher to be given the elements of a path one at a time, for the templates
+	 *         registered so far
+	 */
+	public IncrementalMatcher newIncrementalMatcher() {
+		return new IncrementalMatcher(0);
+	}
+
+	/**
+	 * @return a matcher to be given the elements of a path one at a time, for the templates
+	 *         registered so far that carry all the required tags
+	 */
+	public IncrementalMatcher newIncrementalMatcher(long requiredTags) {
+		return new IncrementalMatcher(requiredTags);
+	}
+
+	// Template ids
+
+	/**
+	 * @return the number of template ids in use, ids run from 0 to one less than this; when
+	 *         templates have been removed some may be free, waiting to be reused
+	 */
+	public int getTemplateCount() {
+		return templatesById.size();
+	}
+
+	/**
+	 * @return the template with the specified id, or null if the id is free
+	 */
+	public URITemplate getTemplate(int id) {
+		return templatesById.get(id);
+	}
+
+	/**
+	 * @return the id given to the template when it was registered, or -1 if it has not been registered
+	 */
+	public int getTemplateId(URITemplate template) {
+		Integer id = templateIds.get(template);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Walks the tree for a single path using an explicit stack rather than the recursive
+	 * {@link Segment#matches(int, int, MatchingContext)} so that the walk can stop at each
+	 * match and be resumed later. The same rules are applied, so the same templates are
+	 * matched in the same order and a listener or the adaptive ordering is told the same
+	 * things, which the DifferentialFuzzTests check. Captures are recorded as offsets on the way down and so
+	 * apply to every match below the capturing segment. Nothing is allocated per step once
+	 * the stack has grown to the depth of the tree.
+	 */
+	class Traversal implements MatchCaptures {
+
+		private static final int PENDING = -2;
+
+		private static final int DIRECT = -1;
+
+		final MatchingContext matchingContext;
+
+		private Segment[] fixedRoots;
+
+		private int nextFixedRoot;
+
+		// Fixed length templates with one separator fewer, when the path ends with an optional separator
+		private Segment[] trailingRoots;
+
+		private int nextTrailingRoot;
+
+		private Segment[] variableRoots;
+
+		private int nextVariableRoot;
+
+		// Set when looking for mounts, see findLongestPrefixMatch()
+		private boolean mountsOnly;
+
+		// Set while a visitor is using this traversal
+		boolean inUse;
+
+		// Cleared when only the matching templates are wanted, so captures are not tracked
+		boolean recordCaptures = true;
+
+		// Set when the matches of this walk are recorded for adaptive ordering, see sample()
+		private boolean sampling;
+
+		// The stack, one entry per segment being walked
+		private Segment[] stack = new Segment[16];
+		private int[] candidateIndexes = new int[16];
+		private int[] separatorNumbers = new int[16];
+		private int[] childCandidateIndexes = new int[16];
+		private int[] childSeparatorNumbers = new int[16];
+		private int[] childIndexes = new int[16];
+		// For ** and {*x}: PENDING, DIRECT or the number of the separator to try the child from next
+		private int[] alternatives = new int[16];
+		// For ** and {*x}: the match count before the current child was tried
+		private int[] marks = new int[16];
+		// For **: the match count when it was entered
+		private int[] entryMarks = new int[16];
+		private int[] captureDepths = new int[16];
+		private boolean[] entered = new boolean[16];
+		private int depth;
+
+		// Captures made by the segments currently on the stack
+		String[] captureKeys = new String[8];
+		int[] captureStarts = new int[8];
+		int[] captureEnds = new int[8];
+		int captureCount;
+
+		private int matchCount;
+
+		MatchSuccessSegment current;
+
+		Traversal(MatchingContext matchingContext) {
+			this.matchingContext = matchingContext;
+			this.fixedRoots = patternsMap.get(matchingContext.separatorCount);
+			this.trailingRoots = matchingContext.optionalTrailingSeparators() == 0 ? null
+					: patternsMap.get(matchingContext.separatorCount - 1);
+			this.variableRoots = PathMatcher.this.variableRoots;
+			this.sampling = sampleNext();
+		}
+
+		/**
+		 * Start again for a different path, keeping the stack that has been grown so far.
+		 */
+		void reset(String pathToMatch) {
+			matchingContext.reset(pathToMatch);
+			restart();
+		}
+
+		void reset(char[] path, int offset, int length) {
+			matchingContext.reset(path, offset, length);
+			restart();
+		}
+
+		private void restart() {
+			fixedRoots = patternsMap.get(matchingContext.separatorCount);
+			nextFixedRoot = 0;
+			trailingRoots = matchingContext.optionalTrailingSeparators() == 0 ? null
+					: patternsMap.get(matchingContext.separatorCount - 1);
+			nextTrailingRoot = 0;
+			variableRoots = PathMatcher.this.variableRoots;
+			nextVariableRoot = 0;
+			mountsOnly = false;
+			sampling = sampleNext();
+			while (depth > 0) {
+				pop();
+			}
+			captureCount = 0;
+			matchCount = 0;
+			current = null;
+		}
+
+		/**
+		 * Walk the prefix index instead, visiting the templates that match whole leading
+		 * elements of the path.
+		 */
+		void restartForMounts(Segment[] prefixRoots) {
+			restart();
+			fixedRoots = prefixRoots;
+			trailingRoots = null;
+			variableRoots = NO_SEGMENTS;
+			mountsOnly = true;
+			sampling = false;
+		}
+
+		/**
+		 * Finish with the traversal, counting the sample if its matches were recorded.
+		 */
+		void release() {
+			finishSample();
+			inUse = false;
+		}
+
+		private void finishSample() {
+			if (sampling) {
+				sampling = false;
+				if (matchCount > 0) {
+					sampled();
+				}
+			}
+		}
+
+		/**
+		 * Walk the chain of a template compiled on its own instead of the tree.
+		 */
+		void restartFor(CompiledTemplate compiled) {
+			restart();
+			fixedRoots = compiled.fits(matchingContext) ? compiled.roots : null;
+			trailingRoots = null;
+			variableRoots = NO_SEGMENTS;
+			sampling = false;
+		}
+
+		/**
+		 * @return where in the path the current match ended, until the next call to {@link #advance()}
+		 */
+		int matchEnd() {
+			return candidateIndexes[depth];
+		}
+
+		/**
+		 * Move to the next match.
+		 * @return false if there are no more
+		 */
+		boolean advance() {
+			MatchingContext mc = matchingContext;
+			if (current != null) {
+				// Drop any extension captured by the success segment of the previous match
+				captureCount = captureDepths[depth];
+			}
+			while (true) {
+				if (depth == 0) {
+					Segment root = nextRoot();
+					if (root == null) {
+						// Done with the tree, so a reorder triggered by the sample cannot disturb the walk
+						finishSample();
+						return false;
+					}
+					push(root, 0, 0);
+				}
+				int f = depth - 1;
+				Segment segment = stack[f];
+				if (!entered[f]) {
+					entered[f] = true;
+					if (!segment.carries(mc.requiredTags)) {
+						segment.rejected(mc, candidateIndexes[f], Rejection.TAG_MISMATCH);
+						pop();
+					} else if (!enter(f, segment)) {
+						pop();
+					} else if (segment instanceof MatchSuccessSegment) {
+						current = (MatchSuccessSegment) segment;
+						matchCount++;
+						if (mc.listener != null) {
+							mc.listener.matchFound(current.template);
+						}
+						if (sampling) {
+							hitProfile.record(current.template.getTemplateText());
+						}
+						// Popped without dropping its captures, they are wanted until the next advance
+						depth--;
+						stack[depth] = null;
+						return true;
+					}
+					continue;
+				}
+				Segment[] next = segment.nextSegments;
+				if (segment instanceof SeparatorStarStarSegment || segment instanceof CapturingMultiTextSegment) {
+					boolean stopAtFirstAlternative = segment instanceof CapturingMultiTextSegment;
+					int alternative = alternatives[f];
+					if (alternative == PENDING) {
+						if (childIndexes[f] == next.length) {
+							if (matchCount == entryMarks[f] && !stopAtFirstAlternative
+									&& ((SeparatorStarStarSegment) segment).memoized) {
+								mc.recordFailure((SeparatorStarStarSegment) segment, separatorNumbers[f]);
+							}
+							pop();
+						} else {
+							marks[f] = matchCount;
+							alternatives[f] = DIRECT;
+							push(next[childIndexes[f]], candidateIndexes[f], separatorNumbers[f]);
+						}
+						continue;
+					}
+					if (alternative == DIRECT) {
+						if (matchCount > marks[f]) {
+							if (stopAtFirstAlternative) {
+								pop();
+							} else {
+								childIndexes[f]++;
+								alternatives[f] = PENDING;
+							}
+							continue;
+						}
+						alternative = separatorNumbers[f] + 1;
+					} else if (stopAtFirstAlternative && matchCount > marks[f]) {
+						childIndexes[f]++;
+						alternatives[f] = PENDING;
+						continue;
+					}
+					if (alternative <= mc.separatorCount) {
+						alternatives[f] = alternative + 1;
+						if (mc.listener != null)
+							mc.listener.backtracked(segment.toString(), candidateIndexes[f], mc.separatorPositions[alternative]);
+						push(next[childIndexes[f]], mc.separatorPositions[alternative], alternative);
+					} else {
+						childIndexes[f]++;
+						alternatives[f] = PENDING;
+					}
+				} else if (childIndexes[f] < next.length) {
+					push(next[childIndexes[f]++], childCandidateIndexes[f], childSeparatorNumbers[f]);
+				} else {
+					pop();
+				}
+			}
+		}
+
+		/**
+		 * Check whether the segment on the stack at the specified position matches, recording
+		 * where its children should continue from and any captures it makes.
+		 */
+		private boolean enter(int f, Segment segment) {
+			MatchingContext mc = matchingContext;
+			int candidateIndex = candidateIndexes[f];
+			int sn = separatorNumbers[f];
+			mc.countVisit();
+			if (mc.listener != null)
+				mc.listener.segmentVisited(segment.toString(), candidateIndex);
+			if (segment instanceof SeparatorSegment) {
+				if (candidateIndex >= mc.candidateLength) {
+					return segment.rejected(mc, candidateIndex, Rejection.END_OF_PATH);
+				}
+				if (mc.candidate[candidateIndex] != separator) {
+					return segment.rejected(mc, candidateIndex, Rejection.NOT_A_SEPARATOR);
+				}
+				return children(f, candidateIndex + 1, sn + 1);
+			} else if (segment instanceof LiteralSegment) {
+				char[] text = ((LiteralSegment) segment).text;
+				if (candidateIndex + text.length > mc.candidateLength) {
+					return segment.rejected(mc, candidateIndex, Rejection.END_OF_PATH);
+				}
+				for (int i = 0; i < text.length; i++) {
+					if (mc.candidate[candidateIndex + i] != text[i]) {
+						return segment.rejected(mc, candidateIndex + i, Rejection.TEXT_MISMATCH);
+					}
+				}
+				return children(f, candidateIndex + text.length, sn);
+			} else if (segment instanceof QuestionMarkedTextSegment) {
+				char[] text = ((QuestionMarkedTextSegment) segment).text;
+				if (candidateIndex + text.length > mc.candidateLength) {
+					return segment.rejected(mc, candidateIndex, Rejection.END_OF_PATH);
+				}
+				for (int i = 0; i < text.length; i++) {
+					if (text[i] != '?' && mc.candidate[candidateIndex + i] != text[i]) {
+						return segment.rejected(mc, candidateIndex + i, Rejection.TEXT_MISMATCH);
+					}
+				}
+				if (mc.separatorPositions[sn] != candidateIndex + text.length) {
+					return segment.rejected(mc, candidateIndex + text.length, Rejection.TEXT_MISMATCH);
+				}
+				return children(f, candidateIndex + text.length, sn);
+			} else if (segment instanceof CapturingTextSegment) {
+				CapturingTextSegment capturing = (CapturingTextSegment) segment;
+				int end = mc.separatorPositions[sn];
+				if (candidateIndex == end) {
+					return segment.rejected(mc, candidateIndex, Rejection.EMPTY_CAPTURE);
+				}
+				if (capturing.constraintPattern != null
+						&& !mc.regexMatcher(capturing.constraintPattern, capturing.matcherSlot, candidateIndex, end).matches()) {
+					return segment.rejected(mc, candidateIndex, Rejection.CONSTRAINT_MISMATCH);
+				}
+				capture(capturing.key, candidateIndex, end);
+				return children(f, end, sn);
+			} else if (segment instanceof WildcardedTextSegment) {
+				WildcardedTextSegment wildcarded = (WildcardedTextSegment) segment;
+				int end = mc.separatorPositions[sn];
+				Matcher m = mc.regexMatcher(wildcarded.pattern, wildcarded.matcherSlot, candidateIndex, end);
+				if (!m.matches()) {
+					return segment.rejected(mc, candidateIndex, Rejection.PATTERN_MISMATCH);
+				}
+				for (int g = 1; recordCaptures && g <= m.groupCount(); g++) {
+					if (m.start(g) != -1) {
+						capture(wildcarded.variableNames.get(g - 1), candidateIndex + m.start(g), candidateIndex + m.end(g));
+					}
+				}
+				return children(f, end, sn);
+			} else if (segment instanceof CapturingMultiTextSegment) {
+				// Going to assume that {*foo} is always the 'last' element in a chain, the value is the rest of the data
+				capture(((CapturingMultiTextSegment) segment).key, candidateIndex, mc.separatorPositions[mc.separatorCount]);
+				alternatives[f] = PENDING;
+				return true;
+			} else if (segment instanceof SeparatorStarStarSegment) {
+				if (candidateIndex != mc.separatorPositions[sn]) {
+					return segment.rejected(mc, candidateIndex, Rejection.NOT_A_SEPARATOR);
+				}
+				SeparatorStarStarSegment starStar = (SeparatorStarStarSegment) segment;
+				if (starStar.memoized && mc.knownFailure(starStar, sn)) {
+					return segment.rejected(mc, candidateIndex, Rejection.ALREADY_FAILED);
+				}
+				entryMarks[f] = matchCount;
+				alternatives[f] = PENDING;
+				return true;
+			} else if (mountsOnly) {
+				// A mount covers whole elements of the path
+				if (candidateIndex == 0 || candidateIndex == mc.candidateLength
+						|| mc.candidate[candidateIndex] == separator || mc.candidate[candidateIndex - 1] == separator) {
+					return true;
+				}
+				return segment.rejected(mc, candidateIndex, Rejection.UNMATCHED_PATH_REMAINING);
+			} else {
+				// If there is more path then it is not a match, unless the previous segment munches it
+				if (mc.isPathEnd(candidateIndex) || segment.previousSegment instanceof SeparatorStarStarSegment
+						|| segment.previousSegment instanceof CapturingMultiTextSegment) {
+					return true;
+				}
+				// or it is an extension on a template ending with literal text
+				int suffixEnd = segment.previousSegment instanceof LiteralSegment ? mc.suffixEnd(candidateIndex, sn) : -1;
+				if (suffixEnd == -1) {
+					return segment.rejected(mc, candidateIndex, Rejection.UNMATCHED_PATH_REMAINING);
+				}
+				capture(EXTENSION_VARIABLE, candidateIndex + 1, suffixEnd);
+				return true;
+			}
+		}
+
+		private boolean children(int f, int childCandidateIndex, int childSeparatorNumber) {
+			childCandidateIndexes[f] = childCandidateIndex;
+			childSeparatorNumbers[f] = childSeparatorNumber;
+			return true;
+		}
+
+		private Segment nextRoot() {
+			if (fixedRoots != null && nextFixedRoot < fixedRoots.length) {
+				return fixedRoots[nextFixedRoot++];
+			}
+			if (trailingRoots != null && nextTrailingRoot < trailingRoots.length) {
+				return trailingRoots[nextTrailingRoot++];
+			}
+			while (nextVariableRoot < variableRoots.length) {
+				Segment root = variableRoots[nextVariableRoot++];
+				if (root.minimumSeparators <= matchingContext.separatorCount) {
+					return root;
+				}
+			}
+			return null;
+		}
+
+		private void push(Segment segment, int candidateIndex, int sn) {
+			if (depth == stack.length) {
+				int size = depth * 2;
+				stack = Arrays.copyOf(stack, size);
+				candidateIndexes = Arrays.copyOf(candidateIndexes, size);
+				separatorNumbers = Arrays.copyOf(separatorNumbers, size);
+				childCandidateIndexes = Arrays.copyOf(childCandidateIndexes, size);
+				childSeparatorNumbers = Arrays.copyOf(childSeparatorNumbers, size);
+				childIndexes = Arrays.copyOf(childIndexes, size);
+				alternatives = Arrays.copyOf(alternatives, size);
+				marks = Arrays.copyOf(marks, size);
+				entryMarks = Arrays.copyOf(entryMarks, size);
+				captureDepths = Arrays.copyOf(captureDepths, size);
+				entered = Arrays.copyOf(entered, size);
+			}
+			stack[depth] = segment;
+			candidateIndexes[depth] = candidateIndex;
+			separatorNumbers[depth] = sn;
+			childIndexes[depth] = 0;
+			captureDepths[depth] = captureCount;
+			entered[depth] = false;
+			depth++;
+		}
+
+		private void pop() {
+			depth--;
+			captureCount = captureDepths[depth];
+			stack[depth] = null;
+		}
+
+		private void capture(String key, int start, int end) {
+			if (!recordCaptures) {
+				return;
+			}
+			if (captureCount == captureKeys.length) {
+				int size = captureCount * 2;
+				captureKeys = Arrays.copyOf(captureKeys, size);
+				captureStarts = Arrays.copyOf(captureStarts, size);
+				captureEnds = Arrays.copyOf(captureEnds, size);
+			}
+			captureKeys[captureCount] = key;
+			captureStarts[captureCount] = start;
+			captureEnds[captureCount] = end;
+			captureCount++;
+		}
+
+		@Override
+		public String getPath() {
+			return matchingContext.candidateText;
+		}
+
+		@Override
+		public int getCaptureCount() {
+			return captureCount;
+		}
+
+		@Override
+		public String getName(int index) {
+			return captureKeys[index];
+		}
+
+		@Override
+		public int getStart(int index) {
+			return captureStarts[index];
+		}
+
+		@Override
+		public int getEnd(int index) {
+			return captureEnds[index];
+		}
+
+		@Override
+		public int getOriginalStart(int index) {
+			return matchingContext.originalIndex(captureStarts[index]);
+		}
+
+		@Override
+		public int getOriginalEnd(int index) {
+			int end = captureEnds[index];
+			return end == captureStarts[index] ? getOriginalStart(index) : matchingContext.originalEnd(end);
+		}
+
+		MatchResult toMatchResult() {
+			MatchResult result = encodedPaths ? new MatchResult.Encoded(current.template, matchingContext.candidateText)
+					: new MatchResult(current.template, matchingContext.candidateText);
+			for (int i = 0; i < captureCount; i++) {
+				result.set(captureKeys[i], matchingContext.candidateText.substring(captureStarts[i], captureEnds[i]));
+			}
+			return result;
+		}
+
+	}
+
+	// Reverse routing
+
+	/**
+	 * Return an expander that generates URIs from the template, see {@link URITemplateExpander}.
+	 * Expanders are built on first request and cached, so callers can ask for one each time
+	 * they need it. The template need not have been registered with this matcher but must
+	 * not contain any wildcards (<tt>?</tt>, <tt>*</tt> or <tt>**</tt>).
+	 */
+	public URITemplateExpander getExpander(URITemplate template) {
+		return expanders.computeIfAbsent(template, this::compileExpander);
+	}
+
+	private URITemplateExpander compileExpander(URITemplate template) {
+		URITemplateExpander.Builder builder = new URITemplateExpander.Builder(template.getTemplateText(), separator);
+		for (Segment segment : new URITemplateProcessor().parse(template)) {
+			if (segment instanceof SeparatorSegment) {
+				builder.literal(separator);
+			} else if (segment instanceof LiteralSegment) {
+				builder.literal(new String(((LiteralSegment) segment).text));
+			} else if (segment instanceof CapturingTextSegment) {
+				builder.variable(((CapturingTextSegment) segment).key, false);
+			} else if (segment instanceof CapturingMultiTextSegment) {
+				builder.variable(((CapturingMultiTextSegment) segment).key, true);
+			} else if (segment instanceof WildcardedTextSegment) {
+				// Something like {name}.html, split it into literal text and captures
+				char[] text = ((WildcardedTextSegment) segment).text;
+				int captureStart = -1;
+				int depth = 0;
+				for (int i = 0; i < text.length; i++) {
+					char ch = text[i];
+					if (ch == '{') {
+						if (depth++ == 0) {
+							captureStart = i + 1;
+						}
+					} else if (ch == '}' && depth > 0) {
+						if (--depth == 0) {
+							String descriptor = new String(text, captureStart, i - captureStart);
+							int colon = descriptor.indexOf(':');
+							builder.variable(colon == -1 ? descriptor : descriptor.substring(0, colon), false);
+						}
+					} else if (depth == 0) {
+						if (ch == '*' || ch == '?') {
+							throw new IllegalArgumentException("Template '" + template.getTemplateText()
+									+ "' cannot be expanded, it contains a wildcard: " + segment);
+						}
+						builder.literal(ch);
+					}
+				}
+			} else if (!(segment instanceof MatchSuccessSegment)) {
+				throw new IllegalArgumentException("Template '" + template.getTemplateText()
+						+ "' cannot be expanded, it contains a wildcard: " + segment);
+			}
+		}
+		return builder.build();
+	}
+
+	// Percent-encoded paths
+
+	/**
+	 * Specify that paths will be given percent-encoded, as they arrive in a request, so
+	 * they do not have to be decoded before every match. Templates are still written
+	 * unencoded, their literal text is encoded once as they are added and compared with
+	 * the path in a canonical encoding, so <tt>/caf%C3%A9</tt>, <tt>/caf%c3%a9</tt> and
+	 * <tt>/%63af%C3%A9</tt> all match <tt>/café</tt>. An encoded separator is part of a
+	 * path element rather than a separator, it can be captured but never splits the path.
+	 *
+	 * <p>Captured values are decoded when they are first read from a {@link MatchResult},
+	 * or with {@link MatchCaptures#getDecodedValue(String)}. Note that <tt>?</tt> matches
+	 * a single character of the encoded path and <tt>{foo:regex}</tt> constraints are
+	 * checked against the encoded value.
+	 *
+	 * @throws IllegalStateException if templates have already been added
+	 */
+	public void setEncodedPaths(boolean encodedPaths) {
+		if (!templateIds.isEmpty()) {
+			throw new IllegalStateException("Encoded paths must be configured before templates are added");
+		}
+		this.encodedPaths = encodedPaths;
+	}
+
+	public boolean isEncodedPaths() {
+		return encodedPaths;
+	}
+
+	// Normalization
+
+	/**
+	 * Clean ups applied to each path as it is prepared for matching, saving callers a
+	 * pass over the path for each of them before calling the matcher.
+	 */
+	public enum Normalization {
+
+		/** Treat a run of separators as one: <tt>/a//b</tt> is matched as <tt>/a/b</tt> */
+		COLLAPSE_SEPARATORS,
+
+		/** Remove <tt>.</tt> elements and <tt>..</tt> along with the element before it */
+		RESOLVE_DOT_SEGMENTS,
+
+		/** Remove parameters from path elements: <tt>/a;jsessionid=1/b</tt> is matched as <tt>/a/b</tt> */
+		STRIP_PATH_PARAMETERS,
+
+		/** Ignore the query string, everything from the first <tt>?</tt> */
+		STRIP_QUERY
+
+	}
+
+	/**
+	 * Specify the normalizations to apply to each path before it is matched, replacing any
+	 * set previously. They are applied in a single pass over the path, the one that finds
+	 * its separators. Templates are not normalized.
+	 *
+	 * <p>Captured values are taken from the normalized path. A {@link MatchVisitor} can
+	 * find where they are in the path as given with {@link MatchCaptures#getOriginalStart(int)}
+	 * and {@link MatchCaptures#getOriginalEnd(int)}.
+	 */
+	public void setNormalizations(Normalization... normalizations) {
+		this.normalizations.clear();
+		Collections.addAll(this.normalizations, normalizations);
+	}
+
+	public Set<Normalization> getNormalizations() {
+		return Collections.unmodifiableSet(normalizations);
+	}
+
+	// Trailing separators and suffixes
+
+	/**
+	 * Let a path with a trailing separator match a template without one, so
+	 * <tt>/orders/</tt> matches <tt>/orders</tt>. This is done as the path is matched
+	 * rather than by registering extra templates.
+	 */
+	public void setTrailingSeparatorMatch(boolean trailingSeparatorMatch) {
+		this.trailingSeparatorMatch = trailingSeparatorMatch;
+	}
+
+	public boolean isTrailingSeparatorMatch() {
+		return trailingSeparatorMatch;
+	}
+
+	/**
+	 * Let the last element of a path carry an extension the template does not mention, so
+	 * <tt>/orders.json</tt> and <tt>/orders.xml</tt> match <tt>/orders</tt>. The extension
+	 * (<tt>json</tt> or <tt>xml</tt>) is captured as {@value #EXTENSION_VARIABLE}. Only
+	 * templates whose last element is literal text are matched this way.
+	 */
+	public void setSuffixMatch(boolean suffixMatch) {
+		this.suffixMatch = suffixMatch;
+	}
+
+	public boolean isSuffixMatch() {
+		return suffixMatch;
+	}
+
+	// Limits
+
+	/**
+	 * Paths longer than this are rejected before any work is done on them, by throwing a
+	 * {@link MatchLimitExceededException}. By default there is no limit.
+	 */
+	public void setMaxPathLength(int maxPathLength) {
+		this.maxPathLength = checkLimit(maxPathLength);
+	}
+
+	/**
+	 * Paths with more separators than this are rejected before they are matched, by
+	 * throwing a {@link MatchLimitExceededException}. By default there is no limit.
+	 */
+	public void setMaxSeparators(int maxSeparators) {
+		this.maxSeparators = checkLimit(maxSeparators);
+	}
+
+	/**
+	 * Abandon a match, by throwing a {@link MatchLimitExceededException}, once it has
+	 * visited this many nodes in the tree. Templates using <tt>**</tt> or <tt>{*foo}</tt>
+	 * revisit parts of the tree for each separator they retry from, so this bounds the
+	 * work one path can cause. By default there is no limit.
+	 */
+	public void setMaxNodeVisits(int maxNodeVisits) {
+		this.maxNodeVisits = checkLimit(maxNodeVisits);
+	}
+
+	/**
+	 * Abandon a match, by throwing a {@link MatchLimitExceededException}, once the
+	 * regular expressions of <tt>{foo:regex}</tt> captures and wildcarded elements have
+	 * read this many characters of the path between them. A backtracking regex can read
+	 * the same characters many times. By default there is no limit.
+	 */
+	public void setMaxRegexSteps(int maxRegexSteps) {
+		this.maxRegexSteps = checkLimit(maxRegexSteps);
+	}
+
+	public int getMaxPathLength() {
+		return maxPathLength;
+	}
+
+	public int getMaxSeparators() {
+		return maxSeparators;
+	}
+
+	public int getMaxNodeVisits() {
+		return maxNodeVisits;
+	}
+
+	public int getMaxRegexSteps() {
+		return maxRegexSteps;
+	}
+
+	private static int checkLimit(int limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException("Limit must not be negative but was " + limit);
+		}
+		return limit;
+	}
+
+	// Diagnostics
+
+	/**
+	 * Register a listener that is told about every segment visited, rejected or backtracked
+	 * over and every match found during subsequent matching operations. Intended for
+	 * diagnosing why a path does or does not match, it slows matching down so should not
+	 * be left registered in production. Pass <tt>null</tt> to remove the listener.
+	 */
+	public void setMatchListener(MatchListener matchListener) {
+		this.matchListener = matchListener;
+	}
+
+	public MatchListener getMatchListener() {
+		return this.matchListener;
+	}
+
+	/**
+	 * Walk the tree for the specified path looking for all matches (as {@link #findAllMatches(String)}
+	 * does) and record what happened along the way.
+	 *
+	 * @return an explanation containing the node visits, rejections, backtracks and the match results
+	 */
+	public MatchExplanation explain(String pathToMatch) {
+		MatchExplanation explanation = new MatchExplanation(pathToMatch);
+		MatchingContext matchingContext = new MatchingContext(pathToMatch, true);
+		matchingContext.listener = explanation;
+		for (int t = 0, max = matchingContext.optionalTrailingSeparators(); t <= max; t++) {
+			Segment[] candidates = patternsMap.get(matchingContext.separatorCount - t);
+			if (candidates != null) {
+				for (Segment candidate : candidates) {
+					candidate.matches(0, 0, matchingContext);
+				}
+			}
+		}
+		for (Segment root : variableRoots) {
+			if (root.minimumSeparators <= matchingContext.separatorCount) {
+				root.matches(0, 0, matchingContext);
+			}
+		}
+		explanation.setMatchResults(matchingContext.getMatchResults());
+		return explanation;
+	}
+
+	// Adaptive ordering
+
+	/**
+	 * Start sampling successful matches and periodically reorder the tree so that the
+	 * templates hit most often are tried first. This mostly benefits {@link #matches(String)}
+	 * and {@link #findFirstMatch(String)} which stop at the first hit. Note that when
+	 * several templates match the same path this changes which of them is found first.
+	 * 
+	 * <p>Matches are picked for sampling at random, so threads do not share a counter.
+	 * The reorder is done by the thread whose sample reaches the interval, while other
+	 * threads carry on matching against the old ordering, and only one reorder runs at a
+	 * time. Use {@link #enableAdaptiveOrdering(int, int, Executor)} to keep it off the
+	 * threads doing the matching.
+	 *
+	 * @param sampleInterval record on average one in every <tt>sampleInterval</tt> successful matches
+	 * @param reorderInterval reorder the tree after this many samples have been recorded
+	 */
+	public void enableAdaptiveOrdering(int sampleInterval, int reorderInterval) {
+		enableAdaptiveOrdering(sampleInterval, reorderInterval, null);
+	}
+
+	/**
+	 * As {@link #enableAdaptiveOrdering(int, int)} but with the reorders run by the
+	 * executor, for example a single background thread.
+	 *
+	 * @param reorderExecutor runs the reorders, or null to run them on the matching thread
+	 */
+	public void enableAdaptiveOrdering(int sampleInterval, int reorderInterval, Executor reorderExecutor) {
+		if (sampleInterval < 1 || reorderInterval < 1) {
+			throw new IllegalArgumentException("Intervals must be positive: sampleInterval=" + sampleInterval
+					+ " reorderInterval=" + reorderInterval);
+		}
+		if (hitProfile == null) {
+			hitProfile = new HitFrequencyProfile();
+		}
+		this.reorderExecutor = reorderExecutor;
+		this.reorderInterval = reorderInterval;
+		this.sampleInterval = sampleInterval;
+	}
+
+	public void disableAdaptiveOrdering() {
+		this.sampleInterval = 0;
+	}
+
+	/**
+	 * @return the profile collected so far, or null if adaptive ordering has never been enabled
+	 */
+	public HitFrequencyProfile getHitFrequencyProfile() {
+		return hitProfile;
+	}
+
+	/**
+	 * Use a previously collected (typically persisted) profile and immediately reorder
+	 * the tree according to it. Any further sampling is recorded into that profile.
+	 */
+	public void applyHitFrequencyProfile(HitFrequencyProfile profile) {
+		this.hitProfile = profile;
+		reorderByHitFrequency();
+	}
+
+	/**
+	 * Load a profile written by {@link #storeHitFrequencyProfile(Writer)} and reorder the tree according to it.
+	 */
+	public void loadHitFrequencyProfile(Reader reader) throws IOException {
+		applyHitFrequencyProfile(HitFrequencyProfile.load(reader));
+	}
+
+	/**
+	 * Write out the hit estimates for all the registered templates.
+	 */
+	public void storeHitFrequencyProfile(Writer writer) throws IOException {
+		if (hitProfile == null) {
+			throw new IllegalStateException("No hit frequency profile has been collected");
+		}
+		hitProfile.store(writer, getPatterns());
+	}
+
+	private void sample(MatchingContext matchingContext) {
+		if (!matchingContext.hasResults() || !sampleNext()) {
+			return;
+		}
+		HitFrequencyProfile profile = hitProfile;
+		for (MatchResult result : matchingContext.getMatchResults()) {
+			profile.record(result.getMatchingTemplate().getTemplateText());
+		}
+		sampled();
+	}
+
+	/**
+	 * @return true if the matches of the next match operation should be recorded
+	 */
+	private boolean sampleNext() {
+		int interval = sampleInterval;
+		return interval != 0 && (interval == 1 || ThreadLocalRandom.current().nextInt(interval) == 0);
+	}
+
+	/**
+	 * Count a sample whose matches have been recorded, reordering once enough have been.
+	 */
+	private void sampled() {
+		samplesSinceReorder.increment();
+		if (samplesSinceReorder.sum() >= reorderInterval && reorderPending.compareAndSet(false, true)) {
+			Executor executor = reorderExecutor;
+			if (executor == null) {
+				reorderAndAge();
+			} else {
+				try {
+					executor.execute(this::reorderAndAge);
+				} catch (RejectedExecutionException ree) {
+					// Try again after the next sample
+					reorderPending.set(false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reorder for the samples recorded so far and then age them, so that they are aged once per reorder.
+	 */
+	private synchronized void reorderAndAge() {
+		try {
+			samplesSinceReorder.reset();
+			reorderByHitFrequency();
+			hitProfile.age();
+		} finally {
+			reorderPending.set(false);
+		}
+	}
+
+	/**
+	 * Sort the roots and the children of every node in the tree by the estimated number of
+	 * hits below them, most frequently hit first. Each level is republished as a new array
+	 * through a volatile field, so a concurrent matcher walking the tree sees either the
+	 * old or the new ordering of each level, although it may see a mixture of the two
+	 * across levels. Reordering is synchronized with adding and removing templates.
+	 */
+	public synchronized void reorderByHitFrequency() {
+		if (hitProfile == null) {
+			return;
+		}
+		Map<Segment, Long> weights = new IdentityHashMap<>();
+		Map<Integer, Segment[]> reordered = new TreeMap<>();
+		for (Map.Entry<Integer, Segment[]> entry : patternsMap.entrySet()) {
+			Segment[] roots = entry.getValue();
+			for (Segment root : roots) {
+				weigh(root, weights);
+			}
+			reordered.put(entry.getKey(), sortByWeight(roots, weights));
+		}
+		patternsMap = reordered;
+		Segment[] roots = variableRoots;
+		for (Segment root : roots) {
+			weigh(root, weights);
+		}
+		// Stable sort, equally weighted roots keep their registration order
+		variableRoots = sortByWeight(roots, weights);
+	}
+
+	private long weigh(Segment segment, Map<Segment, Long> weights) {
+		long weight;
+		if (segment instanceof MatchSuccessSegment) {
+			weight = hitProfile.estimate(((MatchSuccessSegment) segment).template.getTemplateText());
+		} else {
+			weight = 0;
+			Segment[] nextSegments = segment.nextSegments;
+			if (nextSegments != null) {
+				for (Segment nextSegment : nextSegments) {
+					weight += weigh(nextSegment, weights);
+				}
+				segment.nextSegments = sortByWeight(nextSegments, weights);
+			}
+		}
+		weights.put(segment, weight);
+		return weight;
+	}
+
+	private Segment[] sortByWeight(Segment[] segments, Map<Segment, Long> weights) {
+		Segment[] sorted = segments.clone();
+		Arrays.sort(sorted, (a, b) -> Long.compare(weights.get(b), weights.get(a)));
+		return sorted;
+	}
+
+	/**
+	 * Matches a path given one element at a time, as when it arrives in pieces, saying after
+	 * each element whether any template can still match. Rather than walking the tree from
+	 * the top for the path so far it keeps the segments the next element can continue from:
+	 * separators, <tt>**</tt> and <tt>{*x}</tt>. Each is kept once however many ways it was
+	 * reached, so the set is bounded by the width of the tree and each element is only
+	 * compared with the segments that follow them. This is the match start check made by
+	 * {@link SeparatorSegment} at the end of a path, kept up to date as the path grows.
+	 *
+	 * <p>Only templates starting with a separator are considered. Each element is prepared
+	 * as a path of its own, so trimming, case insensitivity and percent-encoding apply as
+	 * usual but normalizations spanning elements do not. With trailing separator matching
+	 * a template that has matched still does after an empty element, and with suffix
+	 * matching a template ending in literal text matches an element with an extension
+	 * added. Captures are not recorded. An instance is for use by one thread at a time,
+	 * {@link #reset()} it for the next path.
+	 */
+	public class IncrementalMatcher {
+
+		// The segments the next element continues from, and those the element after will
+		private Segment[] active = new Segment[16];
+		private int activeCount;
+		private Segment[] next = new Segment[16];
+		private int nextCount;
+
+		// The templates matching the path so far
+		private MatchSuccessSegment[] complete = new MatchSuccessSegment[4];
+		private int completeCount;
+
+		// The separator followed by the element
+		private char[] element = new char[32];
+
+		private final MatchingContext matchingContext = new MatchingContext("", true);
+
+		private Progress progress;
+
+		IncrementalMatcher(long requiredTags) {
+			matchingContext.requiredTags = requiredTags;
+			reset();
+		}
+
+		private IncrementalMatcher(IncrementalMatcher original) {
+			matchingContext.requiredTags = original.matchingContext.requiredTags;
+			active = Arrays.copyOf(original.active, Math.max(original.activeCount, 1));
+			activeCount = original.activeCount;
+			complete = Arrays.copyOf(original.complete, Math.max(original.completeCount, 1));
+			completeCount = original.completeCount;
+			progress = original.progress;
+		}
+
+		/**
+		 * @return a matcher that has been given the same elements as this one, to be continued separately
+		 */
+		public IncrementalMatcher copy() {
+			return new IncrementalMatcher(this);
+		}
+
+		/**
+		 * Forget the elements given so far, ready for another path.
+		 */
+		public void reset() {
+			nextCount = 0;
+			for (Segment[] roots : patternsMap.values()) {
+				for (Segment root : roots) {
+					if (root instanceof SeparatorSegment) {
+						add(root);
+					}
+				}
+			}
+			for (Segment root : variableRoots) {
+				if (root instanceof SeparatorSegment || root instanceof SeparatorStarStarSegment) {
+					add(root);
+				}
+			}
+			swap();
+			completeCount = 0;
+			progress = activeCount == 0 ? Progress.NO_MATCH : Progress.PARTIAL_MATCH;
+		}
+
+		/**
+		 * Give the next element of the path, the text between two separators. An empty
+		 * element stands for a trailing separator.
+		 *
+		 * @return whether templates match the path so far or still could
+		 * @throws IllegalArgumentException if the text contains a separator
+		 */
+		public Progress feed(CharSequence text) {
+			return consume(text, true);
+		}
+
+		/**
+		 * Check what {@link #feed(CharSequence)} would report for the element without
+		 * moving on, as when looking at each file in a directory. Afterwards
+		 * {@link #getMatchIds(int[])} reports the templates matching with the element.
+		 */
+		public Progress peek(CharSequence text) {
+			return consume(text, false);
+		}
+
+		private Progress consume(CharSequence text, boolean keep) {
+			if (progress == Progress.NO_MATCH) {
+				return progress;
+			}
+			int length = text.length() + 1;
+			if (element.length < length) {
+				element = new char[Math.max(length, element.length * 2)];
+			}
+			element[0] = separator;
+			for (int i = 1; i < length; i++) {
+				element[i] = text.charAt(i - 1);
+			}
+			MatchingContext mc = matchingContext;
+			mc.reset(element, 0, length);
+			if (mc.separatorCount != 1) {
+				throw new IllegalArgumentException("Expected a single path element but got '" + text + "'");
+			}
+			nextCount = 0;
+			completeCount = 0;
+			for (int a = 0; a < activeCount; a++) {
+				step(active[a], mc);
+			}
+			// Reaching a ** or {*x} that ends the template matches, whatever follows
+			for (int n = 0; n < nextCount; n++) {
+				if (!(next[n] instanceof SeparatorSegment) && !(next[n] instanceof MatchSuccessSegment)) {
+					for (Segment child : next[n].nextSegments) {
+						if (child instanceof MatchSuccessSegment) {
+							addComplete((MatchSuccessSegment) child);
+						}
+					}
+				}
+			}
+			Progress reached = completeCount != 0 ? Progress.COMPLETE_MATCH
+					: nextCount != 0 ? Progress.PARTIAL_MATCH : Progress.NO_MATCH;
+			if (!keep) {
+				nextCount = 0;
+				return reached;
+			}
+			swap();
+			progress = reached;
+			return progress;
+		}
+
+		public Progress getProgress() {
+			return progress;
+		}
+
+		/**
+		 * Write the ids of the templates matching the path so far (or with the element last
+		 * peeked at) into the array.
+		 *
+		 * @return the number of matching templates, if this is more than the array length then not all of them were written
+		 */
+		public int getMatchIds(int[] ids) {
+			for (int c = 0; c < completeCount && c < ids.length; c++) {
+				ids[c] = complete[c].id;
+			}
+			return completeCount;
+		}
+
+		/**
+		 * Continue from a segment with the element held in the matching context.
+		 */
+		private void step(Segment segment, MatchingContext mc) {
+			if ((segment.tagMask & mc.requiredTags) != mc.requiredTags) {
+				return;
+			}
+			mc.countVisit();
+			if (segment instanceof MatchSuccessSegment) {
+				// Kept from the element before for a trailing separator
+				if (mc.candidateLength == 1) {
+					addComplete((MatchSuccessSegment) segment);
+				}
+			} else if (segment instanceof SeparatorSegment) {
+				for (Segment child : segment.nextSegments) {
+					if (child instanceof CapturingMultiTextSegment) {
+						add(child);
+					} else if (child instanceof MatchSuccessSegment) {
+						// The template ends with a separator
+						if (mc.candidateLength == 1) {
+							addEnded((MatchSuccessSegment) child);
+						}
+					} else if (matchesElement(child, mc)) {
+						for (Segment after : child.nextSegments) {
+							if (after instanceof MatchSuccessSegment) {
+								addEnded((MatchSuccessSegment) after);
+							} else {
+								add(after);
+							}
+						}
+					} else if (child instanceof LiteralSegment && matchesWithSuffix((LiteralSegment) child, mc)) {
+						for (Segment after : child.nextSegments) {
+							if (after instanceof MatchSuccessSegment) {
+								addEnded((MatchSuccessSegment) after);
+							}
+						}
+					}
+				}
+			} else if (segment instanceof SeparatorStarStarSegment) {
+				// The ** takes this element, or has finished and what follows it does
+				add(segment);
+				for (Segment child : segment.nextSegments) {
+					if (!(child instanceof MatchSuccessSegment)) {
+						step(child, mc);
+					}
+				}
+			} else {
+				// A {*x} takes everything that is left
+				add(segment);
+			}
+		}
+
+		/**
+		 * @return true if the segment matches all of the element following the separator in the matching context
+		 */
+		private boolean matchesElement(Segment segment, MatchingContext mc) {
+			if ((segment.tagMask & mc.requiredTags) != mc.requiredTags) {
+				return false;
+			}
+			mc.countVisit();
+			int start = 1;
+			int end = mc.candidateLength;
+			if (segment instanceof LiteralSegment || segment instanceof QuestionMarkedTextSegment) {
+				boolean qmarks = segment instanceof QuestionMarkedTextSegment;
+				char[] text = qmarks ? ((QuestionMarkedTextSegment) segment).text : ((LiteralSegment) segment).text;
+				if (text.length != end - start) {
+					return false;
+				}
+				for (int i = 0; i < text.length; i++) {
+					if (mc.candidate[start + i] != text[i] && !(qmarks && text[i] == '?')) {
+						return false;
+					}
+				}
+				return true;
+			} else if (segment instanceof CapturingTextSegment) {
+				CapturingTextSegment capturing = (CapturingTextSegment) segment;
+				return start != end && (capturing.constraintPattern == null
+						|| mc.regexMatcher(capturing.constraintPattern, capturing.matcherSlot, start, end).matches());
+			} else if (segment instanceof WildcardedTextSegment) {
+				WildcardedTextSegment wildcarded = (WildcardedTextSegment) segment;
+				return mc.regexMatcher(wildcarded.pattern, wildcarded.matcherSlot, start, end).matches();
+			}
+			return false;
+		}
+
+		/**
+		 * When suffix matching, check whether the element is the literal text followed by an
+		 * extension, see {@link MatchingContext#suffixEnd(int, int)}.
+		 */
+		private boolean matchesWithSuffix(LiteralSegment segment, MatchingContext mc) {
+			char[] text = segment.text;
+			int dot = 1 + text.length;
+			if (!suffixMatch || dot + 1 >= mc.candidateLength || mc.candidate[dot] != '.'
+					|| (segment.tagMask & mc.requiredTags) != mc.requiredTags) {
+				return false;
+			}
+			for (int i = 0; i < text.length; i++) {
+				if (mc.candidate[1 + i] != text[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * A template ending with the element matches, and still does after a trailing separator.
+		 */
+		private void addEnded(MatchSuccessSegment success) {
+			addComplete(success);
+			if (trailingSeparatorMatch && success.carries(matchingContext.requiredTags)) {
+				add(success);
+			}
+		}
+
+		private void add(Segment segment) {
+			for (int n = 0; n < nextCount; n++) {
+				if (next[n] == segment) {
+					return;
+				}
+			}
+			if (nextCount == next.length) {
+				next = Arrays.copyOf(next, nextCount * 2);
+			}
+			next[nextCount++] = segment;
+			if (segment instanceof SeparatorStarStarSegment) {
+				// A ** can take nothing, so one following it is reached as well
+				for (Segment child : segment.nextSegments) {
+					if (child instanceof SeparatorStarStarSegment) {
+						add(child);
+					}
+				}
+			}
+		}
+
+		private void addComplete(MatchSuccessSegment success) {
+			if (!success.carries(matchingContext.requiredTags)) {
+				return;
+			}
+			for (int c = 0; c < completeCount; c++) {
+				if (complete[c].id == success.id) {
+					return;
+				}
+			}
+			if (completeCount == complete.length) {
+				complete = Arrays.copyOf(complete, completeCount * 2);
+			}
+			complete[completeCount++] = success;
+		}
+
+		private void swap() {
+			Segment[] swapped = active;
+			active = next;
+			activeCount = nextCount;
+			next = swapped;
+			nextCount = 0;
+		}
+
+	}
+
+	class MatchingContext {
+
+		int[] separatorPositions;
+		int separatorCount = 0;
+		char[] candidate;
+		String candidateText;
+		int candidateLength;
+		int currentTagIndex = 0;
+
+		// Tags a template must carry to be reported, subtrees without them are skipped
+		long requiredTags = 0;
+
+		// Set when walking the prefix index
+		URITemplate[] prefixTemplates;
+
+		// Receives events as the tree is walked, null unless diagnostics have been requested
+		MatchListener listener = matchListener;
+		
+		// Configuration of the behaviour for matching during a specific walk of
+		// candidates
+
+		// Find either the first or all matches  TODO change to findFirstMatch?
+		private boolean findAllMatches = true;
+		
+		// Find templates that at least match as much path as has been supplied
+		private boolean matchStart = false;
+
+		// Set when only whether the path matches is wanted, so nothing is captured
+		private boolean skipCaptures;
+
+		private List<MatchResult> matchResults;
+
+		// The (** segment, separator number) pairs from which the rest of the template is
+		// known not to match, allocated when the first failure is recorded
+		private FailureMemo failures;
+
+		// Where each character of the path matched came from, allocated when paths are normalized or encoded
+		private OriginalOffsets offsets;
+
+		// Work allowed before the match is abandoned, see setMaxNodeVisits() and setMaxRegexSteps()
+		private int visitsRemaining;
+		private int regexStepsRemaining;
+
+		public MatchingContext(String pathToMatch, boolean findAllMatches) {
+			this.findAllMatches = findAllMatches;
+			prepare(pathToMatch);
+		}
+
+		public MatchingContext(String pathToMatch, boolean findAllMatches, boolean matchStart) {
+			this.findAllMatches = findAllMatches;
+			this.matchStart = matchStart;
+			prepare(pathToMatch);
+		}
+
+		/**
+		 * Prepare to match another path, reusing the buffers sized for earlier paths where possible.
+		 */
+		void reset(String pathToMatch) {
+			matchResults = null;
+			currentTagIndex = 0;
+			listener = matchListener;
+			prepare(pathToMatch);
+		}
+
+		public void addMatchResult(URITemplate template, String matchingCandidate) {
+			if (listener != null) {
+				listener.matchFound(template);
+			}
+			if (matchResults == null) {
+				matchResults = new LinkedList<>();
+			}
+			matchResults.add(encodedPaths ? new MatchResult.Encoded(template, matchingCandidate)
+					: new MatchResult(template, matchingCandidate));
+		}
+
+		// TODO [1] name of this is hopeless
+		public boolean isOnlyMatchStartCheck() {
+			return matchStart;
+		}
+
+		/**
+		 * @return true if the results need the values the segments capture
+		 */
+		boolean wantsCaptures() {
+			return !matchStart && !skipCaptures;
+		}
+
+		public boolean hasResults() {
+			// TODO reduce cost of check? Or could eliminate with custom match method that always new to look for all results.
+			return this.matchResults != null && this.matchResults.size() != 0;
+		}
+
+		public List<MatchResult> getMatchResults() {
+			if (this.matchResults == null) {
+				return NO_MATCHES;
+			} else {
+				return this.matchResults;
+			}
+		}
+		
+		public void tag() {
+			currentTagIndex = matchResults.size();
+		}
+
+		public void set(String key, String value) {
+			matchResults.get(matchResults.size()-1).set(key,value);
+		}
+
+		/**
+		 * Set a captured value on each result added since the mark, those found below the
+		 * capturing segment.
+		 */
+		void set(int mark, String key, String value) {
+			for (int r = mark, max = matchResults.size(); r < max; r++) {
+				matchResults.get(r).set(key, value);
+			}
+		}
+
+		/**
+		 * @return the number of results so far, a mark for {@link #set(int, String, String)}
+		 */
+		int resultCount() {
+			return matchResults == null ? 0 : matchResults.size();
+		}
+
+		/**
+		 * @return 1 if the path ends with a separator that may be ignored, so fixed length
+		 *         templates with one separator fewer should be tried too, otherwise 0
+		 */
+		int optionalTrailingSeparators() {
+			return trailingSeparatorMatch && separatorCount > 1 && separatorPositions[separatorCount - 1] == candidateLength - 1 ? 1 : 0;
+		}
+
+		/**
+		 * @return true if there is no more path after the index, other than an optional trailing separator
+		 */
+		boolean isPathEnd(int index) {
+			return index >= candidateLength || (trailingSeparatorMatch && index == candidateLength - 1
+					&& index > 0 && candidate[index] == separator);
+		}
+
+		/**
+		 * When suffix matching, check whether the rest of the path from the index is an extension
+		 * on its last element, for example the <tt>.json</tt> of <tt>/orders.json</tt>.
+		 *
+		 * @return the end of the extension, or -1 if there is not one
+		 */
+		int suffixEnd(int index, int sn) {
+			if (!suffixMatch || index >= candidateLength || candidate[index] != '.') {
+				return -1;
+			}
+			int end = separatorPositions[sn];
+			if (end == index + 1 || !isPathEnd(end)) {
+				return -1;
+			}
+			return end;
+		}
+
+		/**
+		 * A template with several <tt>**</tt> can reach a later one from many different
+		 * separators, and without remembering where it failed the retries multiply with
+		 * each <tt>**</tt>. Whether the rest of the tree matches from a <tt>**</tt> only
+		 * depends on the separator it starts from, so once it has failed there it need not
+		 * be tried again and the work is bounded by the number of (segment, separator)
+		 * pairs.
+		 * @return true if the rest of the tree has already failed to match from this separator
+		 */
+		boolean knownFailure(SeparatorStarStarSegment segment, int sn) {
+			return failures != null && failures.contains(segment, sn);
 		}
 
-		public List<MatchResult> getMatchResults() {
-			if (this.matchResults == null) {
-				return NO_MATCHES;
-			} else {
-				return this.matchResults;
+		/**
+		 * Rather than one per segment, each thread has a fixed number of reusable matchers
+		 * that regex segments take turns in, so their number does not grow with the tree.
+		 * A segment finding its slot taken by another creates a new one. The matcher returned
+		 * stays usable while the segment is in use, even if its slot is taken meanwhile, as
+		 * a segment never appears below itself in the tree.
+		 *
+		 * @return a matcher for the pattern reset to the part of the path between start and end
+		 */
+		Matcher regexMatcher(Pattern pattern, int slot, int start, int end) {
+			ReusableMatcher[] matchers = reusableMatchers.get();
+			ReusableMatcher matcher = matchers[slot];
+			if (matcher == null || matcher.pattern != pattern) {
+				matcher = new ReusableMatcher(pattern);
+				matchers[slot] = matcher;
 			}
-		}
-		
-		public void tag() {
-			currentTagIndex = matchResults.size();
+			return matcher.reset(this, start, end);
 		}
 
-		public void set(String key, String value) {
-			matchResults.get(matchResults.size()-1).set(key,value);
+		void recordFailure(SeparatorStarStarSegment segment, int sn) {
+			if (failures == null) {
+				failures = new FailureMemo();
+			}
+			failures.add(segment, sn);
 		}
 		
 
@@ -637,18 +3018,91 @@ public class PathMatcher {
 		 * to enable jumping around the input data during the match.
 		 */
 		private void prepare(String pathToMatch) {
+			int length = pathToMatch.length();
+			startMatch(length);
+			ensureCapacity(length);
+			candidateText = pathToMatch;
+			pathToMatch.getChars(0, length, candidate, 0);
+			scan(length);
+		}
+
+		/**
+		 * As {@link #prepare(String)} but for a path held in part of a char array, no string
+		 * is created so {@link #candidateText} is left null.
+		 */
+		private void prepare(char[] path, int offset, int length) {
+			startMatch(length);
+			ensureCapacity(length);
+			candidateText = null;
+			System.arraycopy(path, offset, candidate, 0, length);
+			scan(length);
+		}
+
+		void reset(char[] path, int offset, int length) {
+			matchResults = null;
+			currentTagIndex = 0;
+			listener = matchListener;
+			prepare(path, offset, length);
+		}
+
+		/**
+		 * Reject an overlong path before anything is sized for it and reset the work allowed.
+		 */
+		private void startMatch(int length) {
+			if (length > maxPathLength) {
+				throw new MatchLimitExceededException(Limit.PATH_LENGTH, maxPathLength);
+			}
+			visitsRemaining = maxNodeVisits;
+			regexStepsRemaining = maxRegexSteps;
+		}
+
+		// Integer.MAX_VALUE means no limit, the count is not kept so it cannot run out
+		void countVisit() {
+			if (maxNodeVisits != Integer.MAX_VALUE && --visitsRemaining < 0) {
+				throw new MatchLimitExceededException(Limit.NODE_VISITS, maxNodeVisits);
+			}
+		}
+
+		void countRegexStep() {
+			if (maxRegexSteps != Integer.MAX_VALUE && --regexStepsRemaining < 0) {
+				throw new MatchLimitExceededException(Limit.REGEX_STEPS, maxRegexSteps);
+			}
+		}
+
+		private void ensureCapacity(int length) {
 			// At most every character would be a separator
-			separatorPositions = new int[pathToMatch.length()+1];
+			if (separatorPositions == null || separatorPositions.length <= length) {
+				separatorPositions = new int[length+1];
+				candidate = new char[length];
+			}
+		}
+
+		private void scan(int length) {
+			if (failures != null) {
+				failures.clear();
+			}
+			if (encodedPaths) {
+				length = canonicalize(length);
+			}
 			separatorCount = 0;
-			candidateText = pathToMatch;
-			candidate = pathToMatch.toCharArray();
-			candidateLength = this.candidate.length;
+			candidateLength = length;
+			if (!normalizations.isEmpty()) {
+				// Also records the separators and converts to lower case, unless trimming follows
+				candidateLength = length = normalize(length);
+			}
 			if (trimTokens) {
+				separatorCount = 0;
 				candidateLength = trim();
+				if (candidateLength != length && candidateText != null) {
+					// Captures are taken from the text, so it must be the trimmed form
+					candidateText = trimmedText();
+				}
+			} else if (!normalizations.isEmpty()) {
+				// Already scanned
 			} else if (!caseSensitive) {
 				// Convert the whole path to lower case (patterns will have already been converted)
 				// Also make a not of separator positions
-				for (int i=0, max = candidate.length;i<max;i++) {
+				for (int i=0, max = length;i<max;i++) {
 					char ch = candidate[i];
 					if (ch== separator) {
 						separatorPositions[separatorCount++] = i;						
@@ -658,15 +3112,209 @@ public class PathMatcher {
 					}
 				}
 			} else {
-				for (int i = 0, max = pathToMatch.length(); i < max; i++) {
-					if (pathToMatch.charAt(i) == separator) {
+				for (int i = 0; i < length; i++) {
+					if (candidate[i] == separator) {
 						separatorPositions[separatorCount++] = i;
 					}
 				}
 			}
 			// Final sentinel entry marks end of the path (separatorCount deliberately not increased)
-			separatorPositions[separatorCount] = pathToMatch.length();
+			separatorPositions[separatorCount] = candidateLength;
+			if (separatorCount > maxSeparators) {
+				throw new MatchLimitExceededException(Limit.SEPARATORS, maxSeparators);
+			}
+		}
+		/**
+		 * Apply the configured {@link Normalization}s to the path in place, in the same pass
+		 * that records the separators and converts to lower case. Matching then runs on the
+		 * normalized path and {@link #originalIndex(int)} maps positions in it back to the
+		 * path as given. A string for the path is only created if the normalized path is not
+		 * just a prefix of it.
+		 *
+		 * @return the length of the normalized path
+		 */
+		private int normalize(int length) {
+			boolean collapseSeparators = normalizations.contains(Normalization.COLLAPSE_SEPARATORS);
+			boolean resolveDotSegments = normalizations.contains(Normalization.RESOLVE_DOT_SEGMENTS);
+			boolean stripPathParameters = normalizations.contains(Normalization.STRIP_PATH_PARAMETERS);
+			boolean stripQuery = normalizations.contains(Normalization.STRIP_QUERY);
+			boolean lowerCase = !caseSensitive && !trimTokens;
+			OriginalOffsets offsets = originalOffsets();
+			if (offsets.normalized.length <= length) {
+				offsets.normalized = new int[length + 1];
+			}
+			int[] originalOffsets = offsets.normalized;
+			int c = 0; // the position in the normalized data
+			int i = 0; // the position in the original data
+			boolean moved = false;
+			for (; i < length; i++) {
+				char ch = candidate[i];
+				if (ch == '?' && stripQuery) {
+					break;
+				}
+				if (ch == ';' && stripPathParameters) {
+					// Skip to the end of the element
+					while (i + 1 < length && candidate[i + 1] != separator && !(stripQuery && candidate[i + 1] == '?')) {
+						i++;
+					}
+					moved = true;
+					continue;
+				}
+				if (ch == separator) {
+					if (collapseSeparators && c > 0 && candidate[c - 1] == separator) {
+						moved = true;
+						continue;
+					}
+					if (resolveDotSegments) {
+						int resolved = resolveDotSegment(c);
+						if (resolved != -1) {
+							// The separator before the dot segment is kept in place of this one
+							c = resolved;
+							moved = true;
+							continue;
+						}
+					}
+					separatorPositions[separatorCount++] = c;
+				} else if (lowerCase) {
+					ch = Character.toLowerCase(ch);
+				}
+				moved |= c != i;
+				originalOffsets[c] = i;
+				candidate[c++] = ch;
+			}
+			if (resolveDotSegments) {
+				int resolved = resolveDotSegment(c);
+				if (resolved != -1) {
+					c = resolved;
+					moved = true;
+				}
+			}
+			originalOffsets[c] = i;
+			if (moved && candidateText != null) {
+				if (lowerCase) {
+					// Captures keep their case, so take the characters from the text as given
+					char[] chars = new char[c];
+					for (int k = 0; k < c; k++) {
+						chars[k] = candidateText.charAt(originalOffsets[k]);
+					}
+					candidateText = new String(chars);
+				} else {
+					candidateText = new String(candidate, 0, c);
+				}
+			}
+			return c;
+		}
+
+		/**
+		 * Called at the end of each element of the path being normalized, removes it if it is
+		 * <tt>.</tt> and removes it along with the element before if it is <tt>..</tt>.
+		 *
+		 * @return where the normalized path continues from, or -1 if the element is not a dot segment
+		 */
+		private int resolveDotSegment(int end) {
+			int start = separatorCount == 0 ? 0 : separatorPositions[separatorCount - 1] + 1;
+			if (end - start == 1 && candidate[start] == '.') {
+				return start;
+			}
+			if (end - start == 2 && candidate[start] == '.' && candidate[start + 1] == '.') {
+				if (separatorCount < 2) {
+					// Cannot go above the root
+					return start;
+				}
+				separatorCount--;
+				return separatorPositions[separatorCount - 1] + 1;
+			}
+			return -1;
+		}
+
+		/**
+		 * @return the index in the path as given that corresponds to the index in the (possibly normalized) path being matched
+		 */
+		int originalIndex(int index) {
+			if (offsets != null && offsets.trimMoved) {
+				index = offsets.trimmed[index];
+			}
+			if (!normalizations.isEmpty()) {
+				index = offsets.normalized[index];
+			}
+			return encodedPaths ? offsets.canonical[index] : index;
+		}
+
+		/**
+		 * @return the index in the path as given just after the character before the index in the
+		 *         path being matched, which for a decoded character is after its encoding
+		 */
+		int originalEnd(int index) {
+			if (offsets != null && offsets.trimMoved) {
+				index = offsets.trimmed[index - 1] + 1;
+			}
+			if (!normalizations.isEmpty()) {
+				index = offsets.normalized[index - 1] + 1;
+			}
+			// Canonicalizing drops no characters, so each one ends where the next begins
+			return encodedPaths ? offsets.canonical[index] : index;
+		}
+
+		private OriginalOffsets originalOffsets() {
+			if (offsets == null) {
+				offsets = new OriginalOffsets();
+			}
+			return offsets;
+		}
+
+		/**
+		 * Bring the percent-encoded path to the canonical encoding the template literals
+		 * were given, in place: encoded unreserved characters are decoded and the hex digits
+		 * of other encoded characters are upper cased. An encoded separator is not a
+		 * separator. A string for the path is only created if it changed, and where each
+		 * character came from is recorded for {@link #originalIndex(int)}.
+		 *
+		 * @return the length of the canonical path (may be the same as the input data length)
+		 */
+		private int canonicalize(int length) {
+			OriginalOffsets offsets = originalOffsets();
+			if (offsets.canonical.length <= length) {
+				offsets.canonical = new int[length + 1];
+			}
+			int[] canonicalOffsets = offsets.canonical;
+			int c = 0;
+			boolean changed = false;
+			for (int i = 0; i < length; i++) {
+				char ch = candidate[i];
+				if (ch == '%' && i + 2 < length) {
+					char h = candidate[i + 1];
+					char l = candidate[i + 2];
+					int high = PercentEncoding.hexValue(h);
+					int low = PercentEncoding.hexValue(l);
+					if (high != -1 && low != -1) {
+						int value = (high << 4) + low;
+						if (PercentEncoding.isUnreserved(value)) {
+							canonicalOffsets[c] = i;
+							candidate[c++] = (char) value;
+							changed = true;
+						} else {
+							canonicalOffsets[c] = i;
+							canonicalOffsets[c + 1] = i + 1;
+							canonicalOffsets[c + 2] = i + 2;
+							candidate[c++] = '%';
+							candidate[c++] = PercentEncoding.hexDigit(high);
+							candidate[c++] = PercentEncoding.hexDigit(low);
+							changed |= h != candidate[c - 2] || l != candidate[c - 1];
+						}
+						i += 2;
+						continue;
+					}
+				}
+				canonicalOffsets[c] = i;
+				candidate[c++] = ch;
+			}
+			canonicalOffsets[c] = length;
+			if (changed && candidateText != null) {
+				candidateText = new String(candidate, 0, c);
+			}
+			return c;
 		}
+
 		// TODO is it overkill to avoid creating the new char array here? Are there going to be more problems down the line because you need to remember to use candidateLength and not candidate.length
 		/**
 		 * Trim whitespace around path elements. The char array 'candidate' contains the
@@ -677,8 +3325,10 @@ public class PathMatcher {
 		 * @return the length after trimming (may be the same as the input data length)
 		 */
 		private int trim() {
-			if (DEBUG) 
-				System.out.println("Pre  trim: '"+new String(candidate)+"' length="+candidate.length);
+			if (offsets != null) {
+				offsets.trimMoved = false;
+			}
+			int[] trimmed = null; // where each character came from, once one has moved
 			int c = 0; // the position in the new data
 			int i = 0; // the position in the original data
 			// Skip over leading whitespace
@@ -687,32 +3337,181 @@ public class PathMatcher {
 			while (i<candidateLength) {
 				char ch = candidate[i];
 				if (ch==separator) {
-					separatorPositions[separatorCount++] = i;					
 					// scan backwards over preceding whitespace
 					while (c>0 && candidate[c-1]==' ') c--;
-					candidate[c++] = ch;
-					i++;
+					separatorPositions[separatorCount++] = c;
+				} else if (!caseSensitive) {
+					ch = Character.toLowerCase(ch);
+				}
+				if (trimmed == null && c != i) {
+					trimmed = trimmedOffsets(c);
+				}
+				if (trimmed != null) {
+					trimmed[c] = i;
+				}
+				candidate[c++] = ch;
+				i++;
+				if (ch==separator) {
 					// Scan over whitespace after the separator
 					while (i<candidateLength && candidate[i]==' ') i++;
-				} else {
-					candidate[c++] = caseSensitive?Character.toLowerCase(ch):ch;
-					i++;
 				}
 			}
-			// Scan backwards over whitespace
+			if (trimmed != null) {
+				trimmed[c] = i;
+			}
+			// Scan backwards over whitespace, the end then mapping to where that whitespace was
 			while (c>0 && candidate[c-1]==' ') c--;
-			if (DEBUG) 
-				System.out.println("Post trim: '"+new String(candidate,0,c)+"' length: "+c);
 			return c;
 		}
+
+		/**
+		 * @return the offsets trimming records once it first moves a character, those before
+		 *         the specified index having stayed where they were
+		 */
+		private int[] trimmedOffsets(int stayed) {
+			OriginalOffsets offsets = originalOffsets();
+			if (offsets.trimmed.length <= candidateLength) {
+				offsets.trimmed = new int[candidateLength + 1];
+			}
+			for (int k = 0; k < stayed; k++) {
+				offsets.trimmed[k] = k;
+			}
+			offsets.trimMoved = true;
+			return offsets.trimmed;
+		}
+
+		/**
+		 * @return the trimmed path as text, keeping the case of the characters as given
+		 */
+		private String trimmedText() {
+			if (caseSensitive) {
+				return new String(candidate, 0, candidateLength);
+			}
+			char[] chars = new char[candidateLength];
+			for (int k = 0; k < candidateLength; k++) {
+				chars[k] = candidateText.charAt(offsets != null && offsets.trimMoved ? offsets.trimmed[k] : k);
+			}
+			return new String(chars);
+		}
 		
 
 	}
 	
 	
 
-	public void clear() {
+	/**
+	 * Remove every template. Ids are handed out from zero again and settings that must be
+	 * made before templates are added, such as {@link #setEncodedPaths(boolean)}, can be
+	 * changed again. Like adding, this must not happen while paths are being matched.
+	 */
+	public synchronized void clear() {
 		patternsMap.clear();
+		variableRoots = NO_SEGMENTS;
+		variableRootIndex = null;
+		rootIndexes.clear();
+		prefixIndex = null;
+		templatesById.clear();
+		templateIds.clear();
+		Arrays.fill(registrationCounts, 0);
+		freeIds.clear();
+		expanders.clear();
+	}
+
+	/**
+	 * How the characters of the path a {@link MatchingContext} matches map back to the path
+	 * as given, for the steps that move them.
+	 */
+	static class OriginalOffsets {
+
+		// When normalizing, the index in the canonical path of each character of the normalized path
+		int[] normalized = new int[0];
+
+		// When paths are encoded, the index in the path as given of each character of the canonical path
+		int[] canonical = new int[0];
+
+		// When trimming moved characters of the current path, the index in the path before
+		// trimming of each character of the trimmed path
+		int[] trimmed = new int[0];
+
+		boolean trimMoved;
+
+	}
+
+	/**
+	 * The set of (<tt>**</tt> segment, separator number) pairs a {@link MatchingContext} has
+	 * seen fail. Keyed by the segment itself rather than a number handed out by the matcher, so
+	 * that a context walking several trees, as {@link MultiTenantPathMatcher} does, cannot
+	 * confuse the segments of one with those of another.
+	 */
+	static class FailureMemo {
+
+		// Open addressed, a null segment marks a free slot
+		private SeparatorStarStarSegment[] segments = new SeparatorStarStarSegment[16];
+		private int[] separators = new int[16];
+
+		// The slots in use, so that the set can be emptied without visiting every slot
+		private int[] used = new int[8];
+		private int count;
+
+		boolean contains(SeparatorStarStarSegment segment, int sn) {
+			if (count == 0) {
+				return false;
+			}
+			int mask = segments.length - 1;
+			for (int slot = hash(segment, sn) & mask; segments[slot] != null; slot = (slot + 1) & mask) {
+				if (segments[slot] == segment && separators[slot] == sn) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void add(SeparatorStarStarSegment segment, int sn) {
+			if (count * 2 >= segments.length) {
+				grow();
+			}
+			int mask = segments.length - 1;
+			int slot = hash(segment, sn) & mask;
+			while (segments[slot] != null) {
+				if (segments[slot] == segment && separators[slot] == sn) {
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			segments[slot] = segment;
+			separators[slot] = sn;
+			used[count++] = slot;
+		}
+
+		/**
+		 * Forget the failures of the previous match, the segments are let go so that
+		 * removed templates are not kept alive.
+		 */
+		void clear() {
+			for (int i = 0; i < count; i++) {
+				segments[used[i]] = null;
+			}
+			count = 0;
+		}
+
+		private void grow() {
+			SeparatorStarStarSegment[] oldSegments = segments;
+			int[] oldSeparators = separators;
+			int[] oldUsed = used;
+			int oldCount = count;
+			segments = new SeparatorStarStarSegment[oldSegments.length * 2];
+			separators = new int[oldSegments.length * 2];
+			used = new int[oldSegments.length];
+			count = 0;
+			for (int i = 0; i < oldCount; i++) {
+				add(oldSegments[oldUsed[i]], oldSeparators[oldUsed[i]]);
+			}
+		}
+
+		private static int hash(SeparatorStarStarSegment segment, int sn) {
+			int h = System.identityHashCode(segment) * 31 + sn;
+			return h ^ (h >>> 16);
+		}
 	}
 
 	static class SubSequence implements CharSequence {
@@ -720,10 +3519,14 @@ public class PathMatcher {
 		private char[] chars;
 		private int start, end;
 
-		SubSequence(char[] chars, int start, int end) {
+		// Each character read by a regex is counted as a step against its limit
+		private MatchingContext context;
+
+		SubSequence(char[] chars, int start, int end, MatchingContext context) {
 			this.chars = chars;
 			this.start = start;
 			this.end = end;
+			this.context = context;
 		}
 
 		@Override
@@ -733,12 +3536,13 @@ public class PathMatcher {
 
 		@Override
 		public char charAt(int index) {
+			context.countRegexStep();
 			return chars[start + index];
 		}
 
 		@Override
 		public CharSequence subSequence(int start, int end) {
-			return new SubSequence(chars, this.start + start, this.start + end);
+			return new SubSequence(chars, this.start + start, this.start + end, context);
 		}
 		
 		public String toString() {
@@ -747,22 +3551,30 @@ public class PathMatcher {
 
 	}
 
-	class VariableSegmentRoot {
+	/**
+	 * A Matcher along with the SubSequence it reads. Each thread keeps a few of them per
+	 * PathMatcher, see {@link MatchingContext#regexMatcher(Pattern, int, int, int)}, so that
+	 * regex checks do not allocate a new Matcher (and its group arrays) for every path.
+	 */
+	static class ReusableMatcher {
+
+		private final SubSequence input = new SubSequence(null, 0, 0, null);
 
-		private Segment root;
-		private int minimumSegments;
+		private final Pattern pattern;
 
-		public VariableSegmentRoot(Segment segmentToInsert, int sepCollectorPtr) {
-			root = segmentToInsert;
-			minimumSegments = sepCollectorPtr;
-		}
+		private final Matcher matcher;
 
-		public Segment getRoot() {
-			return root;
+		ReusableMatcher(Pattern pattern) {
+			this.pattern = pattern;
+			this.matcher = pattern.matcher(input);
 		}
 
-		public int getMinimumSegmentCount() {
-			return minimumSegments;
+		Matcher reset(MatchingContext matchingContext, int start, int end) {
+			input.chars = matchingContext.candidate;
+			input.start = start;
+			input.end = end;
+			input.context = matchingContext;
+			return matcher.reset(input);
 		}
 
 	}
@@ -773,15 +3585,38 @@ public class PathMatcher {
 
 
 		int pos;
-		Segment[] nextSegments;
+		// Volatile as a reorder may replace it while the tree is being walked
+		volatile Segment[] nextSegments;
 		Segment previousSegment;
 
+		// Union of the tags of all the templates that pass through this segment
+		long tagMask = ALL_TAGS;
+
+		// For segments in the prefix index, the range of PrefixIndex.templates below this one
+		int firstTemplate, lastTemplate;
+
+		// The number of times templates passing through this segment have been added, less those removed
+		int references = 1;
+
+		// For variable roots, the fewest separators of the templates below, not raised on removal
+		int minimumSeparators;
+
+		// When there are many next segments, each of them by itself, see INDEXED_FANOUT
+		Map<Segment, Segment> nextSegmentIndex;
+
 		Segment(int pos) {
 			this.pos = pos;
 		}
 
 		public abstract boolean matches(int candidatePos, int sepNum, MatchingContext matchingContext);
 
+		/**
+		 * @return true if a template passing through this segment may carry all the required tags
+		 */
+		boolean carries(long requiredTags) {
+			return (tagMask & requiredTags) == requiredTags;
+		}
+
 		protected final void findMatchSuccesses(Segment segment, Consumer<URITemplate> fn) {
 			if (segment instanceof MatchSuccessSegment) {
 				fn.accept(((MatchSuccessSegment)segment).template);
@@ -793,16 +3628,26 @@ public class PathMatcher {
 				}
 			}
 		}
-		
-		protected void printMatchStateDebug(MatchingContext matchingContext, int index) {
-			StringBuilder s = new StringBuilder();
-			s.append("Match attempt on " + toString() + "\n");
-			s.append("  " + new String(matchingContext.candidate,0,matchingContext.candidateLength)).append("\n  ");
-			for (int i = 0; i < index; i++) {
-				s.append(' ');
+
+		/**
+		 * Count a visit to this segment against the node visit limit and tell the listener (if there is one).
+		 */
+		protected final void visited(MatchingContext matchingContext, int candidateIndex) {
+			matchingContext.countVisit();
+			if (matchingContext.listener != null) {
+				matchingContext.listener.segmentVisited(toString(), candidateIndex);
+			}
+		}
+
+		/**
+		 * Report a rejection to the listener (if there is one).
+		 * @return false, so that callers can return the result directly
+		 */
+		protected final boolean rejected(MatchingContext matchingContext, int candidateIndex, Rejection reason) {
+			if (matchingContext.listener != null) {
+				matchingContext.listener.segmentRejected(toString(), candidateIndex, reason);
 			}
-			s.append('^');
-			System.out.println(s.toString());
+			return false;
 		}
 
 	}
@@ -819,8 +3664,9 @@ public class PathMatcher {
 
 		@Override
 		public boolean matches(int candidateIndex, int sn, MatchingContext matchingContext) {
-			if (DEBUG)
-				printMatchStateDebug(matchingContext, candidateIndex);
+			if ((tagMask & matchingContext.requiredTags) != matchingContext.requiredTags)
+				return rejected(matchingContext, candidateIndex, Rejection.TAG_MISMATCH);
+			visited(matchingContext, candidateIndex);
 			boolean matched = false;
 			if (candidateIndex < matchingContext.candidateLength) {
 				if (matchingContext.candidate[candidateIndex] == separator) {
@@ -833,13 +3679,24 @@ public class PathMatcher {
 							}
 						}
 					}
-				}				
+				} else {
+					return rejected(matchingContext, candidateIndex, Rejection.NOT_A_SEPARATOR);
+				}
 			} else {
 				if (matchingContext.isOnlyMatchStartCheck()) {
-					// Chase down match success segments below this point, they all match
-					// TODO don't need to pass in candidateText
-					findMatchSuccesses(this,(template) -> { matchingContext.addMatchResult(template, matchingContext.candidateText); });
+					// Everything below this point matches
+					if (lastTemplate > firstTemplate) {
+						// In the prefix index, the templates below are known
+						for (int t = firstTemplate; t < lastTemplate; t++) {
+							matchingContext.addMatchResult(matchingContext.prefixTemplates[t], matchingContext.candidateText);
+						}
+					} else {
+						// TODO don't need to pass in candidateText
+						findMatchSuccesses(this,(template) -> { matchingContext.addMatchResult(template, matchingContext.candidateText); });
+					}
 					matched = true;
+				} else {
+					return rejected(matchingContext, candidateIndex, Rejection.END_OF_PATH);
 				}
 			}
 			return matched;
@@ -868,15 +3725,16 @@ public class PathMatcher {
 
 		@Override
 		public boolean matches(int candidateIndex, int sn, MatchingContext matchingContext) {
-			if (DEBUG)
-				printMatchStateDebug(matchingContext, candidateIndex);
+			if ((tagMask & matchingContext.requiredTags) != matchingContext.requiredTags)
+				return rejected(matchingContext, candidateIndex, Rejection.TAG_MISMATCH);
+			visited(matchingContext, candidateIndex);
 			// TODO what about 'matchStart' when a partial literal is supplied? Or is that not allowed
 			if ((candidateIndex + text.length) > matchingContext.candidateLength) {
-				return false;
+				return rejected(matchingContext, candidateIndex, Rejection.END_OF_PATH);
 			}
 			for (int i = 0; i < len; i++) {
 				if (matchingContext.candidate[candidateIndex++] != text[i]) {
-					return false;
+					return rejected(matchingContext, candidateIndex - 1, Rejection.TEXT_MISMATCH);
 				}
 			}
 			boolean somethingMatched = false;
@@ -897,12 +3755,12 @@ public class PathMatcher {
 		}
 
 		public int hashCode() {
-			return 17 + (37 * this.pos + text.hashCode()) * 37;
+			return 17 + (37 * this.pos + Arrays.hashCode(text)) * 37;
 		}
 
 		public boolean equals(Object o) {
 			return (o instanceof LiteralSegment) && ((LiteralSegment) o).pos == this.pos
-					&& ((LiteralSegment) o).text.equals(this.text);
+					&& Arrays.equals(((LiteralSegment) o).text, this.text);
 		}
 
 	}
@@ -923,8 +3781,9 @@ public class PathMatcher {
 
 		@Override
 		public boolean matches(int candidateIndex, int sn, MatchingContext matchingContext) {
-			if (DEBUG)
-				printMatchStateDebug(matchingContext,candidateIndex);
+			if ((tagMask & matchingContext.requiredTags) != matchingContext.requiredTags)
+				return rejected(matchingContext, candidateIndex, Rejection.TAG_MISMATCH);
+			visited(matchingContext, candidateIndex);
 			// TODO [1] a 'fast match' rejection could compare the position of
 			// the
 			// next separator compared to the current pointer and the length of
@@ -932,19 +3791,17 @@ public class PathMatcher {
 			// need to work out when to STOP
 			if (matchingContext.candidateLength < (candidateIndex + len)) {
 				// There isn't enough data to match this pattern!
-				return false;
+				return rejected(matchingContext, candidateIndex, Rejection.END_OF_PATH);
 			}
 			for (int i = 0; i < len; i++) {
 				if (text[i] != '?' && matchingContext.candidate[candidateIndex] != text[i]) {
-					return false;
+					return rejected(matchingContext, candidateIndex, Rejection.TEXT_MISMATCH);
 				}
 				candidateIndex++;
 			}
-			// TODO [1] text this if, why is it here, why not just delegate? is
-			// it a 'run out of data' problem? is there more data?
-			if (matchingContext.separatorPositions[sn] > candidateIndex) {
-				// There is more data that did not match the pattern
-				return false;
+			if (matchingContext.separatorPositions[sn] != candidateIndex) {
+				// There is more data that did not match the pattern, or a ? matched a separator
+				return rejected(matchingContext, candidateIndex, Rejection.TEXT_MISMATCH);
 			}
 			boolean somethingMatched = false;
 			for (Segment nextSegment : nextSegments) {
@@ -964,12 +3821,12 @@ public class PathMatcher {
 		}
 
 		public int hashCode() {
-			return 19 + (37 * this.pos + text.hashCode()) * 37;
+			return 19 + (37 * this.pos + Arrays.hashCode(text)) * 37;
 		}
 
 		public boolean equals(Object o) {
 			return (o instanceof QuestionMarkedTextSegment) && ((QuestionMarkedTextSegment) o).pos == this.pos
-					&& ((QuestionMarkedTextSegment) o).text.equals(this.text);
+					&& Arrays.equals(((QuestionMarkedTextSegment) o).text, this.text);
 		}
 
 	}
@@ -978,6 +3835,7 @@ public class PathMatcher {
 
 		private String key;
 		private Pattern constraintPattern;
+		private int matcherSlot;
 		
 		/**
 		 * @param pos
@@ -992,35 +3850,42 @@ public class PathMatcher {
 			} else {
 				key = captureDescriptor.substring(1, colon);
 				// TODO do I need to prefix ^ and suffix $ ?
-				constraintPattern = Pattern.compile(captureDescriptor.substring(colon+1, captureDescriptor.length()-1));
+				String constraint = captureDescriptor.substring(colon+1, captureDescriptor.length()-1);
+				constraintPattern = (caseSensitive ? Pattern.compile(constraint) :
+						Pattern.compile(constraint, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+				matcherSlot = nextMatcherSlot();
 			}
 		}
 
 		@Override
 		public boolean matches(int candidateIndex, int sn, MatchingContext matchingContext) {
+			if ((tagMask & matchingContext.requiredTags) != matchingContext.requiredTags)
+				return rejected(matchingContext, candidateIndex, Rejection.TAG_MISMATCH);
+			visited(matchingContext, candidateIndex);
 			if (candidateIndex == matchingContext.separatorPositions[sn]) {
-				return false;
+				return rejected(matchingContext, candidateIndex, Rejection.EMPTY_CAPTURE);
 			}
 			if (constraintPattern!=null) {
 				// TODO what if not enough data for the next line?
-				Matcher m = constraintPattern.matcher(new SubSequence(matchingContext.candidate,candidateIndex,matchingContext.separatorPositions[sn]));
+				Matcher m = matchingContext.regexMatcher(constraintPattern, matcherSlot, candidateIndex, matchingContext.separatorPositions[sn]);
 				if (!m.matches()) {
-					return false;
+					return rejected(matchingContext, candidateIndex, Rejection.CONSTRAINT_MISMATCH);
 				}
 			}			
+			int mark = matchingContext.resultCount();
 			boolean somethingMatched = false;
 			for (Segment nextSegment : nextSegments) {
 				boolean match = nextSegment.matches(matchingContext.separatorPositions[sn], sn, matchingContext);
 				if (match) {
 					somethingMatched = true;
 					if (!matchingContext.findAllMatches) {
-						return true;
+						break;
 					}
 				}
 			}
-			if (somethingMatched && !matchingContext.matchStart) {
-				// Need to do capture - TODO less object creation please
-				matchingContext.set(key,matchingContext.candidateText.substring(candidateIndex, matchingContext.separatorPositions[sn]));
+			if (somethingMatched && matchingContext.wantsCaptures()) {
+				// Every match found below gets the capture - TODO less object creation please
+				matchingContext.set(mark, key, matchingContext.candidateText.substring(candidateIndex, matchingContext.separatorPositions[sn]));
 			}
 			return somethingMatched;
 		}
@@ -1030,7 +3895,7 @@ public class PathMatcher {
 		}
 
 		public int hashCode() {
-			return 19 + ((this.pos * 37 + key.hashCode()) * 37 + (constraintPattern==null?0:constraintPattern.hashCode()))*37 ;
+			return 19 + ((this.pos * 37 + key.hashCode()) * 37 + (constraintPattern==null?0:constraintPattern.pattern().hashCode()))*37 ;
 		}
 
 		public boolean equals(Object o) {
@@ -1040,7 +3905,8 @@ public class PathMatcher {
 			CapturingTextSegment that = (CapturingTextSegment)o;
 			return that.pos == this.pos && 
 					that.key.equals(this.key) && 
-					this.constraintPattern==null?that.constraintPattern==null:this.constraintPattern.pattern().equals(that.constraintPattern.pattern());
+					(this.constraintPattern==null?that.constraintPattern==null:
+						(that.constraintPattern!=null && this.constraintPattern.pattern().equals(that.constraintPattern.pattern())));
 		}
 	}
 	
@@ -1055,47 +3921,38 @@ public class PathMatcher {
 
 		@Override
 		public boolean matches(int candidateIndex, int sn, MatchingContext matchingContext) {
-			if (DEBUG) printMatchStateDebug(matchingContext,candidateIndex);
+			if ((tagMask & matchingContext.requiredTags) != matchingContext.requiredTags)
+				return rejected(matchingContext, candidateIndex, Rejection.TAG_MISMATCH);
+			visited(matchingContext, candidateIndex);
+			int mark = matchingContext.resultCount();
 			boolean somethingMatched = false;
 			for (Segment nextSegment : nextSegments) {
 				boolean b = nextSegment.matches(candidateIndex, sn, matchingContext);
 				if (b) {
 					somethingMatched = true;
-					if (!matchingContext.findAllMatches) {
-						return true;
-					}
-					// TODO should break here? why go looking for more?
-					if (!matchingContext.matchStart) {
-						// Going to assume that {*foo} is always the 'last' element in a chain.
-						// This means the 'value' is the rest-of-the-data
-						matchingContext.set(key,matchingContext.candidateText.substring(candidateIndex));
-					}
 					break; // TODO why go looking for more?
 				} else {
 					for (int i = sn + 1; i <= matchingContext.separatorCount; i++) {
-						System.out.println("/** skipping to next candidate, #separator=" + i + " pos=" + matchingContext.separatorPositions[i]);
+						if (matchingContext.listener != null)
+							matchingContext.listener.backtracked(toString(), candidateIndex, matchingContext.separatorPositions[i]);
 						b = nextSegment.matches(matchingContext.separatorPositions[i], i, matchingContext);
 						if (b) {
 							somethingMatched = true;
-							if (!matchingContext.findAllMatches) {
-								return true;
-							}
-							if (!matchingContext.matchStart) {
-								// Going to assume that {*foo} is always the 'last' element in a chain.
-								// This means the 'value' is the rest-of-the-data
-								matchingContext.set(key,matchingContext.candidateText.substring(candidateIndex));
-//								matchingContext.set(key,candidateText.substring(candidateIndex, sepCollector[i]));
-							}
 							// TODO should break here? why go looking for more?
 							break;
 						}
 					}
+					if (b && !matchingContext.findAllMatches) {
+						break;
+					}
 				}
 			}
-//			if (somethingMatched && !matchingContext.matchStart) {
-//				// Need to do capture - TODO less object creation please
-//				matchingContext.set(key,candidateText.substring(candidateIndex, sepCollector[sn]));
-//			}
+			if (somethingMatched && matchingContext.wantsCaptures()) {
+				// Going to assume that {*foo} is always the 'last' element in a chain.
+				// This means the 'value' is the rest-of-the-data, for every match found below
+				matchingContext.set(mark, key, matchingContext.candidateText.substring(candidateIndex,
+						matchingContext.separatorPositions[matchingContext.separatorCount]));
+			}
 			return somethingMatched;
 			
 //			boolean somethingMatched = false;
@@ -1148,6 +4005,7 @@ public class PathMatcher {
 
 		private final List<String> variableNames = new LinkedList<>();
 		private Pattern pattern;
+		private int matcherSlot = nextMatcherSlot();
 
 		public WildcardedTextSegment(int pos, String text) {
 			super(pos);
@@ -1158,13 +4016,10 @@ public class PathMatcher {
 																				// crude
 			patternText = "^" + patternText.replace("^", "\\^").replace("$", "\\$").replace(".", "\\.")
 					.replace("*", ".*").replace("?", ".").replace("(CaPtUrE)", "(.*)") + "$";
-			if (DEBUG)
-				System.out.println("WildcardedTextSegment: transformed incoming text " + text + " to " + patternText);
 //			this.pattern = Pattern.compile(patternText);
 		}
 		
 		public void buildPattern(String text) {
-			if (DEBUG) System.out.println("Pattern in :"+text);
 			StringBuilder patternBuilder = new StringBuilder();
 			Matcher matcher = GLOB_PATTERN.matcher(text);
 			int end = 0;
@@ -1195,9 +4050,8 @@ public class PathMatcher {
 				end = matcher.end();
 			}
 			patternBuilder.append(quote(text, end, text.length()));
-			if (DEBUG) System.out.println("Pattern out: "+patternBuilder.toString());
 			this.pattern = (caseSensitive ? Pattern.compile(patternBuilder.toString()) :
-					Pattern.compile(patternBuilder.toString(), Pattern.CASE_INSENSITIVE));
+					Pattern.compile(patternBuilder.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
 		}
 
 		private String quote(String s, int start, int end) {
@@ -1210,22 +4064,28 @@ public class PathMatcher {
 
 		@Override
 		public boolean matches(int candidateIndex, int sn, MatchingContext matchingContext) {
+			if ((tagMask & matchingContext.requiredTags) != matchingContext.requiredTags)
+				return rejected(matchingContext, candidateIndex, Rejection.TAG_MISMATCH);
+			visited(matchingContext, candidateIndex);
 			// TODO what if not enough data for the next line?
-			Matcher m = pattern.matcher(new SubSequence(matchingContext.candidate, candidateIndex, matchingContext.separatorPositions[sn]));
+			Matcher m = matchingContext.regexMatcher(pattern, matcherSlot, candidateIndex, matchingContext.separatorPositions[sn]);
 			boolean matches = m.matches();
+			int mark = matchingContext.resultCount();
 			boolean somethingMatched = false;
-			if (matches) {
+			if (!matches) {
+				return rejected(matchingContext, candidateIndex, Rejection.PATTERN_MISMATCH);
+			} else {
 				for (Segment nextSegment : nextSegments) {
 					boolean match = nextSegment.matches(matchingContext.separatorPositions[sn], sn, matchingContext);
 					if (match) {
 						somethingMatched = true;
 						if (!matchingContext.findAllMatches) {
-							return true;
+							break;
 						}
 					}
 				}
 			}
-			if (somethingMatched && !matchingContext.matchStart) {
+			if (somethingMatched && matchingContext.wantsCaptures()) {
 				// TODO
 //				if (this.variableNames.size() != m.groupCount()) { SPR-8455
 //					throw new IllegalArgumentException("The number of capturing groups in the pattern segment " +
@@ -1234,10 +4094,13 @@ public class PathMatcher {
 //							"Use non-capturing groups instead.");
 //				}
 				for (int i = 1; i <= m.groupCount(); i++) {
+					if (m.start(i) == -1) {
+						continue;
+					}
+					// From the path as given rather than the lower cased copy the regex saw
 					String name = this.variableNames.get(i - 1);
-					String value = m.group(i);
-					System.out.println("Found "+name+" = "+value);
-					matchingContext.set(name, value);
+					String value = matchingContext.candidateText.substring(candidateIndex + m.start(i), candidateIndex + m.end(i));
+					matchingContext.set(mark, name, value);
 //					uriTemplateVariables.put(name, value);
 				}
 				// Need to do capture - TODO less object creation please
@@ -1250,20 +4113,26 @@ public class PathMatcher {
 			return "WildcardedText(" + new String(text) + ")";
 		}
 
-		// TODO [1] hashcode?
 		public int hashCode() {
-			return 19 + (37 * this.pos + text.hashCode()) * 37;
+			return 19 + (37 * this.pos + Arrays.hashCode(text)) * 37;
 		}
 
 		public boolean equals(Object o) {
 			return (o instanceof WildcardedTextSegment) && ((WildcardedTextSegment) o).pos == this.pos
-					&& ((WildcardedTextSegment) o).text.equals(this.text);
+					&& Arrays.equals(((WildcardedTextSegment) o).text, this.text);
 		}
 
 	}
 
 	class SeparatorStarStarSegment extends Segment {
 
+		// Whether failures from here are remembered, not needed if this can only be reached from one separator
+		boolean memoized;
+
+		// The template this belongs to, a ** tries its followers in order and stops at the first
+		// that matches, so sharing what follows it would lose the matches of the later ones
+		int templateId = -1;
+
 		SeparatorStarStarSegment(int pos) {
 			super(pos);
 		}
@@ -1274,8 +4143,14 @@ public class PathMatcher {
 
 		@Override
 		public boolean matches(int candidateIndex, int sn, MatchingContext matchingContext) {
-			if (DEBUG)
-				printMatchStateDebug(matchingContext,candidateIndex);
+			if ((tagMask & matchingContext.requiredTags) != matchingContext.requiredTags)
+				return rejected(matchingContext, candidateIndex, Rejection.TAG_MISMATCH);
+			visited(matchingContext, candidateIndex);
+			// The ** is a whole path element, so the preceding one must have ended here
+			if (candidateIndex != matchingContext.separatorPositions[sn])
+				return rejected(matchingContext, candidateIndex, Rejection.NOT_A_SEPARATOR);
+			if (memoized && matchingContext.knownFailure(this, sn))
+				return rejected(matchingContext, candidateIndex, Rejection.ALREADY_FAILED);
 			// this may be a piece of the pattern /**/foo
 			// the candidate might be >/<foo or >/<testing/foo - both of these
 			// should match (the >.< indicate candidateIndex)
@@ -1295,8 +4170,8 @@ public class PathMatcher {
 					// TODO should 'break' here - why go looking for more?
 				} else {
 					for (int i = sn + 1; i <= matchingContext.separatorCount; i++) {
-						if (DEBUG)
-						System.out.println("/** skipping to next candidate, #separator=" + i + " pos=" + matchingContext.separatorPositions[i]);
+						if (matchingContext.listener != null)
+							matchingContext.listener.backtracked(toString(), candidateIndex, matchingContext.separatorPositions[i]);
 						b = nextSegment.matches(matchingContext.separatorPositions[i], i, matchingContext);
 						if (b) {
 							somethingMatched = true;
@@ -1308,16 +4183,23 @@ public class PathMatcher {
 					}
 				}
 			}
+			if (!somethingMatched && memoized) {
+				matchingContext.recordFailure(this, sn);
+			}
 			return somethingMatched;
 		}
 
 		// TODO [1]
 		public int hashCode() {
-			return 17 + this.pos * 37;
+			return 17 + this.pos * 37 + templateId;
 		}
 
 		public boolean equals(Object o) {
-			return (o instanceof SeparatorStarStarSegment) && ((SeparatorStarStarSegment) o).pos == this.pos;
+			if (!(o instanceof SeparatorStarStarSegment)) {
+				return false;
+			}
+			SeparatorStarStarSegment that = (SeparatorStarStarSegment) o;
+			return that.pos == this.pos && that.templateId == this.templateId;
 		}
 
 	}
@@ -1326,27 +4208,98 @@ public class PathMatcher {
 
 		private URITemplate template;
 
+		// Dense id of the template, see registerTemplate()
+		int id;
+
+		// When an equal template has been registered more than once, the tags of each
+		// registration. The union in tagMask could pass a combination none of them carried.
+		private long[] registrations;
+
 		public MatchSuccessSegment(int pos, URITemplate template) {
 			super(pos);
 			this.template = template;
 		}
 
+		void addRegistration(long tags) {
+			if (registrations == null) {
+				registrations = new long[] { tagMask, tags };
+			} else {
+				registrations = Arrays.copyOf(registrations, registrations.length + 1);
+				registrations[registrations.length - 1] = tags;
+			}
+		}
+
+		/**
+		 * @return the index of the most recent registration carrying exactly the tags, or of
+		 *         the most recent one when any will do, -1 if there is none
+		 */
+		int findRegistration(long tags, boolean anyTags) {
+			long[] all = registrationTags();
+			for (int r = all.length - 1; r >= 0; r--) {
+				if (anyTags || all[r] == tags) {
+					return r;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Forget one of several registrations, see {@link #findRegistration(long, boolean)}.
+		 */
+		void removeRegistration(int index) {
+			long[] remaining = new long[registrations.length - 1];
+			System.arraycopy(registrations, 0, remaining, 0, index);
+			System.arraycopy(registrations, index + 1, remaining, index, remaining.length - index);
+			tagMask = unionOfTags(remaining);
+			registrations = remaining.length == 1 ? null : remaining;
+		}
+
+		/**
+		 * @return the tags of each registration of the template
+		 */
+		long[] registrationTags() {
+			return registrations == null ? new long[] { tagMask } : registrations;
+		}
+
+		@Override
+		boolean carries(long requiredTags) {
+			if (registrations == null) {
+				return super.carries(requiredTags);
+			}
+			for (long tags : registrations) {
+				if ((tags & requiredTags) == requiredTags) {
+					return true;
+				}
+			}
+			return false;
+		}
+
 		public String toString() {
 			return "MatchSuccessSegment(" + template + ")";
 		}
 
 		@Override
 		public boolean matches(int candidatePos, int sn, MatchingContext matchingContext) {
-			if (DEBUG)
-				printMatchStateDebug(matchingContext,candidatePos);
+			if (!carries(matchingContext.requiredTags))
+				return rejected(matchingContext, candidatePos, Rejection.TAG_MISMATCH);
+			visited(matchingContext, candidatePos);
 			// If there is more path then it is not a match
-			if (candidatePos < matchingContext.candidateLength) {
+			if (!matchingContext.isPathEnd(candidatePos)) {
 				// unless the prevsegment was one of those munching ones
 				if (previousSegment instanceof SeparatorStarStarSegment || previousSegment instanceof CapturingMultiTextSegment) {
 					matchingContext.addMatchResult(this.template, matchingContext.candidateText);
 					return true;
+				}
+				// or the rest is an extension on literal text ending the template
+				int suffixEnd = previousSegment instanceof LiteralSegment ? matchingContext.suffixEnd(candidatePos, sn) : -1;
+				if (suffixEnd != -1) {
+					matchingContext.addMatchResult(this.template, matchingContext.candidateText);
+					if (matchingContext.wantsCaptures()) {
+						matchingContext.set(EXTENSION_VARIABLE, matchingContext.candidateText.substring(candidatePos + 1, suffixEnd));
+					}
+					return true;
 				} else {
-					return false;
+					return rejected(matchingContext, candidatePos, Rejection.UNMATCHED_PATH_REMAINING);
 				}
 			} else {
 				matchingContext.addMatchResult(this.template, matchingContext.candidateText);
@@ -1354,13 +4307,15 @@ public class PathMatcher {
 			}
 		}
 
+		// Equal templates are given the same id when registered, so there is no need to
+		// call back into the template implementation here
 		public int hashCode() {
-			return 17 + (37 * this.pos + template.hashCode()) * 37;
+			return 17 + (37 * this.pos + id) * 37;
 		}
 
 		public boolean equals(Object o) {
 			return (o instanceof MatchSuccessSegment) && ((MatchSuccessSegment) o).pos == this.pos
-					&& ((MatchSuccessSegment) o).template.equals(this.template);
+					&& ((MatchSuccessSegment) o).id == this.id;
 		}
 
 	}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Support for matching paths that are still percent-encoded (RFC 3986). Paths and
+ * template literals are both brought to a canonical encoding so they can be compared
+ * without decoding: an encoded unreserved character (<tt>%61</tt>) is decoded, other
+ * encoded characters are kept encoded with upper case hex digits, and characters a path
+ * may carry as they are (the unreserved ones, sub-delims, <tt>:</tt>, <tt>@</tt> and
+ * <tt>/</tt>) are never encoded.
+ */
+final class PercentEncoding {
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private static final String SUB_DELIMS_AND_SEPARATORS = "!$&'()*+,;=:@/";
+
+	private PercentEncoding() {
+	}
+
+	static boolean isUnreserved(int ch) {
+		return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '-'
+				|| ch == '.' || ch == '_' || ch == '~';
+	}
+
+	/**
+	 * @return the value of the hex digit, or -1 if it is not one
+	 */
+	static int hexValue(char ch) {
+		if (ch >= '0' && ch <= '9') {
+			return ch - '0';
+		} else if (ch >= 'A' && ch <= 'F') {
+			return ch - 'A' + 10;
+		} else if (ch >= 'a' && ch <= 'f') {
+			return ch - 'a' + 10;
+		}
+		return -1;
+	}
+
+	static char hexDigit(int value) {
+		return HEX[value];
+	}
+
+	/**
+	 * Encode the text of a template, written unencoded, into the canonical encoding. The
+	 * separator, the <tt>*</tt> and <tt>?</tt> wildcards and <tt>{...}</tt> captures are
+	 * left alone.
+	 * @return the encoded text, or the same array if nothing needed encoding
+	 */
+	static char[] encodeTemplate(char[] text, int length, char separator) {
+		StringBuilder encoded = null;
+		int depth = 0;
+		for (int i = 0; i < length; i++) {
+			char ch = text[i];
+			boolean keep;
+			if (ch == '{') {
+				depth++;
+				keep = true;
+			} else if (ch == '}') {
+				depth--;
+				keep = true;
+			} else {
+				keep = depth > 0 || ch == separator || ch == '*' || ch == '?' || isUnreserved(ch)
+						|| SUB_DELIMS_AND_SEPARATORS.indexOf(ch) != -1;
+			}
+			if (keep) {
+				if (encoded != null) {
+					encoded.append(ch);
+				}
+				continue;
+			}
+			if (encoded == null) {
+				encoded = new StringBuilder(length + 16).append(text, 0, i);
+			}
+			int end = Character.isHighSurrogate(ch) && i + 1 < length ? i + 2 : i + 1;
+			for (byte b : new String(text, i, end - i).getBytes(StandardCharsets.UTF_8)) {
+				encoded.append('%').append(hexDigit((b >> 4) & 0xF)).append(hexDigit(b & 0xF));
+			}
+			i = end - 1;
+		}
+		if (encoded == null) {
+			return text;
+		}
+		char[] result = new char[encoded.length()];
+		encoded.getChars(0, result.length, result, 0);
+		return result;
+	}
+
+	/**
+	 * Decode the percent-encoded characters in part of some text, sequences that do not
+	 * form valid escapes are left as they are.
+	 */
+	static String decode(CharSequence text, int start, int end) {
+		int percent = -1;
+		for (int i = start; i < end; i++) {
+			if (text.charAt(i) == '%') {
+				percent = i;
+				break;
+			}
+		}
+		if (percent == -1) {
+			return text.subSequence(start, end).toString();
+		}
+		StringBuilder decoded = new StringBuilder(end - start).append(text, start, percent);
+		byte[] bytes = new byte[(end - percent) / 3];
+		int i = percent;
+		while (i < end) {
+			int count = 0;
+			while (i + 2 < end && text.charAt(i) == '%') {
+				int high = hexValue(text.charAt(i + 1));
+				int low = hexValue(text.charAt(i + 2));
+				if (high == -1 || low == -1) {
+					break;
+				}
+				bytes[count++] = (byte) ((high << 4) + low);
+				i += 3;
+			}
+			if (count != 0) {
+				decoded.append(new String(bytes, 0, count, StandardCharsets.UTF_8));
+			} else {
+				decoded.append(text.charAt(i++));
+			}
+		}
+		return decoded.toString();
+	}
+
+	static String decode(String text) {
+		return text.indexOf('%') == -1 ? text : decode(text, 0, text.length());
+	}
+
+}
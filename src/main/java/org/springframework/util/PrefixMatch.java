@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+/**
+ * Filled in by {@link PathMatcher#findLongestPrefixMatch(String, PrefixMatch)} with the
+ * template that matched the longest leading part of a path, for example the mount point
+ * of a servlet. It is meant to be reused from one lookup to the next so that lookups do
+ * not allocate.
+ */
+public class PrefixMatch {
+
+	private URITemplate template;
+
+	private int templateId = -1;
+
+	private int remainingPathOffset = -1;
+
+	void set(URITemplate template, int templateId, int remainingPathOffset) {
+		this.template = template;
+		this.templateId = templateId;
+		this.remainingPathOffset = remainingPathOffset;
+	}
+
+	void clear() {
+		set(null, -1, -1);
+	}
+
+	/**
+	 * @return true if the last lookup found a template
+	 */
+	public boolean isMatched() {
+		return template != null;
+	}
+
+	/**
+	 * @return the template matching the longest leading part of the path, or null if none did
+	 */
+	public URITemplate getTemplate() {
+		return template;
+	}
+
+	/**
+	 * @return the id of the template, see {@link PathMatcher#getTemplateId(URITemplate)}, or -1
+	 */
+	public int getTemplateId() {
+		return templateId;
+	}
+
+	/**
+	 * @return where the rest of the path begins in the path as given, this is the path
+	 *         length when the template matched all of it, or -1 if nothing matched
+	 */
+	public int getRemainingPathOffset() {
+		return remainingPathOffset;
+	}
+
+	public String toString() {
+		return "PrefixMatch(" + (template == null ? "none" : template.getTemplateText() + " remaining from " + remainingPathOffset) + ")";
+	}
+
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Routes published topics to the subscribers of the patterns they match, as a message
+ * broker does for AMQP or STOMP style subscriptions such as <tt>orders.*.created</tt> or
+ * <tt>orders.eu.**</tt>. The patterns are the templates of a {@link PathMatcher} with
+ * <tt>.</tt> (or another character) as the separator, so they can use everything a
+ * template can.
+ *
+ * <p>Subscribers are identified by ints chosen by the caller. The first subscription to
+ * a pattern adds it to the tree and the last unsubscribe removes it again, freeing its
+ * template id for the next new pattern so that churn does not grow the index. Segments
+ * of the tree are reference counted, so removing a pattern only unlinks those no other
+ * pattern passes through, and both adding and removing find the segments along the
+ * pattern directly rather than searching. Each pattern holds its subscribers as a sorted
+ * array without duplicates, replaced rather than changed.
+ *
+ * <p>Publishing writes the ids of the distinct subscribers into an array supplied by the
+ * caller and allocates nothing once its per-thread buffers have grown to fit. Any number
+ * of threads may publish at once, subscribing and unsubscribing wait for them.
+ */
+public class SubscriptionIndex {
+
+	private static final int[] NO_SUBSCRIBERS = new int[0];
+
+	final PathMatcher matcher;
+
+	private final StampedLock lock = new StampedLock();
+
+	// The subscribers to each pattern by its template id, null once the last has gone and
+	// the id is free for the matcher to give to another pattern
+	int[][] subscribers = new int[64][];
+
+	private int patternCount;
+
+	private final ThreadLocal<Publication> publications = ThreadLocal.withInitial(Publication::new);
+
+	public SubscriptionIndex() {
+		this('.');
+	}
+
+	public SubscriptionIndex(char separator) {
+		this.matcher = new PathMatcher(separator);
+	}
+
+	/**
+	 * @return true if the subscriber was added, false if it was already subscribed to the pattern
+	 */
+	public boolean subscribe(String pattern, int subscriber) {
+		SubscriptionPattern template = new SubscriptionPattern(pattern);
+		long stamp = lock.writeLock();
+		try {
+			int[] current = subscribers(template);
+			if (current == null) {
+				matcher.addURITemplate(template);
+				patternCount++;
+				current = NO_SUBSCRIBERS;
+			} else if (Arrays.binarySearch(current, subscriber) >= 0) {
+				return false;
+			}
+			int id = matcher.getTemplateId(template);
+			if (id >= subscribers.length) {
+				subscribers = Arrays.copyOf(subscribers, Math.max(id + 1, subscribers.length * 2));
+			}
+			int insertAt = -Arrays.binarySearch(current, subscriber) - 1;
+			int[] updated = new int[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, insertAt);
+			updated[insertAt] = subscriber;
+			System.arraycopy(current, insertAt, updated, insertAt + 1, current.length - insertAt);
+			subscribers[id] = updated;
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return true if the subscriber was removed, false if it was not subscribed to the pattern
+	 */
+	public boolean unsubscribe(String pattern, int subscriber) {
+		SubscriptionPattern template = new SubscriptionPattern(pattern);
+		long stamp = lock.writeLock();
+		try {
+			int[] current = subscribers(template);
+			int at = current == null ? -1 : Arrays.binarySearch(current, subscriber);
+			if (at < 0) {
+				return false;
+			}
+			int id = matcher.getTemplateId(template);
+			if (current.length == 1) {
+				subscribers[id] = null;
+				matcher.removeURITemplate(template);
+				patternCount--;
+			} else {
+				int[] updated = new int[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, at);
+				System.arraycopy(current, at + 1, updated, at, updated.length - at);
+				subscribers[id] = updated;
+			}
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return the number of patterns with at least one subscriber
+	 */
+	public int getPatternCount() {
+		long stamp = lock.readLock();
+		try {
+			return patternCount;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Find the subscribers to the patterns the topic matches. Each is written once, however
+	 * many of its patterns match. Writing stops when the array is full but the count
+	 * carries on.
+	 *
+	 * @return the number of distinct subscribers, if this is more than the array length then not all of them were written
+	 */
+	public int publish(String topic, int[] into) {
+		Publication publication = publications.get();
+		long stamp = lock.readLock();
+		try {
+			int[] ids = publication.ids;
+			int matches = matcher.findAllMatchIds(topic, ids);
+			if (matches > ids.length) {
+				ids = publication.ids = new int[Integer.highestOneBit(matches) << 1];
+				matcher.findAllMatchIds(topic, ids);
+			}
+			if (matches == 1) {
+				// Already distinct
+				int[] only = subscribers[ids[0]];
+				System.arraycopy(only, 0, into, 0, Math.min(only.length, into.length));
+				return only.length;
+			}
+			int count = 0;
+			publication.startDeduplicating();
+			for (int m = 0; m < matches; m++) {
+				for (int subscriber : subscribers[ids[m]]) {
+					if (publication.firstSighting(subscriber)) {
+						if (count < into.length) {
+							into[count] = subscriber;
+						}
+						count++;
+					}
+				}
+			}
+			return count;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return the subscribers to the pattern, or null if it has none
+	 */
+	private int[] subscribers(SubscriptionPattern template) {
+		int id = matcher.getTemplateId(template);
+		return id == -1 || id >= subscribers.length ? null : subscribers[id];
+	}
+
+	/**
+	 * A pattern as a template, equal to any other with the same text so that a pattern
+	 * keeps its template id for as long as it has subscribers.
+	 */
+	static final class SubscriptionPattern implements URITemplate {
+
+		private final String pattern;
+
+		SubscriptionPattern(String pattern) {
+			this.pattern = pattern;
+		}
+
+		@Override
+		public String getTemplateText() {
+			return pattern;
+		}
+
+		public boolean equals(Object o) {
+			return o instanceof SubscriptionPattern && ((SubscriptionPattern) o).pattern.equals(pattern);
+		}
+
+		public int hashCode() {
+			return pattern.hashCode();
+		}
+
+		public String toString() {
+			return pattern;
+		}
+
+	}
+
+	/**
+	 * The buffers one thread publishes with. Subscribers already written for the current
+	 * topic are recorded in an open addressed set, marked with a generation number so that
+	 * it need not be cleared between topics.
+	 */
+	static final class Publication {
+
+		int[] ids = new int[16];
+
+		private int[] seen = new int[64];
+
+		private int[] seenGenerations = new int[64];
+
+		private int seenCount;
+
+		private int generation;
+
+		void startDeduplicating() {
+			seenCount = 0;
+			if (++generation == 0) {
+				Arrays.fill(seenGenerations, 0);
+				generation = 1;
+			}
+		}
+
+		/**
+		 * @return true if the subscriber has not been seen for the current topic
+		 */
+		boolean firstSighting(int subscriber) {
+			if (seenCount * 2 >= seen.length) {
+				grow();
+			}
+			int mask = seen.length - 1;
+			for (int slot = mix(subscriber) & mask;; slot = (slot + 1) & mask) {
+				if (seenGenerations[slot] != generation) {
+					seen[slot] = subscriber;
+					seenGenerations[slot] = generation;
+					seenCount++;
+					return true;
+				}
+				if (seen[slot] == subscriber) {
+					return false;
+				}
+			}
+		}
+
+		private void grow() {
+			int[] oldSeen = seen;
+			int[] oldGenerations = seenGenerations;
+			seen = new int[oldSeen.length * 2];
+			seenGenerations = new int[oldSeen.length * 2];
+			int mask = seen.length - 1;
+			for (int i = 0; i < oldSeen.length; i++) {
+				if (oldGenerations[i] == generation) {
+					int slot = mix(oldSeen[i]) & mask;
+					while (seenGenerations[slot] == generation) {
+						slot = (slot + 1) & mask;
+					}
+					seen[slot] = oldSeen[i];
+					seenGenerations[slot] = generation;
+				}
+			}
+		}
+
+		private static int mix(int value) {
+			int h = value * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+	}
+
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates URIs from a template by substituting values for its variables, the reverse
+ * of matching. Obtain one from {@link PathMatcher#getExpander(URITemplate)} which builds
+ * it from the same segment chain used for matching. Literal parts of the template are
+ * written as they appear in the template text, variable values are percent encoded
+ * (as UTF-8) so that they form a single path segment, or in the case of a
+ * <tt>{*name}</tt> variable one or more segments.
+ *
+ * <p>Expanding into a caller supplied {@link StringBuilder} or {@link ByteBuffer} does
+ * not allocate. Variables can be supplied positionally, in the order they first appear
+ * in the template, or by name from a map. An expander is immutable and may be shared.
+ */
+public class URITemplateExpander {
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private final String templateText;
+
+	private final char separator;
+
+	// For each part, either the literal text or (for a variable) null
+	private final String[] literals;
+
+	// The UTF-8 form of each literal, null for variables
+	private final byte[][] literalBytes;
+
+	// For each part that is a variable, the index of that variable in variableNames
+	private final int[] variableIndexes;
+
+	// For each part that is a variable, whether it may span several segments
+	private final boolean[] multiSegment;
+
+	private final String[] variableNames;
+
+	private URITemplateExpander(String templateText, char separator, List<String> literals, List<Integer> variableIndexes,
+			List<Boolean> multiSegment, List<String> variableNames) {
+		this.templateText = templateText;
+		this.separator = separator;
+		int parts = literals.size();
+		this.literals = literals.toArray(new String[parts]);
+		this.literalBytes = new byte[parts][];
+		this.variableIndexes = new int[parts];
+		this.multiSegment = new boolean[parts];
+		for (int i = 0; i < parts; i++) {
+			if (this.literals[i] != null) {
+				this.literalBytes[i] = this.literals[i].getBytes(StandardCharsets.UTF_8);
+			}
+			this.variableIndexes[i] = variableIndexes.get(i);
+			this.multiSegment[i] = multiSegment.get(i);
+		}
+		this.variableNames = variableNames.toArray(new String[variableNames.size()]);
+	}
+
+	public String getTemplateText() {
+		return templateText;
+	}
+
+	/**
+	 * @return the names of the variables, in the order positional values must be supplied
+	 */
+	public String[] getVariableNames() {
+		return variableNames.clone();
+	}
+
+	/**
+	 * Append the URI for the supplied variable values, given in the order the variables first appear in the template.
+	 */
+	public StringBuilder expand(StringBuilder output, CharSequence... values) {
+		checkValueCount(values);
+		for (int i = 0; i < literals.length; i++) {
+			if (literals[i] != null) {
+				output.append(literals[i]);
+			} else {
+				encode(values[variableIndexes[i]], multiSegment[i], output);
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * Append the URI for the variable values in the map, keyed by variable name.
+	 */
+	public StringBuilder expand(StringBuilder output, Map<String, ? extends CharSequence> values) {
+		for (int i = 0; i < literals.length; i++) {
+			if (literals[i] != null) {
+				output.append(literals[i]);
+			} else {
+				encode(valueFor(values, variableIndexes[i]), multiSegment[i], output);
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * Write the URI for the supplied variable values into the buffer, as UTF-8.
+	 * @throws java.nio.BufferOverflowException if the buffer does not have enough space remaining
+	 */
+	public ByteBuffer expand(ByteBuffer output, CharSequence... values) {
+		checkValueCount(values);
+		for (int i = 0; i < literals.length; i++) {
+			if (literals[i] != null) {
+				output.put(literalBytes[i]);
+			} else {
+				encode(values[variableIndexes[i]], multiSegment[i], output);
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * Write the URI for the variable values in the map, keyed by variable name, into the buffer as UTF-8.
+	 * @throws java.nio.BufferOverflowException if the buffer does not have enough space remaining
+	 */
+	public ByteBuffer expand(ByteBuffer output, Map<String, ? extends CharSequence> values) {
+		for (int i = 0; i < literals.length; i++) {
+			if (literals[i] != null) {
+				output.put(literalBytes[i]);
+			} else {
+				encode(valueFor(values, variableIndexes[i]), multiSegment[i], output);
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * Convenience form of {@link #expand(StringBuilder, CharSequence...)} that returns a new string.
+	 */
+	public String expand(CharSequence... values) {
+		return expand(new StringBuilder(templateText.length() + 16), values).toString();
+	}
+
+	private void checkValueCount(CharSequence[] values) {
+		if (values.length != variableNames.length) {
+			throw new IllegalArgumentException("Template '" + templateText + "' has " + variableNames.length
+					+ " variables but " + values.length + " values were supplied");
+		}
+	}
+
+	private CharSequence valueFor(Map<String, ? extends CharSequence> values, int variableIndex) {
+		CharSequence value = values.get(variableNames[variableIndex]);
+		if (value == null) {
+			throw new IllegalArgumentException("No value supplied for variable '" + variableNames[variableIndex]
+					+ "' of template '" + templateText + "'");
+		}
+		return value;
+	}
+
+	private boolean isAllowed(char ch, boolean multiSegment) {
+		// RFC 3986 pchar, less any separator (unless the variable spans segments)
+		if (ch == separator) {
+			return multiSegment;
+		}
+		if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9')) {
+			return true;
+		}
+		switch (ch) {
+		case '-': case '.': case '_': case '~':
+		case '!': case '$': case '&': case '\'': case '(': case ')': case '*': case '+': case ',': case ';': case '=':
+		case ':': case '@':
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private void encode(CharSequence value, boolean multiSegment, StringBuilder output) {
+		for (int i = 0, max = value.length(); i < max; i++) {
+			char ch = value.charAt(i);
+			if (isAllowed(ch, multiSegment)) {
+				output.append(ch);
+			} else {
+				int codePoint = ch;
+				if (Character.isHighSurrogate(ch) && i + 1 < max && Character.isLowSurrogate(value.charAt(i + 1))) {
+					codePoint = Character.toCodePoint(ch, value.charAt(++i));
+				}
+				if (codePoint < 0x80) {
+					escape(codePoint, output);
+				} else if (codePoint < 0x800) {
+					escape(0xC0 | (codePoint >> 6), output);
+					escape(0x80 | (codePoint & 0x3F), output);
+				} else if (codePoint < 0x10000) {
+					escape(0xE0 | (codePoint >> 12), output);
+					escape(0x80 | ((codePoint >> 6) & 0x3F), output);
+					escape(0x80 | (codePoint & 0x3F), output);
+				} else {
+					escape(0xF0 | (codePoint >> 18), output);
+					escape(0x80 | ((codePoint >> 12) & 0x3F), output);
+					escape(0x80 | ((codePoint >> 6) & 0x3F), output);
+					escape(0x80 | (codePoint & 0x3F), output);
+				}
+			}
+		}
+	}
+
+	private void escape(int b, StringBuilder output) {
+		output.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+	}
+
+	private void encode(CharSequence value, boolean multiSegment, ByteBuffer output) {
+		for (int i = 0, max = value.length(); i < max; i++) {
+			char ch = value.charAt(i);
+			if (isAllowed(ch, multiSegment)) {
+				output.put((byte) ch);
+			} else {
+				int codePoint = ch;
+				if (Character.isHighSurrogate(ch) && i + 1 < max && Character.isLowSurrogate(value.charAt(i + 1))) {
+					codePoint = Character.toCodePoint(ch, value.charAt(++i));
+				}
+				if (codePoint < 0x80) {
+					escape(codePoint, output);
+				} else if (codePoint < 0x800) {
+					escape(0xC0 | (codePoint >> 6), output);
+					escape(0x80 | (codePoint & 0x3F), output);
+				} else if (codePoint < 0x10000) {
+					escape(0xE0 | (codePoint >> 12), output);
+					escape(0x80 | ((codePoint >> 6) & 0x3F), output);
+					escape(0x80 | (codePoint & 0x3F), output);
+				} else {
+					escape(0xF0 | (codePoint >> 18), output);
+					escape(0x80 | ((codePoint >> 12) & 0x3F), output);
+					escape(0x80 | ((codePoint >> 6) & 0x3F), output);
+					escape(0x80 | (codePoint & 0x3F), output);
+				}
+			}
+		}
+	}
+
+	private void escape(int b, ByteBuffer output) {
+		output.put((byte) '%').put((byte) HEX[(b >> 4) & 0xF]).put((byte) HEX[b & 0xF]);
+	}
+
+	public String toString() {
+		return "URITemplateExpander(" + templateText + ")";
+	}
+
+	/**
+	 * Accumulates the parts of a template as the {@link PathMatcher} walks its segment chain.
+	 */
+	static class Builder {
+
+		private final String templateText;
+
+		private final char separator;
+
+		private final StringBuilder pendingLiteral = new StringBuilder();
+
+		private final List<String> literals = new ArrayList<>();
+
+		private final List<Integer> variableIndexes = new ArrayList<>();
+
+		private final List<Boolean> multiSegment = new ArrayList<>();
+
+		private final List<String> variableNames = new ArrayList<>();
+
+		Builder(String templateText, char separator) {
+			this.templateText = templateText;
+			this.separator = separator;
+		}
+
+		Builder literal(CharSequence text) {
+			pendingLiteral.append(text);
+			return this;
+		}
+
+		Builder literal(char ch) {
+			pendingLiteral.append(ch);
+			return this;
+		}
+
+		Builder variable(String name, boolean spansSegments) {
+			flushLiteral();
+			int index = variableNames.indexOf(name);
+			if (index == -1) {
+				index = variableNames.size();
+				variableNames.add(name);
+			}
+			literals.add(null);
+			variableIndexes.add(index);
+			multiSegment.add(spansSegments);
+			return this;
+		}
+
+		private void flushLiteral() {
+			if (pendingLiteral.length() != 0) {
+				literals.add(pendingLiteral.toString());
+				variableIndexes.add(-1);
+				multiSegment.add(false);
+				pendingLiteral.setLength(0);
+			}
+		}
+
+		URITemplateExpander build() {
+			flushLiteral();
+			return new URITemplateExpander(templateText, separator, literals, variableIndexes, multiSegment, variableNames);
+		}
+
+	}
+
+}
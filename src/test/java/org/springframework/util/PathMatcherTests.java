@@ -15,14 +15,34 @@
  */
 package org.springframework.util;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.Test;
 import org.springframework.util.MatchResult;
@@ -168,36 +188,1213 @@ public class PathMatcherTests {
 		assertFalse(p.matches("/foo/boo"));
 	}
 
+	@Test
+	public void sharedPrefixesAreMerged() {
+		PathMatcher p = new PathMatcher();
+		URITemplate template = TestURITemplate.createFor("/foo/bar");
+		p.addURITemplate(template);
+		p.addURITemplate(template);
+		addTemplate(p, "/foo/baz");
+		addTemplate(p, "/foo/{id:[0-9]+}");
+		addTemplate(p, "/foo/{id}");
+		assertEquals(4, p.getPatterns().length);
+		assertMatchCount(2, p.findAllMatches("/foo/bar"));
+		assertMatchCount(2, p.findAllMatches("/foo/baz"));
+		assertMatchCount(2, p.findAllMatches("/foo/99"));
+	}
+
+	@Test
+	public void adaptiveOrdering() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/foo/b?r");
+		addTemplate(p, "/foo/bar");
+		assertEquals("/foo/bar", p.findFirstMatch("/foo/bar").get(0).getMatchingTemplate().getTemplateText());
+		p.enableAdaptiveOrdering(1, 10);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(p.matches("/foo/bzr"));
+		}
+		// The frequently hit template is now tried first
+		assertEquals("/foo/b?r", p.findFirstMatch("/foo/bar").get(0).getMatchingTemplate().getTemplateText());
+		assertMatchCount(2, p.findAllMatches("/foo/bar"));
+	}
+
+	@Test
+	public void adaptiveOrderingSamplesEveryWayOfMatching() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/foo/b?r");
+		addTemplate(p, "/foo/bar");
+		assertEquals(1, p.findFirstMatchId("/foo/bar"));
+		p.enableAdaptiveOrdering(1, 10);
+		int[] ids = new int[2];
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, p.findFirstMatchId("/foo/bzr"));
+			assertEquals(1, p.findAllMatchIds("/foo/bzr", ids));
+			assertEquals(1, p.findAllMatches("/foo/bzr", (template, id, captures) -> true));
+		}
+		assertEquals(9, p.getHitFrequencyProfile().estimate("/foo/b?r"));
+		// The tenth sample reorders the tree once the iteration is over
+		p.iterateMatches("/foo/bzr").forEachRemaining(result -> {});
+		assertEquals(0, p.findFirstMatchId("/foo/bar"));
+	}
+
+	@Test
+	public void capturesReachEveryMatchBelowThem() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/hotels/{hotel}");
+		addTemplate(p, "/{name}.a/**/ab/**");
+		assertEquals("1", p.findFirstMatch("/hotels/1").get(0).getCapturedVariables().get("hotel"));
+		// The ** lets the template match twice, both matches capture the name
+		List<MatchResult> results = p.findAllMatches("/q.a/c/ab/x/ab");
+		assertEquals(2, results.size());
+		assertEquals("q", results.get(0).getCapturedVariables().get("name"));
+		assertEquals("q", results.get(1).getCapturedVariables().get("name"));
+		assertEquals("q", p.findFirstMatch("/q.a/c/ab").get(0).getCapturedVariables().get("name"));
+	}
+
+	@Test
+	public void findFirstMatchTriesVariableLengthTemplates() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/foo/**");
+		addTemplate(p, "/foo/bar");
+		assertEquals("/foo/bar", p.findFirstMatch("/foo/bar").get(0).getMatchingTemplate().getTemplateText());
+		assertEquals("/foo/**", p.findFirstMatch("/foo/bar/baz").get(0).getMatchingTemplate().getTemplateText());
+		assertNull(p.findFirstMatch("/bar/baz"));
+	}
+
+	@Test
+	public void adaptiveOrderingProfilePersistence() throws Exception {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/foo/b?r");
+		addTemplate(p, "/foo/bar");
+		addTemplate(p, "/**/bar");
+		p.enableAdaptiveOrdering(1, 1000);
+		for (int i = 0; i < 5; i++) {
+			p.matches("/foo/bzr");
+		}
+		StringWriter profile = new StringWriter();
+		p.storeHitFrequencyProfile(profile);
+		assertEquals("5\t/foo/b?r\n", profile.toString());
+
+		PathMatcher restarted = new PathMatcher();
+		addTemplate(restarted, "/foo/b?r");
+		addTemplate(restarted, "/foo/bar");
+		restarted.loadHitFrequencyProfile(new StringReader(profile.toString()));
+		assertEquals("/foo/b?r", restarted.findFirstMatch("/foo/bar").get(0).getMatchingTemplate().getTemplateText());
+	}
+
+	@Test
+	public void hitFrequencyProfileRowsAreIndependent() {
+		// Equal String hash codes must not put two templates in the same counter of every row
+		assertEquals("/Aa".hashCode(), "/BB".hashCode());
+		HitFrequencyProfile profile = new HitFrequencyProfile(4, 1024);
+		profile.add("/Aa", 100);
+		assertEquals(100, profile.estimate("/Aa"));
+		assertEquals(0, profile.estimate("/BB"));
+	}
+
+	@Test
+	public void adaptiveOrderingConcurrentSampling() throws Exception {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/foo/b?r");
+		addTemplate(p, "/foo/bar");
+		p.enableAdaptiveOrdering(1, Integer.MAX_VALUE);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 10000; i++) {
+					assertTrue(p.matches("/foo/bzr"));
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		// No samples are lost to racing threads
+		assertEquals(40000, p.getHitFrequencyProfile().estimate("/foo/b?r"));
+	}
+
+	@Test
+	public void adaptiveOrderingOnExecutor() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/foo/b?r");
+		addTemplate(p, "/foo/bar");
+		List<Runnable> queued = new ArrayList<>();
+		p.enableAdaptiveOrdering(1, 10, queued::add);
+		for (int i = 0; i < 25; i++) {
+			assertTrue(p.matches("/foo/bzr"));
+		}
+		// Only one reorder is queued however many samples arrive before it runs
+		assertEquals(1, queued.size());
+		assertEquals("/foo/bar", p.findFirstMatch("/foo/bar").get(0).getMatchingTemplate().getTemplateText());
+		queued.get(0).run();
+		// Aged once by the reorder
+		assertEquals(12, p.getHitFrequencyProfile().estimate("/foo/b?r"));
+		assertEquals("/foo/b?r", p.findFirstMatch("/foo/bar").get(0).getMatchingTemplate().getTemplateText());
+	}
+
+	@Test
+	public void explain() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/foo/baz");
+		addTemplate(p, "/**/bar");
+		MatchExplanation explanation = p.explain("/a/b/bar");
+		assertEquals(1, explanation.getMatchResults().size());
+		assertEquals("/**/bar", explanation.getMatchResults().get(0).getMatchingTemplate().getTemplateText());
+		assertTrue(explanation.getNodeVisits() > 0);
+		assertTrue(explanation.getRejections() > 0);
+		assertTrue(explanation.getBacktracks() > 0);
+
+		explanation = p.explain("/foo/bar");
+		assertEquals(1, explanation.getMatchResults().size());
+		boolean textMismatch = false;
+		for (MatchExplanation.Event event : explanation.getEvents()) {
+			if (event.getDetail() == MatchListener.Rejection.TEXT_MISMATCH) {
+				textMismatch = true;
+			}
+		}
+		assertTrue(explanation.toString(), textMismatch);
+	}
+
+	@Test
+	public void matchListener() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/foo/{bar}");
+		List<String> found = new ArrayList<>();
+		p.setMatchListener(new MatchListener() {
+			@Override
+			public void matchFound(URITemplate template) {
+				found.add(template.getTemplateText());
+			}
+		});
+		assertTrue(p.matches("/foo/abc"));
+		p.setMatchListener(null);
+		assertTrue(p.matches("/foo/def"));
+		assertEquals(1, found.size());
+		assertEquals("/foo/{bar}", found.get(0));
+	}
+
+	@Test
+	public void multiTenant() {
+		List<URITemplate> base = new ArrayList<>();
+		base.add(TestURITemplate.createFor("/orders/{id}"));
+		base.add(TestURITemplate.createFor("/**/health"));
+		MultiTenantPathMatcher m = new MultiTenantPathMatcher(base);
+		m.addURITemplate("acme", TestURITemplate.createFor("/orders/export"));
+		m.addURITemplate("acme", TestURITemplate.createFor("/acme/**"));
+
+		assertEquals(1, m.getTenants().size());
+		assertEquals(2, m.getBasePatterns().length);
+		assertEquals(2, m.getTenantPatterns("acme").length);
+		assertEquals(0, m.getTenantPatterns("other").length);
+
+		List<MatchResult> results = m.findAllMatches("acme", "/orders/export");
+		assertMatchCount(2, results);
+		assertEquals("/orders/export", results.get(0).getMatchingTemplate().getTemplateText());
+		assertEquals("/orders/export", m.findFirstMatch("acme", "/orders/export").get(0).getMatchingTemplate().getTemplateText());
+		assertTrue(m.matches("acme", "/acme/a/b"));
+		assertTrue(m.matches("acme", "/a/b/health"));
+
+		// Other tenants only see the base templates
+		assertMatchCount(1, m.findAllMatches("other", "/orders/export"));
+		assertFalse(m.matches("other", "/acme/a/b"));
+		assertTrue(m.matches("other", "/a/b/health"));
+
+		m.removeTenant("acme");
+		assertFalse(m.matches("acme", "/acme/a/b"));
+
+		assertEquals("acme.example.com", MultiTenantPathMatcher.tenantForHost("ACME.example.com:8080"));
+		assertEquals("[::1]", MultiTenantPathMatcher.tenantForHost("[::1]:443"));
+	}
+
+	@Test
+	public void multiTenantDoubleStarFailuresAreKeptPerTree() {
+		MultiTenantPathMatcher m = new MultiTenantPathMatcher(
+				Collections.singletonList(TestURITemplate.createFor("/**/a/**/b")));
+		m.addURITemplate("acme", TestURITemplate.createFor("/**/a/**/z"));
+		// The overlay ** failing from a separator says nothing about the base ** there
+		List<MatchResult> results = m.findAllMatches("acme", "/a/b");
+		assertMatchCount(1, results);
+		assertEquals("/**/a/**/b", results.get(0).getMatchingTemplate().getTemplateText());
+		assertTrue(m.matches("acme", "/x/a/y/b"));
+	}
+
+	@Test
+	public void multiTenantConfiguredBase() {
+		PathMatcher base = new PathMatcher();
+		base.setEncodedPaths(true);
+		base.setNormalizations(PathMatcher.Normalization.COLLAPSE_SEPARATORS);
+		base.setTrailingSeparatorMatch(true);
+		base.setSuffixMatch(true);
+		MultiTenantPathMatcher m = new MultiTenantPathMatcher(
+				Collections.singletonList(TestURITemplate.createFor("/orders")), base);
+		m.addURITemplate("acme", TestURITemplate.createFor("/café/menu"));
+		// The overlay is configured as the base is
+		assertTrue(m.matches("acme", "/caf%C3%A9//menu/"));
+		assertTrue(m.matches("acme", "/caf%c3%a9/menu.json"));
+		assertTrue(m.matches("acme", "//orders.xml"));
+		assertFalse(m.matches("other", "/caf%C3%A9/menu"));
+	}
+
+	@Test
+	public void multiTenantRegistrationWhileMatching() throws Exception {
+		MultiTenantPathMatcher m = new MultiTenantPathMatcher(
+				Collections.singletonList(TestURITemplate.createFor("/orders/{id}")));
+		m.addURITemplate("acme", TestURITemplate.createFor("/acme/0"));
+		Thread[] matchers = new Thread[4];
+		List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+		for (int t = 0; t < matchers.length; t++) {
+			matchers[t] = new Thread(() -> {
+				try {
+					for (int i = 0; i < 20000; i++) {
+						assertTrue(m.matches("acme", "/acme/0"));
+						assertTrue(m.matches("acme", "/orders/" + i));
+					}
+				} catch (Throwable th) {
+					failures.add(th);
+				}
+			});
+			matchers[t].start();
+		}
+		for (int i = 1; i < 200; i++) {
+			m.addURITemplate("acme", TestURITemplate.createFor("/acme/" + i));
+		}
+		for (Thread thread : matchers) {
+			thread.join();
+		}
+		assertEquals(Collections.emptyList(), failures);
+		assertEquals(200, m.getTenantPatterns("acme").length);
+		assertTrue(m.matches("acme", "/acme/199"));
+	}
+
+	@Test
+	public void tags() {
+		long get = 1, post = 2, v1 = 4, v2 = 8;
+		PathMatcher p = new PathMatcher();
+		p.addURITemplate(TestURITemplate.createFor("/orders/{id}"), get | v1);
+		p.addURITemplate(TestURITemplate.createFor("/orders/{id}"), post | v1);
+		p.addURITemplate(TestURITemplate.createFor("/orders/{id}"), get | v2);
+		p.addURITemplate(TestURITemplate.createFor("/orders/**"), post | v2);
+		addTemplate(p, "/orders/list");
+
+		assertMatchCount(5, p.findAllMatches("/orders/list"));
+		// The untagged template is selected whatever is required
+		assertMatchCount(3, p.findAllMatches("/orders/list", get));
+		assertMatchCount(2, p.findAllMatches("/orders/list", get | v1));
+		assertMatchCount(2, p.findAllMatches("/orders/list", post | v2));
+		assertMatchCount(1, p.findAllMatches("/orders", post | v2));
+		assertMatchCount(0, p.findAllMatches("/orders", post | v1));
+		assertTrue(p.matches("/orders/99", post | v1));
+		assertFalse(p.matches("/orders/99", post | get));
+		assertMatchCount(1, p.findFirstMatch("/orders/99", get | v2));
+
+		// The whole subtree is skipped when no template below carries the tags
+		List<String> skipped = new ArrayList<>();
+		p.setMatchListener(new MatchListener() {
+			@Override
+			public void segmentRejected(String segment, int pathIndex, Rejection reason) {
+				if (reason == Rejection.TAG_MISMATCH) {
+					skipped.add(segment);
+				}
+			}
+		});
+		assertMatchCount(0, p.findAllMatches("/orders/99", 16));
+		assertEquals(2, skipped.size());
+	}
+
+	@Test
+	public void tagsOfEqualTemplatesAreKeptPerRegistration() {
+		long get = 1, post = 2, v1 = 4, v2 = 8;
+		PathMatcher p = new PathMatcher();
+		URITemplate template = TestURITemplate.createFor("/orders/{id}");
+		p.addURITemplate(template, get | v1);
+		p.addURITemplate(template, post | v2);
+		assertEquals(1, p.getTemplateCount());
+		// Both registrations merge into one leaf, which must not accept tags from each
+		assertMatchCount(0, p.findAllMatches("/orders/1", get | v2));
+		assertFalse(p.matches("/orders/1", post | v1));
+		assertMatchCount(1, p.findAllMatches("/orders/1", get | v1));
+		assertMatchCount(1, p.findAllMatches("/orders/1", post | v2));
+	}
+
+	@Test
+	public void removingARegistrationRemovesItsTags() {
+		long get = 1, post = 2;
+		PathMatcher p = new PathMatcher();
+		URITemplate template = TestURITemplate.createFor("/orders");
+		p.addURITemplate(template, get);
+		p.addURITemplate(template, post);
+		assertTrue(p.removeURITemplate(template));
+		assertTrue(p.matches("/orders", get));
+		assertFalse(p.matches("/orders", post));
+
+		p.addURITemplate(template, post);
+		assertFalse(p.removeURITemplate(template, get | post));
+		assertTrue(p.removeURITemplate(template, get));
+		assertFalse(p.matches("/orders", get));
+		assertTrue(p.matches("/orders", post));
+		assertEquals(1, p.getTemplateCount());
+
+		// The segments shared with the removed template stop carrying its tags
+		p = new PathMatcher();
+		p.addURITemplate(TestURITemplate.createFor("/orders/{id}/items"), get);
+		URITemplate lines = TestURITemplate.createFor("/orders/{id}/lines");
+		p.addURITemplate(lines, post);
+		assertTrue(p.removeURITemplate(lines));
+		List<String> skipped = new ArrayList<>();
+		p.setMatchListener(new MatchListener() {
+			@Override
+			public void segmentRejected(String segment, int pathIndex, Rejection reason) {
+				if (reason == Rejection.TAG_MISMATCH) {
+					skipped.add(segment);
+				}
+			}
+		});
+		assertMatchCount(0, p.findAllMatches("/orders/1/items", post));
+		assertEquals(1, skipped.size());
+	}
+
+	@Test
+	public void regexSegmentsSharingAMatcherSlot() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/{p}-*.x");
+		for (int i = 0; i < 62; i++) {
+			addTemplate(p, "/f" + i + "/{id:[0-9]+}");
+		}
+		// The repeated parent and the child are the 64th and 65th regex segments, so the
+		// child takes the slot of the parent it is merged below
+		addTemplate(p, "/{p}-*.x/{q}-*.y");
+		List<MatchResult> results = p.findAllMatches("/a-b.x/c-d.y");
+		assertMatchCount(1, results);
+		assertEquals("a", results.get(0).getValue("p"));
+		assertEquals("c", results.get(0).getValue("q"));
+		assertEquals("a", p.findAllMatches("/a-b.x").get(0).getValue("p"));
+		assertEquals("7", p.findAllMatches("/f61/7").get(0).getValue("id"));
+		assertMatchCount(0, p.findAllMatches("/f61/x"));
+	}
+
+	@Test
+	public void expanders() {
+		PathMatcher p = new PathMatcher();
+		URITemplate template = TestURITemplate.createFor("/customer/{id:[0-9]+}/order/{orderId}");
+		URITemplateExpander e = p.getExpander(template);
+		assertTrue(e == p.getExpander(template));
+		assertEquals("/customer/42/order/a%2Fb%20c", e.expand("42", "a/b c"));
+		Map<String, String> values = new HashMap<>();
+		values.put("id", "42");
+		values.put("orderId", "\u00e9\u20ac");
+		assertEquals("/customer/42/order/%C3%A9%E2%82%AC", e.expand(new StringBuilder(), values).toString());
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		e.expand(buffer, "1", "2");
+		assertEquals("/customer/1/order/2", new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+
+		// Literal text is used as written, even by a case insensitive matcher
+		p = new PathMatcher('/', false, false);
+		assertEquals("/Files/a/b%3Fc", p.getExpander(TestURITemplate.createFor("/Files/{*path}")).expand("a/b?c"));
+		e = p.getExpander(TestURITemplate.createFor("/{name}.{ext}/{name}"));
+		assertEquals(2, e.getVariableNames().length);
+		assertEquals("/report.pdf/report", e.expand("report", "pdf"));
+		checkCapture("/{name}.{ext}", "/report.pdf", "name", "report", "ext", "pdf");
+
+		try {
+			p.getExpander(TestURITemplate.createFor("/foo/**/bar"));
+			fail();
+		} catch (IllegalArgumentException iae) {
+		}
+		try {
+			e.expand("report");
+			fail();
+		} catch (IllegalArgumentException iae) {
+		}
+	}
+
+	@Test
+	public void lazyMatching() {
+		PathMatcher p = new PathMatcher();
+		String[] templates = { "/foo/bar", "/foo/b?r", "/foo/{id}", "/foo/{id:[a-z]+}", "/f*/bar", "/{a}.{b}/bar",
+				"/**/bar", "/foo/**", "/**", "/foo/{*rest}", "/{one}/**/{two}", "/**/b*", "/foo/bar/baz" };
+		for (String template : templates) {
+			addTemplate(p, template);
+		}
+		String[] paths = { "/foo/bar", "/foo/baz", "/a.b/bar", "/foo/bar/baz", "/x/y/z/bar", "/foo", "/", "/nothing/here" };
+		for (String path : paths) {
+			List<MatchResult> expected = p.findAllMatches(path);
+			List<MatchResult> actual = p.streamMatches(path).collect(Collectors.toList());
+			assertEquals(path, expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(path, expected.get(i).getMatchingTemplate(), actual.get(i).getMatchingTemplate());
+			}
+		}
+		MatchResult first = p.iterateMatches("/foo/bar").next();
+		assertEquals(p.findAllMatches("/foo/bar").get(0).getMatchingTemplate(), first.getMatchingTemplate());
+		assertEquals("bar", p.streamMatches("/foo/bar").filter(r -> r.getValue("id") != null).findFirst().get().getValue("id"));
+		assertEquals("bar/baz", p.streamMatches("/foo/bar/baz").filter(r -> r.getValue("rest") != null).findFirst().get().getValue("rest"));
+
+		// Stopping early means less of the tree is visited
+		int[] visits = new int[1];
+		p.setMatchListener(new MatchListener() {
+			@Override
+			public void segmentVisited(String segment, int pathIndex) {
+				visits[0]++;
+			}
+		});
+		p.streamMatches("/foo/bar").count();
+		int allVisits = visits[0];
+		visits[0] = 0;
+		assertTrue(p.streamMatches("/foo/bar").limit(2).count() == 2);
+		assertTrue(visits[0] < allVisits);
+	}
+
+	@Test
+	public void visitor() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/customer/{id}/orders/{orderId}");
+		addTemplate(p, "/customer/**");
+		addTemplate(p, "/customer/{*rest}");
+		addTemplate(p, "/customer/{id}/orders/{orderId}");
+		List<String> visited = new ArrayList<>();
+		int count = p.findAllMatches("/customer/42/orders/7", (template, templateId, captures) -> {
+			visited.add(templateId + ":" + template.getTemplateText() + " " + captures.getValue("id") + " " + captures.getValue("rest"));
+			return true;
+		});
+		assertEquals(4, count);
+		assertEquals(p.findAllMatches("/customer/42/orders/7").size(), visited.size());
+		assertTrue(visited.contains("0:/customer/{id}/orders/{orderId} 42 null"));
+		assertTrue(visited.contains("1:/customer/** null null"));
+		assertTrue(visited.contains("2:/customer/{*rest} null 42/orders/7"));
+		assertTrue(visited.contains("3:/customer/{id}/orders/{orderId} 42 null"));
+
+		// Stop after the first match, and match another path from inside the callback
+		count = p.findAllMatches("/customer/42/orders/7", (template, templateId, captures) -> {
+			assertEquals(2, p.findAllMatches("/customer/1", (t, i, c) -> true));
+			return false;
+		});
+		assertEquals(1, count);
+	}
+
+	@Test
+	public void templateIds() {
+		PathMatcher p = new PathMatcher();
+		URITemplate orders = TestURITemplate.createFor("/customer/{id}/orders");
+		URITemplate any = TestURITemplate.createFor("/customer/**");
+		URITemplate list = TestURITemplate.createFor("/customer/list");
+		p.addURITemplate(orders);
+		p.addURITemplate(any);
+		p.addURITemplate(list);
+		p.addURITemplate(orders);
+		assertEquals(3, p.getTemplateCount());
+		assertEquals(0, p.getTemplateId(orders));
+		assertEquals(2, p.getTemplateId(list));
+		assertEquals(-1, p.getTemplateId(TestURITemplate.createFor("/other")));
+		assertTrue(any == p.getTemplate(1));
+
+		int[] ids = new int[4];
+		assertEquals(2, p.findAllMatchIds("/customer/99/orders", ids));
+		assertEquals(0, ids[0]);
+		assertEquals(1, ids[1]);
+		assertEquals(0, p.findFirstMatchId("/customer/99/orders"));
+		assertEquals(-1, p.findFirstMatchId("/supplier/99/orders"));
+		// A buffer that is too small still reports how many there were
+		assertEquals(2, p.findAllMatchIds("/customer/list", new int[1]));
+
+		BitSet bits = new BitSet(p.getTemplateCount());
+		assertEquals(2, p.findAllMatchIds("/customer/list", bits));
+		assertEquals("{1, 2}", bits.toString());
+	}
+
+	@Test
+	public void accessLogAnalyzer() throws Exception {
+		PathMatcher p = new PathMatcher();
+		URITemplate orders = TestURITemplate.createFor("/customer/{id}/orders");
+		URITemplate any = TestURITemplate.createFor("/customer/**");
+		p.addURITemplate(orders);
+		p.addURITemplate(any);
+		StringBuilder log = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			log.append("127.0.0.1 - - [10/Oct/2016:13:55:36 +0000] \"GET /customer/" + i + "/orders?page=2 HTTP/1.1\" 200 2326\n");
+			log.append("127.0.0.1 - - [10/Oct/2016:13:55:37 +0000] \"POST /customer/" + i + " HTTP/1.1\" 201 12\r\n");
+			log.append("127.0.0.1 - - [10/Oct/2016:13:55:38 +0000] \"GET /supplier/" + (i % 3) + " HTTP/1.1\" 404 0\n");
+		}
+		log.append("not a request line");
+		Path file = Files.createTempFile("access", ".log");
+		try {
+			Files.write(file, log.toString().getBytes(StandardCharsets.UTF_8));
+			// A small chunk size so that the log is split across many tasks
+			AccessLogAnalyzer analyzer = new AccessLogAnalyzer(p, 4, 1000, 10);
+			AccessLogAnalyzer.Report report = analyzer.analyze(Collections.singletonList(file));
+			assertEquals(300, report.getLineCount());
+			assertEquals(100, report.getHits(orders));
+			assertEquals(200, report.getHits(any));
+			assertEquals(100, report.getUnmatchedLineCount());
+			assertEquals(3, report.getUnmatched().size());
+			assertEquals(34L, (long) report.getUnmatched().get("/supplier/0"));
+			// The limit also holds once the paths recorded by each chunk are put together
+			report = new AccessLogAnalyzer(p, 4, 1000, 2).analyze(Collections.singletonList(file));
+			assertEquals(100, report.getUnmatchedLineCount());
+			assertEquals(2, report.getUnmatched().size());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void fileTreeScanner() throws Exception {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/src/main/**/*.java");
+		addTemplate(p, "/docs/*.md");
+		addTemplate(p, "/{name}.txt");
+		Path root = Files.createTempDirectory("scan");
+		List<Path> created = new ArrayList<>();
+		try {
+			for (String file : new String[] { "src/main/java/a/A.java", "src/main/java/B.java", "src/main/java/C.txt",
+					"src/main/resources/x.java.bak", "src/test/java/T.java", "docs/readme.md", "docs/sub/deep.md",
+					"notes.txt", "build/classes/A.java" }) {
+				Path path = root.resolve(file);
+				for (Path dir = path.getParent(); !dir.equals(root) && !Files.exists(dir); dir = dir.getParent()) {
+					created.add(dir);
+				}
+				Files.createDirectories(path.getParent());
+				created.add(Files.createFile(path));
+			}
+			List<Path> expected = new ArrayList<>();
+			for (String file : new String[] { "docs/readme.md", "notes.txt", "src/main/java/B.java", "src/main/java/a/A.java" }) {
+				expected.add(root.resolve(file));
+			}
+			FileTreeScanner scanner = new FileTreeScanner(p);
+			assertEquals(expected, scanner.scan(root));
+			try (Stream<Path> files = scanner.stream(root)) {
+				assertEquals(expected, files.sorted().collect(Collectors.toList()));
+			}
+			try (Stream<Path> files = new FileTreeScanner(p).stream(root.resolve("missing"))) {
+				files.count();
+				fail("Expected the missing directory to be reported");
+			} catch (UncheckedIOException e) {
+				// expected
+			}
+		} finally {
+			Collections.sort(created, Collections.reverseOrder());
+			for (Path path : created) {
+				Files.deleteIfExists(path);
+			}
+			Files.delete(root);
+		}
+	}
+
+	@Test
+	public void jarEntryScanner() throws Exception {
+		PathMatcher p = new PathMatcher('.');
+		addTemplate(p, "com.acme.**.*Controller");
+		addTemplate(p, "com.acme.web.{name}");
+		Path first = createJar("com/acme/", "com/acme/web/FooController.class", "com/acme/web/Foo.class",
+				"com/acme/FooController.class", "org/acme/BarController.class", "META-INF/MANIFEST.MF",
+				"com/acme/web/Café.class", "com/acme/web/Foo.class.txt");
+		Path second = createJar("com/acme/api/v1/UserController.class", "com/acme/api/v1/User.class");
+		Path notAJar = Files.createTempFile("scan", ".jar");
+		try {
+			JarEntryScanner scanner = new JarEntryScanner(p, 2);
+			assertEquals("[com.acme.FooController, com.acme.api.v1.UserController, com.acme.web.Café, "
+					+ "com.acme.web.Foo, com.acme.web.FooController]", scanner.scan(Arrays.asList(first, second)).toString());
+			List<String> matches = Collections.synchronizedList(new ArrayList<>());
+			scanner.scan(Collections.singletonList(first), (jar, className, templateId) -> {
+				assertEquals(first, jar);
+				matches.add(className + " " + p.getTemplate(templateId).getTemplateText());
+			});
+			Collections.sort(matches);
+			assertEquals("[com.acme.FooController com.acme.**.*Controller, com.acme.web.Café com.acme.web.{name}, "
+					+ "com.acme.web.Foo com.acme.web.{name}, com.acme.web.FooController com.acme.**.*Controller, "
+					+ "com.acme.web.FooController com.acme.web.{name}]", matches.toString());
+			Files.write(notAJar, "not a jar".getBytes(StandardCharsets.UTF_8));
+			try {
+				scanner.scan(Collections.singletonList(notAJar));
+				fail("Expected a file without a central directory to be rejected");
+			} catch (IOException e) {
+				// expected
+			}
+		} finally {
+			Files.delete(first);
+			Files.delete(second);
+			Files.delete(notAJar);
+		}
+	}
+
+	private Path createJar(String... entries) throws IOException {
+		Path jar = Files.createTempFile("scan", ".jar");
+		try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+			for (String entry : entries) {
+				out.putNextEntry(new JarEntry(entry));
+				out.write(entry.getBytes(StandardCharsets.UTF_8));
+				out.closeEntry();
+			}
+		}
+		return jar;
+	}
+
+	@Test
+	public void removeURITemplate() {
+		PathMatcher p = new PathMatcher();
+		URITemplate ab = new TestURITemplate("/a/b");
+		URITemplate ac = new TestURITemplate("/a/c");
+		URITemplate any = new TestURITemplate("/a/**");
+		p.addURITemplate(ab);
+		p.addURITemplate(ac);
+		p.addURITemplate(ab);
+		p.addURITemplate(any);
+		assertFalse(p.removeURITemplate(new TestURITemplate("/a/b")));
+		assertTrue(p.removeURITemplate(ab));
+		assertEquals(2, p.findAllMatches("/a/b").size());
+		assertTrue(p.removeURITemplate(ab));
+		assertEquals(1, p.findAllMatches("/a/b").size());
+		assertEquals(2, p.findAllMatches("/a/c").size());
+		assertFalse(p.removeURITemplate(ab));
+		assertTrue(p.removeURITemplate(any));
+		assertEquals(0, p.findAllMatches("/a/b").size());
+		assertEquals("/a/c", p.findAllMatches("/a/c").get(0).getMatchingTemplate().getTemplateText());
+		// Ids of removed templates are reused, lowest first
+		assertEquals(2, p.getTemplateCount());
+		assertNull(p.getTemplate(0));
+		p.addURITemplate(ab);
+		assertEquals(0, p.getTemplateId(ab));
+		assertEquals("/a/b", p.findAllMatches("/a/b").get(0).getMatchingTemplate().getTemplateText());
+		// Wide enough for the children to be indexed
+		List<URITemplate> many = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			URITemplate t = new TestURITemplate("/m/" + i + "/x");
+			many.add(t);
+			p.addURITemplate(t);
+		}
+		for (int i = 0; i < 20; i += 2) {
+			assertTrue(p.removeURITemplate(many.get(i)));
+		}
+		for (int i = 0; i < 20; i++) {
+			assertEquals(i % 2, p.findAllMatches("/m/" + i + "/x").size());
+		}
+	}
+
+	@Test
+	public void subscriptionIndex() {
+		SubscriptionIndex index = new SubscriptionIndex();
+		assertTrue(index.subscribe("orders.*.created", 1));
+		assertTrue(index.subscribe("orders.*.created", 3));
+		assertFalse(index.subscribe("orders.*.created", 1));
+		assertTrue(index.subscribe("orders.eu.**", 2));
+		assertTrue(index.subscribe("orders.eu.**", 3));
+		assertTrue(index.subscribe("orders.eu.created", 4));
+		assertEquals(3, index.getPatternCount());
+		int[] into = new int[8];
+		assertEquals(4, index.publish("orders.eu.created", into));
+		assertEquals("[1, 2, 3, 4]", sorted(into, 4));
+		assertEquals(2, index.publish("orders.us.created", into));
+		assertEquals("[1, 3]", sorted(into, 2));
+		assertEquals(0, index.publish("payments.eu.created", into));
+		int[] small = new int[2];
+		assertEquals(4, index.publish("orders.eu.created", small));
+		assertFalse(index.unsubscribe("orders.eu.**", 1));
+		assertFalse(index.unsubscribe("orders.us.**", 1));
+		assertTrue(index.unsubscribe("orders.eu.created", 4));
+		assertEquals(2, index.getPatternCount());
+		assertEquals(3, index.publish("orders.eu.created", into));
+		assertEquals("[1, 2, 3]", sorted(into, 3));
+		assertTrue(index.unsubscribe("orders.*.created", 1));
+		assertTrue(index.unsubscribe("orders.*.created", 3));
+		assertEquals(2, index.publish("orders.eu.created", into));
+		assertEquals("[2, 3]", sorted(into, 2));
+		assertTrue(index.subscribe("orders.*.created", 5));
+		assertEquals(3, index.publish("orders.eu.created", into));
+		assertEquals("[2, 3, 5]", sorted(into, 3));
+		// Enough subscribers that the set of those already written has to grow
+		SubscriptionIndex busy = new SubscriptionIndex('/');
+		for (int s = 0; s < 200; s++) {
+			busy.subscribe("a/*", s);
+			busy.subscribe("a/b", s + 100);
+		}
+		int[] all = new int[300];
+		assertEquals(300, busy.publish("a/b", all));
+		assertEquals(300, Arrays.stream(all).distinct().count());
+	}
+
+	@Test
+	public void subscriptionIndexChurn() {
+		SubscriptionIndex index = new SubscriptionIndex();
+		// Patterns come and go with a few live at any time, their ids are reused
+		for (int i = 0; i < 100_000; i++) {
+			assertTrue(index.subscribe("orders." + i + ".*", i));
+			if (i >= 4) {
+				assertTrue(index.unsubscribe("orders." + (i - 4) + ".*", i - 4));
+			}
+		}
+		assertEquals(4, index.getPatternCount());
+		assertTrue(index.matcher.getTemplateCount() <= 5);
+		assertEquals(64, index.subscribers.length);
+		int[] into = new int[4];
+		assertEquals(1, index.publish("orders.99999.created", into));
+		assertEquals(99999, into[0]);
+		assertEquals(0, index.publish("orders.99995.created", into));
+		for (int i = 99996; i < 100_000; i++) {
+			assertTrue(index.unsubscribe("orders." + i + ".*", i));
+		}
+		assertEquals(0, index.matcher.getTemplateCount());
+	}
+
+	@Test
+	public void subscriptionIndexChurnWithDoubleStars() {
+		SubscriptionIndex index = new SubscriptionIndex();
+		assertTrue(index.subscribe("orders.**", -1));
+		for (int i = 0; i < 100_000; i++) {
+			assertTrue(index.subscribe("orders." + i + ".**", i));
+			if (i >= 4) {
+				assertTrue(index.unsubscribe("orders." + (i - 4) + ".**", i - 4));
+			}
+		}
+		assertEquals(5, index.getPatternCount());
+		assertTrue(index.matcher.getTemplateCount() <= 6);
+		// They all share the orders element
+		assertEquals(1, index.matcher.variableRoots.length);
+		int[] into = new int[4];
+		assertEquals(2, index.publish("orders.99999.created.today", into));
+		assertEquals("[-1, 99999]", sorted(into, 2));
+		assertEquals(2, index.publish("orders.99996", into));
+		assertEquals("[-1, 99996]", sorted(into, 2));
+		assertEquals(1, index.publish("orders.99995.created", into));
+		assertEquals(-1, into[0]);
+		assertEquals(0, index.publish("invoices.99999.created", into));
+		for (int i = 99996; i < 100_000; i++) {
+			assertTrue(index.unsubscribe("orders." + i + ".**", i));
+		}
+		assertTrue(index.unsubscribe("orders.**", -1));
+		assertEquals(0, index.matcher.getTemplateCount());
+		assertEquals(0, index.matcher.variableRoots.length);
+	}
+
+	private String sorted(int[] ids, int count) {
+		int[] copy = Arrays.copyOf(ids, count);
+		Arrays.sort(copy);
+		return Arrays.toString(copy);
+	}
+
+	@Test
+	public void doubleStarIsAWholeElement() {
+		checkMatches("/a/**", "/a");
+		checkMatches("/a/**/b", "/a/b");
+		checkNoMatch("/a/**", "/abc");
+		checkNoMatch("/a/**/b", "/abc/x/b");
+		checkNoMatch("/foo*/a/**", "/foobar/a-b/a/b");
+	}
+
+	@Test
+	public void repeatedDoubleStarsDoNotBacktrackExponentially() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/**/a/**/b/**/c/**/d");
+		StringBuilder path = new StringBuilder();
+		for (int i = 0; i < 60; i++) {
+			path.append('/').append("abc".charAt(i % 3));
+		}
+		int[] backtracks = new int[1];
+		p.setMatchListener(new MatchListener() {
+			@Override
+			public void backtracked(String segment, int fromPathIndex, int toPathIndex) {
+				backtracks[0]++;
+			}
+		});
+		assertFalse(p.matches(path.toString()));
+		// Each ** retries from each separator at most once, without remembering failures it is millions
+		assertTrue(Integer.toString(backtracks[0]), backtracks[0] < 4 * 61 * 61);
+		backtracks[0] = 0;
+		assertEquals(0, p.findAllMatchIds(path.toString(), new int[1]));
+		assertTrue(Integer.toString(backtracks[0]), backtracks[0] < 4 * 61 * 61);
+		p.setMatchListener(null);
+
+		assertTrue(p.matches(path + "/d"));
+		assertEquals(1, p.findAllMatchIds(path + "/x/d", new int[1]));
+		assertFalse(p.matches(path + "/d/x"));
+	}
+
+	@Test
+	public void encodedPaths() {
+		PathMatcher p = new PathMatcher();
+		p.setEncodedPaths(true);
+		addTemplate(p, "/files/{name}");
+		addTemplate(p, "/café/{id}");
+		addTemplate(p, "/a b/{*rest}");
+
+		// An encoded separator does not split the path and is decoded when the value is read
+		List<MatchResult> results = p.findAllMatches("/files/a%2Fb");
+		assertMatchCount(1, results);
+		assertEquals("a/b", results.get(0).getValue("name"));
+		assertFalse(p.matches("/files/a/b"));
+
+		// Literals are compared in a canonical encoding
+		assertTrue(p.matches("/caf%C3%A9/1"));
+		assertTrue(p.matches("/caf%c3%a9/1"));
+		assertTrue(p.matches("/%63af%C3%A9/1"));
+		assertFalse(p.matches("/caf%C3%A8/1"));
+		assertEquals("ü", p.findAllMatches("/caf%C3%A9/%c3%bc").get(0).getValue("id"));
+
+		results = p.findAllMatches("/a%20b/x%2Fy/%7Bz%7D");
+		assertMatchCount(1, results);
+		String rest = results.get(0).getValue("rest");
+		assertTrue(rest, rest.endsWith("x/y/{z}"));
+		List<String> visited = new ArrayList<>();
+		p.findAllMatches("/a%20b/x%2Fy/%7Bz%7D", (template, id, captures) -> {
+			visited.add(captures.getDecodedValue("rest"));
+			return true;
+		});
+		assertEquals(rest, visited.get(0));
+
+		try {
+			p.setEncodedPaths(false);
+			fail();
+		} catch (IllegalStateException ise) {
+		}
+
+		p = new PathMatcher(PathMatcher.DEFAULT_PATH_SEPARATOR, false, false);
+		p.setEncodedPaths(true);
+		addTemplate(p, "/Café/{Id}");
+		results = p.findAllMatches("/CAF%c3%a9/%41%2fB");
+		assertMatchCount(1, results);
+		assertEquals("A/B", results.get(0).getValue("Id"));
+	}
+
+	@Test
+	public void normalization() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/orders/{id}");
+		addTemplate(p, "/files/{*path}");
+		assertFalse(p.matches("/orders//42"));
+		p.setNormalizations(PathMatcher.Normalization.values());
+		assertTrue(p.matches("/orders//42"));
+		assertTrue(p.matches("//orders/42"));
+		assertTrue(p.matches("/x/../orders/42"));
+		assertTrue(p.matches("/../orders/./42"));
+		assertTrue(p.matches("/orders;jsessionid=abc/42;v=1"));
+		assertTrue(p.matches("/orders/42?q=/a/b"));
+		assertFalse(p.matches("/orders/42/43/.."));
+		assertFalse(p.matches("/orders/x/../"));
+		assertTrue(p.matches("/orders/x/../42"));
+
+		List<MatchResult> results = p.findAllMatches("//x/..//orders;a=b/./42;c=d?q=/../");
+		assertMatchCount(1, results);
+		assertEquals("42", results.get(0).getValue("id"));
+		assertEquals("a/b", p.findAllMatches("/files//a/./b?x").get(0).getValue("path"));
+
+		// Visitors can find the captures in the path as given
+		String path = "/orders//42;x=1?y";
+		List<String> original = new ArrayList<>();
+		p.findAllMatches(path, (template, id, captures) -> {
+			assertEquals("42", captures.getValue("id"));
+			original.add(path.substring(captures.getOriginalStart(0), captures.getOriginalEnd(0)));
+			return true;
+		});
+		assertEquals("[42]", original.toString());
+
+		p = new PathMatcher(PathMatcher.DEFAULT_PATH_SEPARATOR, false, false);
+		p.setNormalizations(PathMatcher.Normalization.COLLAPSE_SEPARATORS);
+		addTemplate(p, "/Orders/{id}");
+		results = p.findAllMatches("//ORDERS//AbC");
+		assertMatchCount(1, results);
+		assertEquals("AbC", results.get(0).getValue("id"));
+		assertFalse(p.matches("/orders/./AbC"));
+	}
+
+	@Test
+	public void originalOffsetsOfEncodedPaths() {
+		PathMatcher p = new PathMatcher();
+		p.setEncodedPaths(true);
+		p.setNormalizations(PathMatcher.Normalization.COLLAPSE_SEPARATORS);
+		addTemplate(p, "/a/{id}");
+		assertEquals("[xyz]", originalCaptures(p, "/%61//xyz").toString());
+		// A decoded character at the end of a capture ends after its encoding
+		assertEquals("[x%79%2f]", originalCaptures(p, "/%61//x%79%2f").toString());
+
+		p = new PathMatcher();
+		p.setEncodedPaths(true);
+		addTemplate(p, "/a/{id}");
+		assertEquals("[%7a%2F]", originalCaptures(p, "/%61/%7a%2F").toString());
+	}
+
+	@Test
+	public void originalOffsetsOfTrimmedPaths() {
+		PathMatcher p = new PathMatcher(PathMatcher.DEFAULT_PATH_SEPARATOR, true, false);
+		addTemplate(p, "/orders/{id}/items");
+		assertEquals("[AbC]", originalCaptures(p, " / Orders /  AbC / items ").toString());
+
+		// Trimming follows decoding and normalizing, and moves the characters again
+		p = new PathMatcher(PathMatcher.DEFAULT_PATH_SEPARATOR, true, true);
+		p.setEncodedPaths(true);
+		p.setNormalizations(PathMatcher.Normalization.RESOLVE_DOT_SEGMENTS);
+		addTemplate(p, "/orders/{id}/items");
+		String path = " /x/../ orders /%61b%63 / items ";
+		assertEquals("[%61b%63]", originalCaptures(p, path).toString());
+		assertEquals("abc", p.findAllMatches(path).get(0).getValue("id"));
+	}
+
+	private List<String> originalCaptures(PathMatcher p, String path) {
+		List<String> original = new ArrayList<>();
+		p.findAllMatches(path, (template, id, captures) -> {
+			original.add(path.substring(captures.getOriginalStart(0), captures.getOriginalEnd(0)));
+			return true;
+		});
+		return original;
+	}
+
+	@Test
+	public void trailingSeparatorAndSuffixMatch() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/orders");
+		addTemplate(p, "/orders/{id}");
+		addTemplate(p, "/files/*.txt");
+		assertFalse(p.matches("/orders/"));
+		assertFalse(p.matches("/orders.json"));
+		String[] patterns = p.getPatterns();
+
+		p.setTrailingSeparatorMatch(true);
+		assertTrue(p.matches("/orders/"));
+		assertTrue(p.matches("/orders/42/"));
+		assertFalse(p.matches("/orders//"));
+		assertFalse(p.matches("/"));
+		assertEquals("42", p.findAllMatches("/orders/42/").get(0).getValue("id"));
+		assertEquals("/orders", p.findFirstMatch("/orders/").get(0).getMatchingTemplate().getTemplateText());
+		assertEquals(1, p.findAllMatchIds("/orders/", new int[4]));
+		assertFalse(p.matches("/orders.json"));
+
+		p.setSuffixMatch(true);
+		assertTrue(p.matches("/orders.json"));
+		assertTrue(p.matches("/orders.json/"));
+		assertFalse(p.matches("/orders."));
+		assertFalse(p.matches("/orders.json/42"));
+		List<MatchResult> results = p.findAllMatches("/orders.xml");
+		assertMatchCount(1, results);
+		assertEquals("xml", results.get(0).getValue(PathMatcher.EXTENSION_VARIABLE));
+		// Captures keep any dots, only templates ending with literal text take an extension
+		assertEquals("42.json", p.findAllMatches("/orders/42.json").get(0).getValue("id"));
+		assertFalse(p.matches("/files/a.txt.gz"));
+		List<String> extensions = new ArrayList<>();
+		p.findAllMatches("/orders.csv", (template, id, captures) -> {
+			extensions.add(captures.getValue(PathMatcher.EXTENSION_VARIABLE));
+			return true;
+		});
+		assertEquals("[csv]", extensions.toString());
+		// Nothing extra was registered for either option
+		assertArrayEquals(patterns, p.getPatterns());
+	}
+
+	@Test
+	public void longestPrefixMatch() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/admin");
+		addTemplate(p, "/admin/reports");
+		addTemplate(p, "/api");
+		addTemplate(p, "/api/{version}/");
+		addTemplate(p, "/files/**");
+		PrefixMatch match = new PrefixMatch();
+		checkLongestPrefix(p, match, "/admin/reports/2016/03", "/admin/reports", 14);
+		checkLongestPrefix(p, match, "/admin/users", "/admin", 6);
+		checkLongestPrefix(p, match, "/admin", "/admin", 6);
+		checkLongestPrefix(p, match, "/api/v2/orders", "/api/{version}/", 8);
+		checkLongestPrefix(p, match, "/api/v2", "/api", 4);
+		assertEquals(p.getTemplateId(match.getTemplate()), match.getTemplateId());
+		assertFalse(p.findLongestPrefixMatch("/administrator", match));
+		assertFalse(match.isMatched());
+		assertEquals(-1, match.getRemainingPathOffset());
+		// Only fixed length templates are mounts
+		assertFalse(p.findLongestPrefixMatch("/files/a", match));
+
+		// The offset is in the path as given
+		p.setNormalizations(PathMatcher.Normalization.COLLAPSE_SEPARATORS);
+		checkLongestPrefix(p, match, "//admin//reports//x", "/admin/reports", 16);
+	}
+
+	@Test
+	public void incrementalMatcher() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/orders");
+		addTemplate(p, "/orders/{id:[0-9]+}/items");
+		addTemplate(p, "/files/**");
+		addTemplate(p, "/static/{*path}");
+		addTemplate(p, "/a/**/b");
+		addTemplate(p, "/x?z/*.json");
+		addTemplate(p, "/dir/");
+		PathMatcher.IncrementalMatcher m = p.newIncrementalMatcher();
+		assertEquals(PathMatcher.Progress.PARTIAL_MATCH, m.getProgress());
+		checkFeed(m, "orders", PathMatcher.Progress.COMPLETE_MATCH);
+		checkFeed(m, "42", PathMatcher.Progress.PARTIAL_MATCH);
+		checkFeed(m, "items", PathMatcher.Progress.COMPLETE_MATCH);
+		int[] ids = new int[4];
+		assertEquals(1, m.getMatchIds(ids));
+		assertEquals("/orders/{id:[0-9]+}/items", p.getTemplate(ids[0]).getTemplateText());
+		checkFeed(m, "more", PathMatcher.Progress.NO_MATCH);
+		checkFeed(m, "items", PathMatcher.Progress.NO_MATCH);
+
+		m.reset();
+		checkFeed(m, "orders", PathMatcher.Progress.COMPLETE_MATCH);
+		checkFeed(m, "abc", PathMatcher.Progress.NO_MATCH);
+
+		m.reset();
+		checkFeed(m, "files", PathMatcher.Progress.COMPLETE_MATCH);
+		checkFeed(m, "x", PathMatcher.Progress.COMPLETE_MATCH);
+		checkFeed(m, "y", PathMatcher.Progress.COMPLETE_MATCH);
+
+		m.reset();
+		checkFeed(m, "static", PathMatcher.Progress.PARTIAL_MATCH);
+		checkFeed(m, "css", PathMatcher.Progress.COMPLETE_MATCH);
+		checkFeed(m, "site.css", PathMatcher.Progress.COMPLETE_MATCH);
+
+		m.reset();
+		checkFeed(m, "a", PathMatcher.Progress.PARTIAL_MATCH);
+		checkFeed(m, "b", PathMatcher.Progress.COMPLETE_MATCH);
+		checkFeed(m, "b", PathMatcher.Progress.COMPLETE_MATCH);
+		checkFeed(m, "c", PathMatcher.Progress.PARTIAL_MATCH);
+		checkFeed(m, "b", PathMatcher.Progress.COMPLETE_MATCH);
+
+		m.reset();
+		checkFeed(m, "xyz", PathMatcher.Progress.PARTIAL_MATCH);
+		checkFeed(m, "data.json", PathMatcher.Progress.COMPLETE_MATCH);
+
+		m.reset();
+		checkFeed(m, "dir", PathMatcher.Progress.PARTIAL_MATCH);
+		checkFeed(m, "", PathMatcher.Progress.COMPLETE_MATCH);
+
+		m.reset();
+		checkFeed(m, "nothing", PathMatcher.Progress.NO_MATCH);
+		try {
+			m.reset();
+			m.feed("orders/42");
+			fail("Expected an element containing a separator to be rejected");
+		} catch (IllegalArgumentException iae) {
+			// expected
+		}
+
+		// Agrees with matching the whole path
+		for (String path : new String[] { "/orders", "/orders/42/items", "/orders/x/items", "/files", "/files/a/b",
+				"/static/a/b", "/a/b", "/a/x/y/b", "/a/b/c", "/xyz/a.json", "/xz/a.json", "/dir/", "/dir" }) {
+			m.reset();
+			PathMatcher.Progress progress = null;
+			for (String element : path.substring(1).split("/", -1)) {
+				progress = m.feed(element);
+			}
+			assertEquals(path, p.matches(path), progress == PathMatcher.Progress.COMPLETE_MATCH);
+		}
+	}
+
+	@Test
+	public void incrementalMatcherOptions() {
+		PathMatcher p = new PathMatcher();
+		p.setTrailingSeparatorMatch(true);
+		p.setSuffixMatch(true);
+		p.addURITemplate(TestURITemplate.createFor("/orders"), 1);
+		p.addURITemplate(TestURITemplate.createFor("/orders/{id}"), 2);
+		PathMatcher.IncrementalMatcher m = p.newIncrementalMatcher();
+		checkFeed(m, "orders", PathMatcher.Progress.COMPLETE_MATCH);
+		checkFeed(m, "", PathMatcher.Progress.COMPLETE_MATCH);
+		checkFeed(m, "", PathMatcher.Progress.NO_MATCH);
+		m.reset();
+		checkFeed(m, "orders.json", PathMatcher.Progress.COMPLETE_MATCH);
+		checkFeed(m, "", PathMatcher.Progress.COMPLETE_MATCH);
+		m.reset();
+		checkFeed(m, "orders.", PathMatcher.Progress.NO_MATCH);
+
+		// Only templates carrying the required tags are considered
+		m = p.newIncrementalMatcher(2);
+		checkFeed(m, "orders", PathMatcher.Progress.PARTIAL_MATCH);
+		checkFeed(m, "42", PathMatcher.Progress.COMPLETE_MATCH);
+		int[] ids = new int[2];
+		assertEquals(1, m.copy().getMatchIds(ids));
+		assertEquals("/orders/{id}", p.getTemplate(ids[0]).getTemplateText());
+		checkFeed(m.copy(), "", PathMatcher.Progress.COMPLETE_MATCH);
+
+		for (String path : new String[] { "/orders", "/orders/", "/orders//", "/orders.json", "/orders.json/",
+				"/orders.json/x", "/orders/42/", "/orders/42.json", "/orders.", "/" }) {
+			m = p.newIncrementalMatcher();
+			PathMatcher.Progress progress = null;
+			for (String element : path.substring(1).split("/", -1)) {
+				progress = m.feed(element);
+			}
+			assertEquals(path, p.matches(path), progress == PathMatcher.Progress.COMPLETE_MATCH);
+		}
+	}
+
+	private void checkFeed(PathMatcher.IncrementalMatcher m, String element, PathMatcher.Progress expected) {
+		assertEquals(element, expected, m.feed(element));
+	}
+
+	private void checkLongestPrefix(PathMatcher p, PrefixMatch match, String path, String expectedTemplate, int expectedOffset) {
+		assertTrue(p.findLongestPrefixMatch(path, match));
+		assertEquals(expectedTemplate, match.getTemplate().getTemplateText());
+		assertEquals(expectedOffset, match.getRemainingPathOffset());
+	}
+
+	@Test
+	public void matchLimits() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p, "/**/a/**/b");
+		addTemplate(p, "/x/{id:(a|aa)+b}");
+		p.setMaxPathLength(64);
+		p.setMaxSeparators(8);
+		assertTrue(p.matches("/a/b"));
+		checkLimitExceeded(p, "/a/b/" + String.join("", Collections.nCopies(60, "c")), MatchLimitExceededException.Limit.PATH_LENGTH);
+		checkLimitExceeded(p, "/a/a/a/a/a/a/a/a/b", MatchLimitExceededException.Limit.SEPARATORS);
+		assertTrue(p.matches("/a/a/a/a/a/a/a/b"));
+
+		p.setMaxNodeVisits(20);
+		checkLimitExceeded(p, "/a/b/a/b/a/b/a/c", MatchLimitExceededException.Limit.NODE_VISITS);
+		assertTrue(p.matches("/a/b"));
+
+		p.setMaxRegexSteps(50);
+		assertTrue(p.matches("/x/aaab"));
+		checkLimitExceeded(p, "/x/aaaaaaaaaaaaaaaaaaaaaaaaaaaaac", MatchLimitExceededException.Limit.REGEX_STEPS);
+
+		try {
+			p.setMaxNodeVisits(-1);
+			fail();
+		} catch (IllegalArgumentException iae) {
+		}
+	}
+
+	private void checkLimitExceeded(PathMatcher p, String path, MatchLimitExceededException.Limit limit) {
+		try {
+			p.matches(path);
+			fail("Expected " + limit + " to be exceeded for " + path);
+		} catch (MatchLimitExceededException e) {
+			assertEquals(limit, e.getLimit());
+		}
+		// The reused walk must be left fit for the next path
+		try {
+			p.findAllMatchIds(path, new int[1]);
+			fail("Expected " + limit + " to be exceeded for " + path);
+		} catch (MatchLimitExceededException e) {
+			assertEquals(limit, e.getLimit());
+		}
+	}
+
+	@Test
+	public void questionMarkDoesNotMatchSeparator() {
+		checkMatches("/**/a?b", "/x/acb");
+		checkNoMatch("/**/a?b", "/x/a/b");
+		checkNoMatch("/x/a?b", "/x/a/b");
+	}
+
+	@Test
+	public void caseInsensitiveVariables() {
+		PathMatcher p = new PathMatcher(PathMatcher.DEFAULT_PATH_SEPARATOR, false, false);
+		addTemplate(p, "/Hotels/{hotelId:[A-Z]+}/{Booking}");
+		List<MatchResult> results = p.findAllMatches("/hotels/Ritz/B7");
+		assertMatchCount(1, results);
+		// Variable names and captured values keep their case
+		assertEquals("Ritz", results.get(0).getValue("hotelId"));
+		assertEquals("B7", results.get(0).getValue("Booking"));
+	}
+
+	@Test
+	public void trimTokensKeepsCaseAndOffsets() {
+		PathMatcher p = new PathMatcher(PathMatcher.DEFAULT_PATH_SEPARATOR, true, true);
+		addTemplate(p, "/Foo/{id}/bar");
+		assertMatchCount(1, p.findAllMatches("/ Foo /  42 / bar "));
+		assertEquals("42", p.findAllMatches("/ Foo /  42 / bar ").get(0).getValue("id"));
+		assertMatchCount(0, p.findAllMatches("/ foo / 42 / bar"));
+	}
+
 	// These are the tests from Spring Framework AntPathMatchersTests
 
-//	static class Matcher {
-//		
-//		char sep = '.';
-//		boolean trimTokens = false;
-//
-//		public boolean match(String pattern, String path) {
-//			PathMatcher pm = new PathMatcher(sep,trimTokens);
-//			pm.addURITemplate(new TestURITemplate(pattern));
-//			return pm.matches(path);
-//		}
-//
-//		public boolean matchStart(String pattern, String path) {
-//			PathMatcher pm = new PathMatcher(sep,trimTokens);
-//			pm.addURITemplate(new TestURITemplate(pattern));
-//			return pm.findAllPrefixMatchesStarting(path).size()!=0;
-//		}
-//
-//		public void setPathSeparator(char sep) {
-//			this.sep = sep;
-//		}
-//
-//		public void setTrimTokens(boolean b) {
-//			this.trimTokens = b;
-//		}
-//
-//	}
-//
-//	Matcher pathMatcher = new Matcher();
+	private final AntStylePathMatcher pathMatcher = new AntStylePathMatcher();
 	
 	@Test
 	public void oldAntPathMatcherTests() {
@@ -330,6 +1527,42 @@ public class PathMatcherTests {
 		assertEquals("/**/foo",result.getMatchingTemplate().getTemplateText());
 	}
 
+	@Test
+	public void matchStartPrefixIndex() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p,"/foo/bar");
+		addTemplate(p,"/foo/bar/baz");
+		addTemplate(p,"/foo/{id}/baz/qux");
+		addTemplate(p,"/boo/bar");
+		assertMatchCount(3, p.findAllPrefixMatchesStarting("/foo"));
+		assertMatchCount(3, p.findAllPrefixMatchesStarting("/foo/bar"));
+		assertMatchCount(1, p.findAllPrefixMatchesStarting("/foo/bar/baz/qux"));
+		assertMatchCount(0, p.findAllPrefixMatchesStarting("/foo/bar/baz/qux/quux"));
+		// The index is rebuilt when templates are added
+		addTemplate(p,"/foo");
+		addTemplate(p,"/foo/boo/baz");
+		assertMatchCount(5, p.findAllPrefixMatchesStarting("/foo"));
+		assertMatchCount(2, p.findAllPrefixMatchesStarting("/foo/boo"));
+	}
+
+	@Test
+	public void clearForgetsEverything() {
+		PathMatcher p = new PathMatcher();
+		addTemplate(p,"/a/b");
+		addTemplate(p,"/x/**/c");
+		assertMatchCount(1, p.findAllPrefixMatchesStarting("/a"));
+		p.clear();
+		assertMatchCount(0, p.findAllPrefixMatchesStarting("/a"));
+		assertMatchCount(0, p.findAllMatches("/x/y/c"));
+		assertEquals(0, p.getTemplateCount());
+		// Settings that need an empty matcher can be changed again and ids restart
+		p.setEncodedPaths(true);
+		URITemplate template = TestURITemplate.createFor("/a/{id}");
+		p.addURITemplate(template);
+		assertEquals(0, p.getTemplateId(template));
+		assertEquals("x y", p.findAllMatches("/a/x%20y").get(0).getValue("id"));
+	}
+
 	@Test
 	public void sfwwithMatchStart() {		
 		// TODO findMatchSuccesses needs dealing with across all Segment nodes
@@ -585,90 +1818,84 @@ public class PathMatcherTests {
 	// "/docs/cvs/commit.html"));
 	// }
 	//
-	// @Test
-	// public void extractUriTemplateVariables() throws Exception {
-	// Map<String, String> result =
-	// pathMatcher.extractUriTemplateVariables("/hotels/{hotel}", "/hotels/1");
-	// assertEquals(Collections.singletonMap("hotel", "1"), result);
-	//
-	// result = pathMatcher.extractUriTemplateVariables("/h?tels/{hotel}",
-	// "/hotels/1");
-	// assertEquals(Collections.singletonMap("hotel", "1"), result);
-	//
-	// result =
-	// pathMatcher.extractUriTemplateVariables("/hotels/{hotel}/bookings/{booking}",
-	// "/hotels/1/bookings/2");
-	// Map<String, String> expected = new LinkedHashMap<>();
-	// expected.put("hotel", "1");
-	// expected.put("booking", "2");
-	// assertEquals(expected, result);
-	//
-	// result = pathMatcher.extractUriTemplateVariables("/**/hotels/**/{hotel}",
-	// "/foo/hotels/bar/1");
-	// assertEquals(Collections.singletonMap("hotel", "1"), result);
-	//
-	// result = pathMatcher.extractUriTemplateVariables("/{page}.html",
-	// "/42.html");
-	// assertEquals(Collections.singletonMap("page", "42"), result);
-	//
-	// result = pathMatcher.extractUriTemplateVariables("/{page}.*",
-	// "/42.html");
-	// assertEquals(Collections.singletonMap("page", "42"), result);
-	//
-	// result = pathMatcher.extractUriTemplateVariables("/A-{B}-C", "/A-b-C");
-	// assertEquals(Collections.singletonMap("B", "b"), result);
-	//
-	// result = pathMatcher.extractUriTemplateVariables("/{name}.{extension}",
-	// "/test.html");
-	// expected = new LinkedHashMap<>();
-	// expected.put("name", "test");
-	// expected.put("extension", "html");
-	// assertEquals(expected, result);
-	// }
-	//
-	// @Test
-	// public void extractUriTemplateVariablesRegex() {
-	// Map<String, String> result = pathMatcher
-	// .extractUriTemplateVariables("{symbolicName:[\\w\\.]+}-{version:[\\w\\.]+}.jar",
-	// "com.example-1.0.0.jar");
-	// assertEquals("com.example", result.get("symbolicName"));
-	// assertEquals("1.0.0", result.get("version"));
-	//
-	//
-	// result =
-	// pathMatcher.extractUriTemplateVariables("{symbolicName:[\\w\\.]+}-sources-{version:[\\w\\.]+}.jar",
-	// "com.example-sources-1.0.0.jar");
-	// assertEquals("com.example", result.get("symbolicName"));
-	// assertEquals("1.0.0", result.get("version"));
-	// }
-	//
-	// /**
-	// * SPR-7787
-	// */
-	// @Test
-	// public void extractUriTemplateVarsRegexQualifiers() {
-	// Map<String, String> result = pathMatcher.extractUriTemplateVariables(
-	// "{symbolicName:[\\p{L}\\.]+}-sources-{version:[\\p{N}\\.]+}.jar",
-	// "com.example-sources-1.0.0.jar");
-	// assertEquals("com.example", result.get("symbolicName"));
-	// assertEquals("1.0.0", result.get("version"));
-	//
-	// result = pathMatcher.extractUriTemplateVariables(
-	// "{symbolicName:[\\w\\.]+}-sources-{version:[\\d\\.]+}-{year:\\d{4}}{month:\\d{2}}{day:\\d{2}}.jar",
-	// "com.example-sources-1.0.0-20100220.jar");
-	// assertEquals("com.example", result.get("symbolicName"));
-	// assertEquals("1.0.0", result.get("version"));
-	// assertEquals("2010", result.get("year"));
-	// assertEquals("02", result.get("month"));
-	// assertEquals("20", result.get("day"));
-	//
-	// result = pathMatcher.extractUriTemplateVariables(
-	// "{symbolicName:[\\p{L}\\.]+}-sources-{version:[\\p{N}\\.\\{\\}]+}.jar",
-	// "com.example-sources-1.0.0.{12}.jar");
-	// assertEquals("com.example", result.get("symbolicName"));
-	// assertEquals("1.0.0.{12}", result.get("version"));
-	// }
-	//
+	@Test
+	public void extractUriTemplateVariables() throws Exception {
+		Map<String, String> result = pathMatcher.extractUriTemplateVariables("/hotels/{hotel}", "/hotels/1");
+		assertEquals(Collections.singletonMap("hotel", "1"), result);
+
+		result = pathMatcher.extractUriTemplateVariables("/h?tels/{hotel}", "/hotels/1");
+		assertEquals(Collections.singletonMap("hotel", "1"), result);
+
+		result = pathMatcher.extractUriTemplateVariables("/hotels/{hotel}/bookings/{booking}", "/hotels/1/bookings/2");
+		Map<String, String> expected = new LinkedHashMap<>();
+		expected.put("hotel", "1");
+		expected.put("booking", "2");
+		assertEquals(expected, result);
+
+		result = pathMatcher.extractUriTemplateVariables("/**/hotels/**/{hotel}", "/foo/hotels/bar/1");
+		assertEquals(Collections.singletonMap("hotel", "1"), result);
+
+		result = pathMatcher.extractUriTemplateVariables("/{page}.html", "/42.html");
+		assertEquals(Collections.singletonMap("page", "42"), result);
+
+		result = pathMatcher.extractUriTemplateVariables("/{page}.*", "/42.html");
+		assertEquals(Collections.singletonMap("page", "42"), result);
+
+		result = pathMatcher.extractUriTemplateVariables("/A-{B}-C", "/A-b-C");
+		assertEquals(Collections.singletonMap("B", "b"), result);
+
+		result = pathMatcher.extractUriTemplateVariables("/{name}.{extension}", "/test.html");
+		expected = new LinkedHashMap<>();
+		expected.put("name", "test");
+		expected.put("extension", "html");
+		assertEquals(expected, result);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void extractUriTemplateVariablesNoMatch() {
+		pathMatcher.extractUriTemplateVariables("/hotels/{hotel}", "/motels/1");
+	}
+
+	@Test
+	public void extractUriTemplateVariablesRegex() {
+		Map<String, String> result = pathMatcher
+				.extractUriTemplateVariables("{symbolicName:[\\w\\.]+}-{version:[\\w\\.]+}.jar", "com.example-1.0.0.jar");
+		assertEquals("com.example", result.get("symbolicName"));
+		assertEquals("1.0.0", result.get("version"));
+
+		result = pathMatcher.extractUriTemplateVariables("{symbolicName:[\\w\\.]+}-sources-{version:[\\w\\.]+}.jar",
+				"com.example-sources-1.0.0.jar");
+		assertEquals("com.example", result.get("symbolicName"));
+		assertEquals("1.0.0", result.get("version"));
+	}
+
+	/**
+	 * SPR-7787
+	 */
+	@Test
+	public void extractUriTemplateVarsRegexQualifiers() {
+		Map<String, String> result = pathMatcher.extractUriTemplateVariables(
+				"{symbolicName:[\\p{L}\\.]+}-sources-{version:[\\p{N}\\.]+}.jar",
+				"com.example-sources-1.0.0.jar");
+		assertEquals("com.example", result.get("symbolicName"));
+		assertEquals("1.0.0", result.get("version"));
+
+		result = pathMatcher.extractUriTemplateVariables(
+				"{symbolicName:[\\w\\.]+}-sources-{version:[\\d\\.]+}-{year:\\d{4}}{month:\\d{2}}{day:\\d{2}}.jar",
+				"com.example-sources-1.0.0-20100220.jar");
+		assertEquals("com.example", result.get("symbolicName"));
+		assertEquals("1.0.0", result.get("version"));
+		assertEquals("2010", result.get("year"));
+		assertEquals("02", result.get("month"));
+		assertEquals("20", result.get("day"));
+
+		result = pathMatcher.extractUriTemplateVariables(
+				"{symbolicName:[\\p{L}\\.]+}-sources-{version:[\\p{N}\\.\\{\\}]+}.jar",
+				"com.example-sources-1.0.0.{12}.jar");
+		assertEquals("com.example", result.get("symbolicName"));
+		assertEquals("1.0.0.{12}", result.get("version"));
+	}
+
 	// /**
 	// * SPR-8455
 	// */
@@ -902,55 +2129,104 @@ public class PathMatcherTests {
 	// paths.clear();
 	// }
 	//
-	// @Test // SPR-8687
-	// public void trimTokensOff() {
-	// pathMatcher.setTrimTokens(false);
-	//
-	// checkMatches("/group/{groupName}/members",
-	// "/group/sales/members"));
-	// checkMatches("/group/{groupName}/members", "/group/
-	// sales/members"));
-	// checkNoMatch("/group/{groupName}/members", "/Group/
-	// Sales/Members"));
-	// }
-	//
-	// @Test // SPR-13286
-	// public void caseInsensitive() {
-	// pathMatcher.setCaseSensitive(false);
-	//
-	// checkMatches("/group/{groupName}/members",
-	// "/group/sales/members"));
-	// checkMatches("/group/{groupName}/members",
-	// "/Group/Sales/Members"));
-	// checkMatches("/Group/{groupName}/Members",
-	// "/group/Sales/members"));
-	// }
-	//
-	// @Test
-	// public void defaultCacheSetting() {
-	// match();
-	// assertTrue(pathMatcher.stringMatcherCache.size() > 20);
-	//
-	// for (int i = 0; i < 65536; i++) {
-	// pathMatcher.match("test" + i, "test");
-	// }
-	// // Cache turned off because it went beyond the threshold
-	// assertTrue(pathMatcher.stringMatcherCache.isEmpty());
-	// }
-	//
-	// @Test
-	// public void cachePatternsSetToTrue() {
-	// pathMatcher.setCachePatterns(true);
-	// match();
-	// assertTrue(pathMatcher.stringMatcherCache.size() > 20);
-	//
-	// for (int i = 0; i < 65536; i++) {
-	// pathMatcher.match("test" + i, "test" + i);
-	// }
-	// // Cache keeps being alive due to the explicit cache setting
-	// assertTrue(pathMatcher.stringMatcherCache.size() > 65536);
-	// }
-	//
+	@Test // SPR-8687
+	public void trimTokensOff() {
+		pathMatcher.setTrimTokens(false);
+
+		assertTrue(pathMatcher.match("/group/{groupName}/members", "/group/sales/members"));
+		assertTrue(pathMatcher.match("/group/{groupName}/members", "/group/  sales/members"));
+		assertFalse(pathMatcher.match("/group/{groupName}/members", "/Group/  Sales/Members"));
+	}
+
+	@Test // SPR-13286
+	public void caseInsensitive() {
+		pathMatcher.setCaseSensitive(false);
+
+		assertTrue(pathMatcher.match("/group/{groupName}/members", "/group/sales/members"));
+		assertTrue(pathMatcher.match("/group/{groupName}/members", "/Group/Sales/Members"));
+		assertTrue(pathMatcher.match("/Group/{groupName}/Members", "/group/Sales/members"));
+	}
+
+	@Test
+	public void defaultCacheSetting() {
+		matchSeveralPatterns();
+		assertTrue(pathMatcher.patternCache.size() > 20);
+
+		for (int i = 0; i < 65536; i++) {
+			pathMatcher.match("test" + i, "test");
+		}
+		// Cache turned off because it went beyond the threshold
+		assertTrue(pathMatcher.patternCache.isEmpty());
+	}
+
+	@Test
+	public void cachePatternsSetToTrue() {
+		pathMatcher.setCachePatterns(true);
+		matchSeveralPatterns();
+		assertTrue(pathMatcher.patternCache.size() > 20);
+
+		for (int i = 0; i < 65536; i++) {
+			pathMatcher.match("test" + i, "test" + i);
+		}
+		// Cache keeps being alive due to the explicit cache setting
+		assertTrue(pathMatcher.patternCache.size() > 65536);
+	}
+
+	@Test
+	public void cachedPatternsShareOneMatcher() throws Exception {
+		pathMatcher.setCachePatterns(true);
+		// Each thread matches every pattern, borrowing its own traversal from the shared matcher
+		Thread[] threads = new Thread[4];
+		AtomicInteger failures = new AtomicInteger();
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 10000; i++) {
+					int n = i % 100;
+					if (!pathMatcher.match("/orders/" + n + "/{item}/**", "/orders/" + n + "/x/y")
+							|| pathMatcher.match("/orders/" + n + "/{item}", "/orders/" + (n + 1) + "/x")
+							|| !String.valueOf(n).equals(pathMatcher.extractUriTemplateVariables("/{n}/*", "/" + n + "/y").get("n"))) {
+						failures.incrementAndGet();
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, failures.get());
+		assertEquals(201, pathMatcher.patternCache.size());
+		// A new configuration recompiles the patterns
+		pathMatcher.setCaseSensitive(false);
+		assertTrue(pathMatcher.patternCache.isEmpty());
+		assertTrue(pathMatcher.match("/orders/1/{item}/**", "/ORDERS/1/x"));
+	}
+
+	@Test
+	public void cachePatternsSetToFalse() {
+		pathMatcher.setCachePatterns(false);
+		matchSeveralPatterns();
+		assertTrue(pathMatcher.patternCache.isEmpty());
+	}
+
+	@Test
+	public void antStyleMatchStart() {
+		assertTrue(pathMatcher.matchStart("/foo/bar", "/foo"));
+		assertTrue(pathMatcher.matchStart("/x/x/**/bla", "/x/x/x/"));
+		assertFalse(pathMatcher.matchStart("/foo/bar", "/bar"));
+		assertTrue(pathMatcher.isPattern("/hotels/{hotel}"));
+		assertFalse(pathMatcher.isPattern("/hotels/new"));
+	}
+
+	private void matchSeveralPatterns() {
+		String[] patterns = { "test", "/test", "t?st", "??st", "tes?", "te??", "?es?", "*", "test*", "test/*",
+				"*test*", "*test", "*.*", "test*aaa", "/?", "/?/a", "/a/?", "/??/a", "/a/??", "/**/foo", "/**",
+				"/*/**", "/**/*", "/bla/**/bla", "/**/test", "/bla/**/**/bla", "/bla*bla/test", "/*bla/test" };
+		for (String pattern : patterns) {
+			pathMatcher.match(pattern, "/testing/testing");
+		}
+	}
+
 	// @Test
 	// public void
 	// preventCreatingStringMatchersIfPathDoesNotStartsWithPatternPrefix() {
@@ -986,13 +2262,6 @@ public class PathMatcherTests {
 	// }
 	//
 	// @Test
-	// public void cachePatternsSetToFalse() {
-	// pathMatcher.setCachePatterns(false);
-	// match();
-	// assertTrue(pathMatcher.stringMatcherCache.isEmpty());
-	// }
-	//
-	// @Test
 	// public void extensionMappingWithDotPathSeparator() {
 	// pathMatcher.setPathSeparator(".");
 	// assertEquals("Extension mapping should be disabled with \".\" as path